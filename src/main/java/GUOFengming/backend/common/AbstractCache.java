@@ -1,9 +1,10 @@
 package GUOFengming.backend.common;
 
-import java.util.HashMap;
-import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongPredicate;
 import GUOFengming.common.Error;
 /**
  * 使用引用技术策略管理缓存，
@@ -16,125 +17,349 @@ import GUOFengming.common.Error;
  * 1、当资源被引用时（如赋值给一个新变量或传递给函数），引用计数增加。
  * 2、当引用被释放时，引用计数减少。
  * 3、当引用计数变为 0 时，表示资源不再被任何地方使用，可以安全地释放或回收该资源。
+ *
+ * 并发实现：
+ * 缓存项保存在 ConcurrentHashMap 中，对同一个key的引用计数修改都在 compute 系列方法内完成，
+ * 只会锁住该key所在的桶，不同key之间互不阻塞。
+ * 正在从数据库获取的资源用一个 CompletableFuture 表示，
+ * 其他请求同一个key的线程直接等待这个future完成，而不是睡眠轮询。
+ *
+ * 驱逐：
+ * 引用计数变为0的资源不会立刻被删除，而是留在缓存中等待再次被访问。
+ * 缓存满时由驱逐策略（CLOCK、LRU-K、2Q，每个缓存实例可以单独选择）选出一个引用计数为0的资源，
+ * 调用 releaseForCache 回写后删除。只有所有资源都正被引用时才会抛出 CacheFullException。
+ * 回写可能要等日志保存到硬盘、要写文件，不能在桶锁内进行：桶锁内只把缓存项标记为正在驱逐，
+ * 回写在锁外完成后再删除缓存项。期间请求这个key的线程等待驱逐结束，再重新获取，不会读到回写前的旧数据。
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long,T> cache;              //实际缓存的数据
-    private HashMap<Long,Integer> reference;   //资源引用个数
-    private HashMap<Long,Boolean> getting;    //正在被获取的资源
 
-    private int maxResource;                //缓存的最大缓存资源数
-    private int count = 0;                 //缓存中的元素个数
-    private Lock lock;
+    /**
+     * 缓存项：资源本身（以future的形式，加载完成前未完成）和它的引用个数
+     * references 只在 cache 的 compute 系列方法内修改，由ConcurrentHashMap的桶锁保护，
+     * 驱逐策略挑选驱逐对象时会在锁外读取它，所以声明为volatile
+     */
+    private static final class CacheEntry<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        volatile int references = 1;
+        //资源被后台线程独占时不为null，其他线程引用资源后要等它完成才能使用
+        volatile CompletableFuture<Void> exclusive;
+        //资源正在被回写驱逐时不为null，驱逐结束（缓存项已删除）时完成；只在桶锁内设置，设置后不再改变
+        volatile CompletableFuture<Void> evicting;
+    }
+
+    private final ConcurrentHashMap<Long,CacheEntry<T>> cache = new ConcurrentHashMap<>();    //实际缓存的数据（包括正在被获取的资源）
+
+    private final int maxResource;                //缓存的最大缓存资源数
+    private final AtomicInteger count = new AtomicInteger(0);     //缓存中的元素个数
+    //正在预读的资源个数：它们在预读完成前不能被驱逐，最多占用缓存的一半，否则前台的get可能找不到可以驱逐的资源
+    private final AtomicInteger preloading = new AtomicInteger(0);
+    private final EvictionPolicy policy;
+
+    //判断一个资源能否被驱逐：已经获取完成并且没有被引用
+    //这里读到的引用个数可能已经过时，真正驱逐时会在桶锁内再检查一次
+    private final LongPredicate evictable = key -> {
+        CacheEntry<T> e = cache.get(key);
+        return e != null && e.references == 0 && e.future.isDone();
+    };
 
     public AbstractCache(int maxResource){
+        this(maxResource,EvictionPolicy.Type.CLOCK);
+    }
+
+    public AbstractCache(int maxResource,EvictionPolicy.Type policyType){
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        policy = EvictionPolicy.create(policyType,maxResource);
     }
 
     protected T get(long key) throws Exception{
+        return get(key,true);
+    }
+
+    /**
+     * @param touch 命中时是否通知驱逐策略，为false时命中不会让资源在驱逐策略中变得更"热"，
+     *              用于扫描等一次性访问，避免把真正的热点资源挤出去
+     */
+    protected T get(long key,boolean touch) throws Exception{
         while(true){
-            lock.lock();
+            //资源在缓存中（或正被其他线程获取），引用个数+1；正在被驱逐的资源不能再引用
+            CacheEntry<T> entry = cache.computeIfPresent(key,(k,e) -> {
+                if(e.evicting == null){
+                    e.references ++;
+                }
+                return e;
+            });
 
-            if(getting.containsKey(key)){
-                //请求的资源正被其他线程获取，睡眠1ms
-                lock.unlock();
+            if(entry != null){
+                //引用个数大于0的资源不会开始驱逐，所以这里读到的evicting就是上面桶锁内的状态
+                CompletableFuture<Void> evicting = entry.evicting;
+                if(evicting != null){
+                    //等回写完成、缓存项删除后重新获取
+                    evicting.join();
+                    continue;
+                }
+                T obj;
                 try{
-                    Thread.sleep(1);
-                } catch (InterruptedException e){
-                    e.printStackTrace();
+                    //资源正被其他线程获取时，在这里等待获取完成
+                    obj = entry.future.join();
+                } catch (CompletionException e){
+                    if(e.getCause() == Error.CacheClosedException){
+                        throw Error.CacheClosedException;
+                    }
+                    //其他线程获取失败，该缓存项已被移除，重新尝试
                     continue;
                 }
-                //跳过后续代码重新检查请求的资源是否正被其他线程获取
-                continue;
-            }
-
-            if(cache.containsKey(key)){
-                //资源在缓存中，直接返回
-                T obj = cache.get(key);
-                //当前资源的引用个数+1
-                reference.put(key,reference.get(key) + 1);
-                lock.unlock();
+                //资源正被独占（如后台回写）时，等待独占结束
+                CompletableFuture<Void> exclusive = entry.exclusive;
+                if(exclusive != null){
+                    exclusive.join();
+                }
+                if(touch){
+                    policy.onAccess(key);
+                }
                 return obj;
             }
 
             //当前请求的资源不在缓存中时，尝试从数据库获取该资源
-            if(maxResource > 0 && count == maxResource){
-                lock.unlock();
+            if(!reserve()){
                 throw Error.CacheFullException;
             }
+            CacheEntry<T> created = new CacheEntry<>();
+            if(cache.putIfAbsent(key,created) != null){
+                //其他线程抢先开始获取该资源，归还占用的位置后重新检查
+                count.decrementAndGet();
+                continue;
+            }
+
+            T obj; //用来装从数据库查询返回的内容
+            try{
+                obj = getForCache(key);
+            } catch (Exception e){
+                //如果从数据库获取key的资源时出错：
+                //从缓存中去掉，count的计数恢复（-1），缓存已经关闭时close已经去掉了它
+                //并通知正在等待的线程
+                if(cache.remove(key,created)){
+                    count.decrementAndGet();
+                }
+                created.future.completeExceptionally(e);
+                throw e;
+            }
 
-            count ++;
-            getting.put(key,true);
-            lock.unlock();
-            break;
+            //成功从数据库获取到资源，唤醒等待该资源的线程
+            policy.onInsert(key);
+            created.future.complete(obj);
+            return obj;
+        }
+    }
+
+    /**
+     * 在缓存中占用一个位置，缓存已满时先驱逐一个没有被引用的资源
+     * 所有资源都正被引用时返回false
+     */
+    private boolean reserve(){
+        while(true){
+            int c = count.get();
+            if(maxResource > 0 && c >= maxResource){
+                Long victim = policy.victim(evictable);
+                if(victim == null){
+                    return false;
+                }
+                evict(victim);
+                continue;
+            }
+            if(count.compareAndSet(c,c + 1)){
+                return true;
+            }
         }
+    }
 
-        T obj; //默认为null，用来装从数据库查询返回的内容
+    /**
+     * 驱逐一个资源，资源在驱逐前又被引用时放弃；正被其他线程驱逐时等待它完成
+     * @return 资源已经不在缓存中时返回true
+     */
+    protected boolean evict(long key){
+        boolean[] claimed = new boolean[1];
+        CacheEntry<T> entry = cache.computeIfPresent(key,(k,e) -> {
+            if(e.references == 0 && e.future.isDone() && !e.future.isCompletedExceptionally() && e.evicting == null){
+                e.evicting = new CompletableFuture<>();
+                claimed[0] = true;
+            }
+            return e;
+        });
+        if(entry == null){
+            return true;
+        }
+        if(claimed[0]){
+            writeBack(key,entry);
+            return true;
+        }
+        CompletableFuture<Void> evicting = entry.evicting;
+        if(evicting != null){
+            evicting.join();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 回写已经标记为正在驱逐的资源，再把它从缓存中删除，在桶锁外调用
+     * 驱逐策略先于删除缓存项更新：删除之后其他线程才能重新获取这个key并调用onInsert，
+     * 不会被迟到的onRemove删掉
+     */
+    private void writeBack(long key,CacheEntry<T> entry){
         try{
-            obj = getForCache(key);
-        } catch (Exception e){
-            //如果从数据库获取key的资源时出错：
-            //count的计数恢复（-1）
-            //从正在被获取资源的map中去掉
-            lock.lock();
-            count --;
-            getting.remove(key);
-            lock.unlock();
-            throw e;
+            releaseForCache(entry.future.join());
+        }finally {
+            policy.onRemove(key);
+            cache.remove(key,entry);
+            count.decrementAndGet();
+            entry.evicting.complete(null);
+        }
+    }
+
+    /**
+     * 为预读占好位置：资源不在缓存中时放入一个正在获取的缓存项，引用计数为0，
+     * 之后其他线程请求这个key会等待 finishPreload，而不会自己再去获取
+     * 资源已经在缓存中，或者缓存已满且没有可以驱逐的资源时返回false
+     */
+    protected boolean beginPreload(long key){
+        if(cache.containsKey(key) || !reserve()){
+            return false;
+        }
+        CacheEntry<T> created = new CacheEntry<>();
+        created.references = 0;
+        if(cache.putIfAbsent(key,created) != null){
+            count.decrementAndGet();
+            return false;
         }
+        preloading.incrementAndGet();
+        return true;
+    }
 
-        //成功从数据库获取到资源
-        lock.lock();
-        getting.remove(key);
-        //将获取到的资源放入缓存
-        cache.put(key,obj);
-        reference.put(key,1);
-        lock.unlock();
+    /**
+     * 后台预读用的beginPreload：正在预读的资源已经占了缓存的一半时返回false，给前台的get留出可以驱逐的资源
+     */
+    protected boolean beginReadAhead(long key){
+        if(maxResource > 0 && preloading.get() >= maxResource / 2){
+            return false;
+        }
+        return beginPreload(key);
+    }
 
-        return obj;
+    /**
+     * 预读完成，唤醒等待该资源的线程
+     */
+    protected void finishPreload(long key,T obj){
+        CacheEntry<T> entry = cache.get(key);
+        preloading.decrementAndGet();
+        if(entry == null){
+            //缓存已经关闭
+            return;
+        }
+        policy.onInsert(key);
+        entry.future.complete(obj);
+    }
+
+    /**
+     * 预读失败，去掉占好的位置，等待该资源的线程会重新自己获取
+     */
+    protected void abortPreload(long key,Exception e){
+        CacheEntry<T> entry = cache.remove(key);
+        preloading.decrementAndGet();
+        if(entry == null){
+            //缓存已经关闭
+            return;
+        }
+        count.decrementAndGet();
+        entry.future.completeExceptionally(e);
+    }
+
+    /**
+     * 资源是否在缓存中（包括正在被获取的资源）
+     */
+    protected boolean contains(long key){
+        return cache.containsKey(key);
+    }
+
+    /**
+     * 资源在缓存中并且没有被引用时，独占地引用它，不会触发获取，也不影响驱逐策略
+     * 独占期间其他线程的get会等待，直到调用 releaseExclusive
+     * 用于后台线程在不驱逐资源的情况下回写它，期间资源不会被修改
+     * @return 资源不在缓存中或者正被引用时返回null
+     */
+    protected T getExclusive(long key){
+        boolean[] claimed = new boolean[1];
+        CacheEntry<T> entry = cache.computeIfPresent(key,(k,e) -> {
+            if(e.references == 0 && e.future.isDone() && e.exclusive == null && e.evicting == null){
+                e.references = 1;
+                e.exclusive = new CompletableFuture<>();
+                claimed[0] = true;
+            }
+            return e;
+        });
+        return claimed[0] ? entry.future.join() : null;
+    }
+
+    /**
+     * 结束独占，唤醒等待该资源的线程
+     */
+    protected void releaseExclusive(long key){
+        CacheEntry<T> entry = cache.get(key);
+        CompletableFuture<Void> exclusive = entry.exclusive;
+        entry.exclusive = null;
+        release(key);
+        exclusive.complete(null);
     }
 
     /**
      * 使用引用计数策略，安全地释放一个缓存
      */
     protected void release(long key){
-        lock.lock();
-        //引用计数策略，只有当没有其他线程正在引用key对应的资源时才将其从缓存中删除
+        //引用计数策略，只有当没有其他线程正在引用key对应的资源时才允许将其从缓存中删除
         //强行删除可能导致其他正在引用这个资源的线程出现空指针异常
-        try{
-            int ref = reference.get(key) - 1;
-            if(ref == 0){
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                reference.remove(key);
-                cache.remove(key);
-                count --;
-            }else{
-                reference.put(key,ref);
+        //有容量上限的缓存把引用计数为0的资源留给驱逐策略处理；没有上限的缓存不会驱逐，直接回写删除
+        //回写和驱逐一样在桶锁外进行，回写结束前其他线程的get会等待，不会读到旧数据
+        boolean[] claimed = new boolean[1];
+        CacheEntry<T> entry = cache.computeIfPresent(key,(k,e) -> {
+            e.references --;
+            if(e.references == 0 && maxResource <= 0){
+                e.evicting = new CompletableFuture<>();
+                claimed[0] = true;
             }
-        }finally {
-            lock.unlock();
+            return e;
+        });
+        if(claimed[0]){
+            writeBack(key,entry);
         }
     }
 
     /**
      * 关闭缓存，写回所有资源
+     * 还在获取中的资源直接去掉，等待它的线程收到CacheClosedException，不会一直等下去
      */
     protected void close(){
-        lock.lock();
-        try{
-            //获取当前cache里所有key对应的obj，挨个删除
-            Set<Long> keys = cache.keySet();
-            for (Long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                reference.remove(key);
-                cache.remove(key);
+        //获取当前cache里所有key对应的obj，挨个删除；和驱逐一样在桶锁外回写
+        for (Long key : cache.keySet()) {
+            boolean[] claimed = new boolean[1];
+            CacheEntry<T> entry = cache.computeIfPresent(key,(k,e) -> {
+                if(e.evicting != null){
+                    return e;
+                }
+                if(!e.future.isDone() || e.future.isCompletedExceptionally()){
+                    e.future.completeExceptionally(Error.CacheClosedException);
+                    count.decrementAndGet();
+                    policy.onRemove(k);
+                    return null;
+                }
+                e.evicting = new CompletableFuture<>();
+                claimed[0] = true;
+                return e;
+            });
+            if(claimed[0]){
+                writeBack(key,entry);
+            }else if(entry != null){
+                //正被其他线程驱逐
+                entry.evicting.join();
             }
-        }finally {
-            lock.unlock();
         }
     }
 
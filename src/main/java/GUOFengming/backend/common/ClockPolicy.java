@@ -0,0 +1,51 @@
+package GUOFengming.backend.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongPredicate;
+
+/**
+ * CLOCK驱逐策略
+ * 所有资源按进入缓存的顺序排成一个环，每个资源有一个访问位，命中时置为true。
+ * 时钟指针就是环的头部：访问位为true的资源清除访问位后移到环尾（相当于指针走过它），
+ * 遇到访问位为false且可以驱逐的资源时将其选为驱逐对象。
+ */
+public class ClockPolicy implements EvictionPolicy {
+
+    private final LinkedHashMap<Long,Boolean> ring = new LinkedHashMap<>();     //key -> 访问位
+
+    @Override
+    public synchronized void onInsert(long key) {
+        ring.put(key,true);
+    }
+
+    @Override
+    public synchronized void onAccess(long key) {
+        //LinkedHashMap默认按插入顺序排列，覆盖已有key不会改变它在环中的位置
+        ring.computeIfPresent(key,(k,v) -> true);
+    }
+
+    @Override
+    public synchronized void onRemove(long key) {
+        ring.remove(key);
+    }
+
+    @Override
+    public synchronized Long victim(LongPredicate evictable) {
+        //最多转两圈：第一圈清除访问位，第二圈一定能找到访问位为false的资源
+        int steps = ring.size() * 2;
+        for(int i = 0; i < steps; i ++){
+            Iterator<Map.Entry<Long,Boolean>> it = ring.entrySet().iterator();
+            Map.Entry<Long,Boolean> hand = it.next();
+            long key = hand.getKey();
+            if(!hand.getValue() && evictable.test(key)){
+                return key;
+            }
+            //指针走过该资源：清除访问位并移到环尾
+            it.remove();
+            ring.put(key,false);
+        }
+        return null;
+    }
+}
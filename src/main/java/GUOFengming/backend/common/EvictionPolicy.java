@@ -0,0 +1,53 @@
+package GUOFengming.backend.common;
+
+import java.util.function.LongPredicate;
+
+/**
+ * 缓存驱逐策略
+ * 缓存满时，AbstractCache 通过驱逐策略选出一个引用计数为0的资源，
+ * 调用 releaseForCache 回写后把它从缓存中删除，腾出位置给新资源。
+ *
+ * 实现类内部自行加锁，所有方法都可以被多个线程同时调用。
+ */
+public interface EvictionPolicy {
+
+    enum Type {
+        CLOCK,      //时钟算法，近似LRU，开销最小
+        LRU_K,      //LRU-2，按倒数第K次访问的时间淘汰，偶尔访问一次的页面会先被淘汰
+        TWO_Q       //2Q，新页面先进入FIFO队列，被再次访问才进入LRU队列，抗扫描
+    }
+
+    /**
+     * 资源被载入缓存
+     */
+    void onInsert(long key);
+
+    /**
+     * 缓存命中
+     */
+    void onAccess(long key);
+
+    /**
+     * 资源已被驱逐或删除
+     */
+    void onRemove(long key);
+
+    /**
+     * 选出一个驱逐对象，不会从策略中删除它，真正驱逐成功后由缓存调用 onRemove
+     * @param evictable 判断某个key当前能否被驱逐（引用计数是否为0）
+     * @return 驱逐对象的key，没有可以驱逐的资源时返回null
+     */
+    Long victim(LongPredicate evictable);
+
+    public static EvictionPolicy create(Type type,int capacity){
+        capacity = Math.max(capacity,1);
+        switch (type){
+            case LRU_K:
+                return new LRUKPolicy(capacity,2);
+            case TWO_Q:
+                return new TwoQueuePolicy(capacity);
+            default:
+                return new ClockPolicy();
+        }
+    }
+}
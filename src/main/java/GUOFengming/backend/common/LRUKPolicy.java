@@ -0,0 +1,103 @@
+package GUOFengming.backend.common;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.LongPredicate;
+
+/**
+ * LRU-K驱逐策略
+ * 为每个资源记录最近K次访问的逻辑时间，淘汰倒数第K次访问最早的资源。
+ * 访问不足K次的资源倒数第K次访问时间视为无穷远，最先被淘汰，它们之间按最近一次访问的时间做LRU。
+ * 被驱逐资源的访问历史会保留一段时间（最多capacity个），再次载入时恢复，
+ * 这样一个页面被淘汰后很快又被访问时不会被当成只访问过一次的页面。
+ * 缓存中的资源按（倒数第K次访问时间，最近一次访问时间）排序，每次访问O(log n)地调整位置，
+ * 挑选驱逐对象时从最前面开始找第一个可以驱逐的资源，不需要遍历所有资源。
+ */
+public class LRUKPolicy implements EvictionPolicy {
+
+    private final int k;
+    private long clock = 0;                             //逻辑时间，每次访问+1
+
+    //缓存中的一个资源和它的访问历史，[0]是最近一次，h[k - 1]是倒数第K次（访问不足K次时为0）
+    private static final class Entry {
+        final long key;
+        final long[] h;
+
+        Entry(long key,long[] h) {
+            this.key = key;
+            this.h = h;
+        }
+    }
+
+    private final HashMap<Long,Entry> history = new HashMap<>();           //缓存中的资源
+    //按驱逐的先后排序，修改访问历史前要先从中删除，改完再放回
+    private final TreeSet<Entry> order = new TreeSet<>(
+            Comparator.<Entry>comparingLong(e -> e.h[e.h.length - 1]).thenComparingLong(e -> e.h[0]));
+    private final LinkedHashMap<Long,long[]> retained;                      //已驱逐资源的访问历史
+
+    public LRUKPolicy(int capacity,int k) {
+        this.k = k;
+        this.retained = new LinkedHashMap<>(16,0.75f,false){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long,long[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    public synchronized void onInsert(long key) {
+        Entry old = history.remove(key);
+        if(old != null){
+            order.remove(old);
+        }
+        long[] h = retained.remove(key);
+        if(h == null){
+            h = new long[k];
+        }
+        Entry e = new Entry(key,h);
+        record(h);
+        history.put(key,e);
+        order.add(e);
+    }
+
+    @Override
+    public synchronized void onAccess(long key) {
+        Entry e = history.get(key);
+        if(e != null){
+            order.remove(e);
+            record(e.h);
+            order.add(e);
+        }
+    }
+
+    private void record(long[] h){
+        System.arraycopy(h,0,h,1,k - 1);
+        h[0] = ++ clock;
+    }
+
+    @Override
+    public synchronized void onRemove(long key) {
+        Entry e = history.remove(key);
+        if(e != null){
+            order.remove(e);
+            retained.put(key,e.h);
+        }
+    }
+
+    /**
+     * 按顺序找第一个可以驱逐的资源，只有排在前面的资源正被引用时才需要多看几个
+     */
+    @Override
+    public synchronized Long victim(LongPredicate evictable) {
+        for(Entry e : order){
+            if(evictable.test(e.key)){
+                return e.key;
+            }
+        }
+        return null;
+    }
+}
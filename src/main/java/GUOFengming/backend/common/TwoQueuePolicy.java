@@ -0,0 +1,84 @@
+package GUOFengming.backend.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.LongPredicate;
+
+/**
+ * 2Q驱逐策略（full 2Q）
+ * A1in：FIFO队列，第一次载入的资源放在这里，最多占缓存的1/4
+ * A1out：只记录key的幽灵队列，保存最近从A1in淘汰的资源，最多为缓存大小的1/2
+ * Am：LRU队列，在A1out中被再次载入的资源放在这里，认为是真正的热点
+ * 一次性扫描的页面只会经过A1in，不会把Am中的热点页面挤出去。
+ */
+public class TwoQueuePolicy implements EvictionPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    private final LinkedHashSet<Long> a1in = new LinkedHashSet<>();
+    private final LinkedHashSet<Long> a1out = new LinkedHashSet<>();
+    private final LinkedHashSet<Long> am = new LinkedHashSet<>();       //头部是最久未访问的
+
+    public TwoQueuePolicy(int capacity) {
+        this.kin = Math.max(capacity / 4,1);
+        this.kout = Math.max(capacity / 2,1);
+    }
+
+    @Override
+    public synchronized void onInsert(long key) {
+        if(a1out.remove(key)){
+            am.add(key);
+        }else{
+            a1in.add(key);
+        }
+    }
+
+    @Override
+    public synchronized void onAccess(long key) {
+        //A1in中的资源再次访问不做处理，只有Am做LRU调整
+        if(am.remove(key)){
+            am.add(key);
+        }
+    }
+
+    @Override
+    public synchronized void onRemove(long key) {
+        if(a1in.remove(key)){
+            a1out.add(key);
+            if(a1out.size() > kout){
+                Iterator<Long> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        }else{
+            am.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized Long victim(LongPredicate evictable) {
+        Long victim;
+        if(a1in.size() > kin){
+            victim = first(a1in,evictable);
+            if(victim == null){
+                victim = first(am,evictable);
+            }
+        }else{
+            victim = first(am,evictable);
+            if(victim == null){
+                victim = first(a1in,evictable);
+            }
+        }
+        return victim;
+    }
+
+    private static Long first(LinkedHashSet<Long> queue,LongPredicate evictable){
+        for(Long key : queue){
+            if(evictable.test(key)){
+                return key;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,177 @@
+package GUOFengming.backend.dm;
+
+import GUOFengming.backend.dm.logger.Logger;
+import GUOFengming.backend.dm.page.Page;
+import GUOFengming.backend.dm.page.PageOne;
+import GUOFengming.backend.dm.pageCache.PageCache;
+import GUOFengming.backend.utils.Panic;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * 模糊检查点（fuzzy checkpoint）
+ * 后台线程每隔一段时间做一次检查点，上一个检查点之后写入的日志太多时提前做（换段时检查），
+ * 做检查点时不停止其他线程的读写：
+ * 1、记下日志的末尾位置CkptLSN，以及当前最早的活跃事务的第一条日志UndoLSN
+ * 2、把没有被使用的脏页写回并保存到硬盘
+ * 3、还没有保存到硬盘的修改（正被使用的脏页等）中最早的recLSN作为RedoLSN
+ * 4、把这三个位置写入PageOne并保存到硬盘
+ * 5、回收RedoLSN和UndoLSN之前的日志段
+ * 崩溃后恢复只需要重放RedoLSN和UndoLSN之后的日志。
+ * 按日志量触发检查点时，没有长事务的情况下保留的日志不超过两个检查点之间的日志量加上一个段，磁盘占用和打开日志的时间都有上限。
+ *
+ * 正确性依赖于先把页面标记为脏、再写它的日志：这样页面的recLSN不会晚于修改它的日志，Page.setLSN检查这个顺序。
+ * 构造之后调用start启动后台线程。
+ */
+public class Checkpointer implements Runnable {
+
+    private final PageCache pc;
+    private final Logger lg;
+    private final LongSupplier oldestActiveLSN;
+    private final long intervalMillis;
+    private final long maxLogBytes;
+    private volatile long lastCkptLSN;          //上一个检查点的CkptLSN
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition wakeup = lock.newCondition();
+    private volatile boolean closed = false;
+    private boolean requested = false;          //日志量达到了maxLogBytes，由lock保护
+
+    private final Thread thread;
+
+    /**
+     * @param oldestActiveLSN 当前最早的活跃事务的第一条日志的LSN，没有活跃事务时返回Long.MAX_VALUE
+     * @param intervalMillis 检查点的间隔，0表示不启动后台线程，只在调用checkpoint时做
+     */
+    public Checkpointer(PageCache pc, Logger lg, LongSupplier oldestActiveLSN, long intervalMillis) {
+        this(pc, lg, oldestActiveLSN, intervalMillis, 0);
+    }
+
+    /**
+     * @param maxLogBytes 上一个检查点之后写入的日志超过这个大小时提前做检查点，0表示只按时间做
+     */
+    public Checkpointer(PageCache pc, Logger lg, LongSupplier oldestActiveLSN, long intervalMillis, long maxLogBytes) {
+        this.pc = pc;
+        this.lg = lg;
+        this.oldestActiveLSN = oldestActiveLSN;
+        this.intervalMillis = intervalMillis;
+        this.maxLogBytes = maxLogBytes;
+        this.lastCkptLSN = lg.getStartLSN();
+        pc.setRecLSNSource(lg::getEndLSN);
+        pc.setLogFlusher(lg::waitForDurable);
+        if(intervalMillis > 0 || maxLogBytes > 0) {
+            this.thread = new Thread(this, "checkpointer");
+            this.thread.setDaemon(true);
+        } else {
+            this.thread = null;
+        }
+    }
+
+    /**
+     * 注册换段的回调并启动后台线程，构造完成之后调用
+     */
+    public Checkpointer start() {
+        if(maxLogBytes > 0) {
+            lg.setRotateListener(this::onRotate);
+        }
+        if(thread != null) {
+            thread.start();
+        }
+        return this;
+    }
+
+    @Override
+    public void run() {
+        while(!closed) {
+            lock.lock();
+            try {
+                long nanos = intervalMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(intervalMillis) : Long.MAX_VALUE;
+                while(!closed && !requested && nanos > 0) {
+                    nanos = wakeup.awaitNanos(nanos);
+                }
+                requested = false;
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+            if(!closed) {
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * 日志换段时调用：上一个检查点之后写入的日志超过maxLogBytes时唤醒后台线程做检查点
+     */
+    private void onRotate() {
+        if(lg.getEndLSN() - lastCkptLSN < maxLogBytes) {
+            return;
+        }
+        lock.lock();
+        try {
+            requested = true;
+            wakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 做一次检查点
+     */
+    public synchronized void checkpoint() {
+        long ckptLSN = lg.getEndLSN();
+        lastCkptLSN = ckptLSN;
+        long undoLSN = Math.min(oldestActiveLSN.getAsLong(), ckptLSN);
+        pc.flushDirtyPages();
+        long redoLSN = Math.min(pc.getMinRecLSN(), ckptLSN);
+
+        Page one = null;
+        try {
+            one = pc.getPage(1);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            one.lock();
+            try {
+                PageOne.setCheckpoint(one, ckptLSN, redoLSN, undoLSN);
+            } finally {
+                one.unlock();
+            }
+            pc.flushPage(one);
+        } finally {
+            one.release();
+        }
+        //检查点已经保存到硬盘，恢复不会再读之前的日志
+        lg.recycle(Math.min(redoLSN, undoLSN));
+    }
+
+    /**
+     * 停止后台线程
+     */
+    public void close() {
+        if(maxLogBytes > 0) {
+            lg.setRotateListener(null);
+        }
+        lock.lock();
+        try {
+            closed = true;
+            wakeup.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if(thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
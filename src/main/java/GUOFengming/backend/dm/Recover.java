@@ -0,0 +1,394 @@
+package GUOFengming.backend.dm;
+
+import GUOFengming.backend.common.SubArray;
+import GUOFengming.backend.dm.logger.LogIterator;
+import GUOFengming.backend.dm.logger.Logger;
+import GUOFengming.backend.dm.page.Page;
+import GUOFengming.backend.dm.page.PageOne;
+import GUOFengming.backend.dm.page.PageSlotted;
+import GUOFengming.backend.dm.page.PageX;
+import GUOFengming.backend.dm.pageCache.PageCache;
+import GUOFengming.backend.tm.TransactionManagers;
+import GUOFengming.backend.utils.Panic;
+import GUOFengming.backend.utils.Parser;
+import GUOFengming.common.Error;
+import com.google.common.primitives.Bytes;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 数据库恢复
+ * 日志格式：
+ * updateLog: [LogType][XID][UID][OldRaw][NewRaw]
+ * insertLog: [LogType][XID][Pgno][Offset][Raw]
+ * 带槽目录的页面（PageSlotted）按槽号记录：
+ * slotInsertLog: [LogType][XID][Pgno][Slot][Raw]
+ * slotUpdateLog: [LogType][XID][Pgno][Slot][OldLength][OldRaw][NewRaw]
+ * slotDeleteLog: [LogType][XID][Pgno][Slot][OldRaw]
+ * 槽的日志重做时不跳过活跃事务（重复历史）：页面中记录了PageLSN，只重做晚于它的日志，
+ * 页面依次经过崩溃前的每个状态，不会因为新旧内容混在一起而放不下；之后和其他日志一起撤销活跃事务。
+ *
+ * 恢复分两步：
+ * 1、重做所有已经结束（提交或回滚）的事务的日志
+ * 2、倒序撤销所有还处于活跃状态的事务的日志，并把它们标记为回滚
+ *
+ * 有检查点时（PageOne中的CkptLSN不为0），只需要从RedoLSN开始重做，从UndoLSN开始查找活跃事务，
+ * 恢复时间由检查点的间隔决定，而不是整个日志的长度。
+ *
+ * 重做可以并行（RedoPipeline）：当前线程读日志，按页号把日志分给多个工作线程，同一页的日志仍然按顺序重做。
+ */
+public class Recover {
+
+    private static final byte LOG_TYPE_INSERT = 0;
+    private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_SLOT_INSERT = 2;
+    private static final byte LOG_TYPE_SLOT_UPDATE = 3;
+    private static final byte LOG_TYPE_SLOT_DELETE = 4;
+
+    private static final int REDO = 0;
+    private static final int UNDO = 1;
+
+    //数据项的有效标志位，撤销插入时把它标记为无效
+    private static final int OF_VALID = 0;
+
+    static class InsertLogInfo {
+        long xid;
+        int pgno;
+        short offset;
+        byte[] raw;
+    }
+
+    static class UpdateLogInfo {
+        long xid;
+        int pgno;
+        short offset;
+        byte[] oldRaw;
+        byte[] newRaw;
+    }
+
+    static class SlotLogInfo {
+        byte type;
+        long xid;
+        int pgno;
+        short slot;
+        byte[] oldRaw;      //插入时为null
+        byte[] newRaw;      //删除时为null
+    }
+
+    public static void recover(TransactionManagers tm, Logger lg, PageCache pc) {
+        recover(tm, lg, pc, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param redoThreads 重做使用的工作线程数，不大于1时在当前线程中重做
+     */
+    public static void recover(TransactionManagers tm, Logger lg, PageCache pc, int redoThreads) {
+        long redoLSN = 0;
+        long undoLSN = 0;
+        try {
+            Page one = pc.getPage(1);
+            try {
+                if(PageOne.getCheckpointLSN(one) != 0) {
+                    redoLSN = PageOne.getRedoLSN(one);
+                    undoLSN = PageOne.getUndoLSN(one);
+                }
+            } finally {
+                one.release();
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        //起点之前的日志已经被回收，恢复需要的日志必须都还在
+        if(Math.min(redoLSN, undoLSN) < lg.getStartLSN()) {
+            Panic.panic(Error.BadLogFileException);
+        }
+
+        //检查点之前的页面都已经在文件中，只需要看之后的日志引用了哪些页面
+        //只需要每条日志的页号，直接在迭代器的缓冲区上读，不复制日志
+        int maxPgno = pc.getPageNumber();
+        try(LogIterator it = lg.iterator(Math.min(redoLSN, undoLSN))) {
+            while(true) {
+                SubArray log = it.next();
+                if(log == null) break;
+                int pgno = parsePgno(log);
+                if(pgno > maxPgno) {
+                    maxPgno = pgno;
+                }
+            }
+        }
+        if(maxPgno == 0) {
+            maxPgno = 1;
+        }
+        pc.truncateByPgno(maxPgno);
+
+        redoTransactions(tm, lg, pc, redoLSN, redoThreads);
+        undoTransactions(tm, lg, pc, undoLSN);
+    }
+
+    private static void redoTransactions(TransactionManagers tm, Logger lg, PageCache pc, long redoLSN, int threads) {
+        RedoPipeline pipeline = threads > 1 ? new RedoPipeline(pc, threads) : null;
+        try(LogIterator it = lg.iterator(redoLSN)) {
+            while(true) {
+                SubArray log = it.next();
+                if(log == null) break;
+                //事务状态只在读日志的线程中查询，工作线程只修改页面
+                if(!isSlotLog(log) && tm.isActive(parseXid(log))) {
+                    continue;
+                }
+                byte[] raw = Arrays.copyOfRange(log.raw, log.start, log.end);
+                if(pipeline != null) {
+                    pipeline.submit(parsePgno(log), it.getLSN(), raw);
+                } else {
+                    redo(pc, it.getLSN(), raw);
+                }
+            }
+        }
+        if(pipeline != null) {
+            pipeline.finish();
+        }
+    }
+
+    /**
+     * 重做一条日志，lsn是它的LSN
+     */
+    static void redo(PageCache pc, long lsn, byte[] log) {
+        doLog(pc, lsn, log, REDO);
+    }
+
+    private static void doLog(PageCache pc, long lsn, byte[] log, int flag) {
+        switch(log[OF_TYPE]) {
+            case LOG_TYPE_INSERT:
+                doInsertLog(pc, log, flag);
+                break;
+            case LOG_TYPE_UPDATE:
+                doUpdateLog(pc, log, flag);
+                break;
+            default:
+                doSlotLog(pc, lsn, log, flag);
+        }
+    }
+
+    private static void undoTransactions(TransactionManagers tm, Logger lg, PageCache pc, long undoLSN) {
+        Map<Long, List<byte[]>> logCache = new HashMap<>();
+        lg.rewind(undoLSN);
+        while(true) {
+            byte[] log = lg.next();
+            if(log == null) break;
+            long xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_XID + 8));
+            if(tm.isActive(xid)) {
+                logCache.computeIfAbsent(xid, k -> new ArrayList<>()).add(log);
+            }
+        }
+        //释放next使用的迭代器，否则它正在读的段一直不能回收
+        lg.rewind();
+
+        //对所有活跃事务的日志进行倒序撤销
+        for(Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
+            List<byte[]> logs = entry.getValue();
+            for(int i = logs.size() - 1; i >= 0; i --) {
+                doLog(pc, 0, logs.get(i), UNDO);
+            }
+            tm.abort(entry.getKey());
+        }
+    }
+
+    private static boolean isSlotLog(SubArray log) {
+        byte type = log.raw[log.start + OF_TYPE];
+        return type != LOG_TYPE_INSERT && type != LOG_TYPE_UPDATE;
+    }
+
+    private static long parseXid(SubArray log) {
+        return ByteBuffer.wrap(log.raw).getLong(log.start + OF_XID);
+    }
+
+    private static int parsePgno(SubArray log) {
+        if(log.raw[log.start + OF_TYPE] == LOG_TYPE_UPDATE) {
+            //UID的高32位是页号
+            return ByteBuffer.wrap(log.raw).getInt(log.start + OF_UPDATE_UID);
+        }
+        //插入日志和槽的日志页号的位置相同
+        return ByteBuffer.wrap(log.raw).getInt(log.start + OF_INSERT_PGNO);
+    }
+
+    // [LogType] [XID] [UID] [OldRaw] [NewRaw]
+    private static final int OF_TYPE = 0;
+    private static final int OF_XID = OF_TYPE + 1;
+    private static final int OF_UPDATE_UID = OF_XID + 8;
+    private static final int OF_UPDATE_RAW = OF_UPDATE_UID + 8;
+
+    public static byte[] updateLog(long xid, long uid, byte[] oldRaw, byte[] newRaw) {
+        byte[] logType = {LOG_TYPE_UPDATE};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] uidRaw = Parser.long2Byte(uid);
+        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+    }
+
+    private static UpdateLogInfo parseUpdateLog(byte[] log) {
+        UpdateLogInfo li = new UpdateLogInfo();
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
+        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        li.offset = (short)(uid & ((1L << 16) - 1));
+        uid >>>= 32;
+        li.pgno = (int)(uid & ((1L << 32) - 1));
+        int length = (log.length - OF_UPDATE_RAW) / 2;
+        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length);
+        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + length * 2);
+        return li;
+    }
+
+    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
+        UpdateLogInfo xi = parseUpdateLog(log);
+        byte[] raw = flag == REDO ? xi.newRaw : xi.oldRaw;
+        Page pg = null;
+        try {
+            pg = pc.getPage(xi.pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            PageX.recoverUpdate(pg, raw, xi.offset);
+        } finally {
+            pg.release();
+        }
+    }
+
+    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    private static final int OF_INSERT_PGNO = OF_XID + 8;
+    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4;
+    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
+
+    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+        byte[] logTypeRaw = {LOG_TYPE_INSERT};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
+        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+    }
+
+    private static InsertLogInfo parseInsertLog(byte[] log) {
+        InsertLogInfo li = new InsertLogInfo();
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
+        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        return li;
+    }
+
+    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
+        InsertLogInfo li = parseInsertLog(log);
+        Page pg = null;
+        try {
+            pg = pc.getPage(li.pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            if(flag == UNDO) {
+                //撤销插入只是把数据项标记为无效
+                li.raw[OF_VALID] = (byte)1;
+            }
+            PageX.recoverInsert(pg, li.raw, li.offset);
+        } finally {
+            pg.release();
+        }
+    }
+
+    // [LogType] [XID] [Pgno] [Slot] ...
+    private static final int OF_SLOT_PGNO = OF_XID + 8;
+    private static final int OF_SLOT = OF_SLOT_PGNO + 4;
+    private static final int OF_SLOT_RAW = OF_SLOT + 2;
+
+    /**
+     * 插入pg的日志，调用时需要持有pg的排它锁，槽号是下一次插入使用的槽
+     */
+    public static byte[] slotInsertLog(long xid, Page pg, byte[] raw) {
+        return slotLog(LOG_TYPE_SLOT_INSERT, xid, pg.getPageNumber(), PageSlotted.getInsertSlot(pg), raw);
+    }
+
+    /**
+     * 把pgno页slot号记录从oldRaw更新为newRaw的日志，两者长度可以不同
+     */
+    public static byte[] slotUpdateLog(long xid, int pgno, short slot, byte[] oldRaw, byte[] newRaw) {
+        return slotLog(LOG_TYPE_SLOT_UPDATE, xid, pgno, slot,
+                Bytes.concat(Parser.short2Byte((short)oldRaw.length), oldRaw, newRaw));
+    }
+
+    /**
+     * 删除pgno页slot号记录的日志，oldRaw是删除前的内容，撤销时放回原来的槽
+     */
+    public static byte[] slotDeleteLog(long xid, int pgno, short slot, byte[] oldRaw) {
+        return slotLog(LOG_TYPE_SLOT_DELETE, xid, pgno, slot, oldRaw);
+    }
+
+    private static byte[] slotLog(byte type, long xid, int pgno, short slot, byte[] raw) {
+        byte[] logTypeRaw = {type};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        byte[] slotRaw = Parser.short2Byte(slot);
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw, raw);
+    }
+
+    private static SlotLogInfo parseSlotLog(byte[] log) {
+        SlotLogInfo li = new SlotLogInfo();
+        li.type = log[OF_TYPE];
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_SLOT_PGNO));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_SLOT_PGNO, OF_SLOT));
+        li.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_SLOT, OF_SLOT_RAW));
+        switch(li.type) {
+            case LOG_TYPE_SLOT_INSERT:
+                li.newRaw = Arrays.copyOfRange(log, OF_SLOT_RAW, log.length);
+                break;
+            case LOG_TYPE_SLOT_UPDATE:
+                int oldLength = Short.toUnsignedInt(Parser.parseShort(Arrays.copyOfRange(log, OF_SLOT_RAW, OF_SLOT_RAW + 2)));
+                li.oldRaw = Arrays.copyOfRange(log, OF_SLOT_RAW + 2, OF_SLOT_RAW + 2 + oldLength);
+                li.newRaw = Arrays.copyOfRange(log, OF_SLOT_RAW + 2 + oldLength, log.length);
+                break;
+            default:
+                li.oldRaw = Arrays.copyOfRange(log, OF_SLOT_RAW, log.length);
+        }
+        return li;
+    }
+
+    /**
+     * 重做把槽设为newRaw（删除时清空），撤销把槽设回oldRaw（插入时清空）
+     * 重做时跳过页面已经包含的日志（LSN不晚于页面的PageLSN）
+     */
+    private static void doSlotLog(PageCache pc, long lsn, byte[] log, int flag) {
+        SlotLogInfo li = parseSlotLog(log);
+        byte[] raw = flag == REDO ? li.newRaw : li.oldRaw;
+        Page pg = null;
+        try {
+            pg = pc.getPage(li.pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        pg.lock();
+        try {
+            if(!PageSlotted.isSlotted(pg)) {
+                //页面的初始内容还没有写回文件
+                PageSlotted.recoverInit(pg);
+            }
+            if(flag == REDO && PageSlotted.getLSN(pg) >= lsn) {
+                return;
+            }
+            if(raw == null) {
+                PageSlotted.recoverDelete(pg, li.slot);
+            } else {
+                PageSlotted.recoverInsert(pg, raw, li.slot);
+            }
+            if(flag == REDO) {
+                PageSlotted.recoverLSN(pg, lsn);
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        } finally {
+            pg.unlock();
+            pg.release();
+        }
+    }
+}
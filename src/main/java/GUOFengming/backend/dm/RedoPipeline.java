@@ -0,0 +1,110 @@
+package GUOFengming.backend.dm;
+
+import GUOFengming.backend.dm.pageCache.PageCache;
+import GUOFengming.backend.utils.Panic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 并行重做
+ * 读日志的线程（调用submit的线程）解码日志、过滤掉活跃事务的日志，再按页号分给工作线程：
+ * 页号为pgno的日志总是交给第 pgno % threads 个工作线程，同一页的日志由同一个线程按日志顺序重做，
+ * 不同页的日志在不同线程中并行重做。
+ * 日志攒成一批再交给工作线程，队列满时读日志的线程等待，内存占用有上限。
+ */
+class RedoPipeline {
+
+    //一条要重做的日志和它的LSN
+    private static class Redo {
+        final long lsn;
+        final byte[] log;
+
+        Redo(long lsn, byte[] log) {
+            this.lsn = lsn;
+            this.log = log;
+        }
+    }
+
+    private static final int BATCH_SIZE = 256;      //每批的日志条数
+    private static final int QUEUE_BATCHES = 16;    //每个工作线程最多排队的批数
+
+    private static final List<Redo> END = new ArrayList<>();  //通知工作线程结束
+
+    private final PageCache pc;
+    private final List<BlockingQueue<List<Redo>>> queues = new ArrayList<>();
+    private final List<List<Redo>> batches = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+
+    RedoPipeline(PageCache pc, int threads) {
+        this.pc = pc;
+        for(int i = 0; i < threads; i ++) {
+            BlockingQueue<List<Redo>> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+            queues.add(queue);
+            batches.add(new ArrayList<>(BATCH_SIZE));
+            Thread worker = new Thread(() -> work(queue), "redo-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * 提交一条需要重做的日志，log交给工作线程后不能再修改
+     */
+    void submit(int pgno, long lsn, byte[] log) {
+        int i = Integer.remainderUnsigned(pgno, queues.size());
+        List<Redo> batch = batches.get(i);
+        batch.add(new Redo(lsn, log));
+        if(batch.size() >= BATCH_SIZE) {
+            put(i, batch);
+            batches.set(i, new ArrayList<>(BATCH_SIZE));
+        }
+    }
+
+    /**
+     * 交出剩下的日志，等待所有工作线程重做完
+     */
+    void finish() {
+        for(int i = 0; i < queues.size(); i ++) {
+            if(!batches.get(i).isEmpty()) {
+                put(i, batches.get(i));
+            }
+            put(i, END);
+        }
+        for(Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    private void put(int i, List<Redo> batch) {
+        try {
+            queues.get(i).put(batch);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void work(BlockingQueue<List<Redo>> queue) {
+        while(true) {
+            List<Redo> batch = null;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+            if(batch == END) {
+                return;
+            }
+            for(Redo redo : batch) {
+                Recover.redo(pc, redo.lsn, redo.log);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package GUOFengming.backend.dm.logger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 日志缓冲区：多个写日志的线程无锁并发写入，一个drainer把写好的部分写到日志段文件
+ * 缓冲区是堆外内存上的环，LSN为lsn的字节放在环的 lsn % capacity 处。
+ *
+ * 写一条日志分三步：
+ * 1、claim：用CAS在最后一个段的末尾占用这条日志的空间，得到它的LSN；
+ *    这条日志会让段超过segmentSize时，把段的末尾标记为关闭，换到下一个段（BaseLSN是关闭时的末尾），
+ *    换段的线程把下一个段的Header占用的LSN作为空隙发布出去，其他线程在换段期间自旋等待
+ * 2、put：等环中有空间（drainer写走了足够多的数据），直接把[Size][Checksum][Data]写进环里
+ * 3、按LSN顺序发布：等前面的日志都发布后，把published推进到自己的末尾
+ * published之前的数据都是完整的，drainer可以把written到published之间的数据写到文件。
+ */
+class LogBuffer {
+
+    /**
+     * 最后一个段：end是下一条日志在段中的偏移，CLOSED表示正在换段
+     */
+    private static final class Tail {
+        final long base;
+        final AtomicLong end;
+
+        Tail(long base, long end) {
+            this.base = base;
+            this.end = new AtomicLong(end);
+        }
+    }
+
+    private static final long CLOSED = -1;
+
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final long segmentSize;
+
+    private volatile Tail tail;
+    private final AtomicLong published = new AtomicLong();     //这之前的日志都已经完整地写进环里
+    private volatile long written;                              //这之前的日志都已经写到文件，环中的空间可以重用
+    //换段的位置（旧段的末尾，也是新段的BaseLSN），按LSN顺序
+    private final ConcurrentLinkedQueue<Long> rotations = new ConcurrentLinkedQueue<>();
+
+    LogBuffer(int capacity, long segmentSize) {
+        this.capacity = capacity;
+        this.segmentSize = segmentSize;
+        this.ring = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * 从段base中偏移end处开始写日志，只能在没有其他线程写日志时调用
+     */
+    void reset(long base, long end) {
+        tail = new Tail(base, end);
+        published.set(base + end);
+        written = base + end;
+        rotations.clear();
+    }
+
+    /**
+     * 写入一条日志，返回它的LSN，返回时日志已经发布
+     * 日志（包括头）不能超过环的大小，更大的日志由LoggerImpl直接写到段文件
+     * @param drain 环中没有空间时调用，尝试把已发布的日志写到文件
+     */
+    long append(byte[] data, LogFormat format, Runnable drain) {
+        int length = LoggerImpl.OF_DATA + data.length;
+        long lsn = claim(length);
+
+        int spins = 0;
+        while(lsn + length - written > capacity) {
+            drain.run();
+            spins = pause(spins);
+        }
+        int p = index(lsn);
+        putInt(p, data.length);
+        putInt(index(lsn + LoggerImpl.OF_CHECKSUM), format.checksum(data, 0, data.length));
+        put(index(lsn + LoggerImpl.OF_DATA), data);
+
+        publish(lsn, lsn + length);
+        return lsn;
+    }
+
+    /**
+     * 占用length字节的LSN，必要时换段
+     */
+    long claim(int length) {
+        int spins = 0;
+        while(true) {
+            Tail t = tail;
+            long end = t.end.get();
+            if(end == CLOSED) {
+                //其他线程正在换段
+                spins = pause(spins);
+                continue;
+            }
+            if(end > LogSegment.HEADER_SIZE && end + length > segmentSize) {
+                if(t.end.compareAndSet(end, CLOSED)) {
+                    long base = t.base + end;
+                    rotations.add(base);
+                    tail = new Tail(base, LogSegment.HEADER_SIZE);
+                    //新段的Header不在环中，作为空隙发布
+                    publish(base, base + LogSegment.HEADER_SIZE);
+                }
+                continue;
+            }
+            if(t.end.compareAndSet(end, end + length)) {
+                return t.base + end;
+            }
+        }
+    }
+
+    /**
+     * 等from之前的日志都发布后，发布[from, to)
+     */
+    void publish(long from, long to) {
+        int spins = 0;
+        while(published.get() != from) {
+            spins = pause(spins);
+        }
+        published.set(to);
+    }
+
+    static int pause(int spins) {
+        if(spins < 64) {
+            Thread.onSpinWait();
+        } else {
+            Thread.yield();
+        }
+        return spins + 1;
+    }
+
+    private int index(long lsn) {
+        return (int)(lsn % capacity);
+    }
+
+    private void putInt(int p, int v) {
+        if(p + 4 <= capacity) {
+            ring.putInt(p, v);
+        } else {
+            for(int i = 0; i < 4; i ++) {
+                ring.put((p + i) % capacity, (byte)(v >>> (24 - 8 * i)));
+            }
+        }
+    }
+
+    private void put(int p, byte[] src) {
+        int first = Math.min(src.length, capacity - p);
+        ring.put(p, src, 0, first);
+        if(first < src.length) {
+            ring.put(0, src, first, src.length - first);
+        }
+    }
+
+    /**
+     * 环能放下的最大日志长度（包括头）
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 已分配LSN的日志的末尾，正在换段时返回-1
+     */
+    long claimedEnd() {
+        Tail t = tail;
+        long end = t.end.get();
+        return end == CLOSED ? -1 : t.base + end;
+    }
+
+    long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * drainer调用：lsn之前的日志已经写到文件
+     */
+    void setWritten(long lsn) {
+        written = lsn;
+    }
+
+    /**
+     * 下一个换段的位置，没有时返回null
+     */
+    Long nextRotation() {
+        return rotations.peek();
+    }
+
+    void rotated() {
+        rotations.poll();
+    }
+
+    /**
+     * 环中LSN从lsn开始、长度为length的数据，可能分成两段（环的末尾和开头）
+     */
+    ByteBuffer[] slice(long lsn, int length) {
+        int p = index(lsn);
+        int first = Math.min(length, capacity - p);
+        if(first == length) {
+            return new ByteBuffer[]{ring.slice(p, length)};
+        }
+        return new ByteBuffer[]{ring.slice(p, first), ring.slice(0, length - first)};
+    }
+
+    /**
+     * 把环中lsn处的length个字节复制到dst
+     */
+    void get(long lsn, byte[] dst, int length) {
+        int p = index(lsn);
+        int first = Math.min(length, capacity - p);
+        ring.get(p, dst, 0, first);
+        if(first < length) {
+            ring.get(0, dst, first, length - first);
+        }
+    }
+
+    int getInt(long lsn) {
+        int p = index(lsn);
+        if(p + 4 <= capacity) {
+            return ring.getInt(p);
+        }
+        int v = 0;
+        for(int i = 0; i < 4; i ++) {
+            v = (v << 8) | (ring.get((p + i) % capacity) & 0xFF);
+        }
+        return v;
+    }
+}
@@ -0,0 +1,103 @@
+package GUOFengming.backend.dm.logger;
+
+/**
+ * 日志格式的版本，记录在每个日志段的Header中，决定段中日志的校验和算法
+ * SEED：旧格式，逐字节计算 xCheck * SEED + b，日志校验和与XChecksum都要遍历每条日志的全部字节
+ * CRC32C：日志校验和是Data的CRC32C（JVM使用硬件指令计算）；
+ *         XChecksum把上一个XChecksum和这条日志的[Size][Checksum]一起计算CRC32C，
+ *         Checksum已经覆盖了Data，不需要再遍历一遍Data
+ * FRAMED：日志按块保存（见LogFrame），每条日志不再有校验和，由块的校验和（CRC32C）覆盖；
+ *         XChecksum把上一个XChecksum和块的Header一起计算CRC32C
+ */
+enum LogFormat {
+    SEED((short)1) {
+        @Override
+        int checksum(byte[] buf, int off, int len) {
+            return seed(0, buf, off, len);
+        }
+
+        @Override
+        int foldXChecksum(int xCheck, byte[] log, int off, int len) {
+            return seed(xCheck, log, off, len);
+        }
+    },
+    CRC32C((short)2) {
+        @Override
+        int checksum(byte[] buf, int off, int len) {
+            java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+            crc.update(buf, off, len);
+            return (int)crc.getValue();
+        }
+
+        @Override
+        int foldXChecksum(int xCheck, byte[] log, int off, int len) {
+            return crc32c(xCheck, log, off, LoggerImpl.OF_DATA);
+        }
+    },
+    FRAMED((short)3) {
+        @Override
+        int checksum(byte[] buf, int off, int len) {
+            return 0;
+        }
+
+        @Override
+        int foldXChecksum(int xCheck, byte[] frameHeader, int off, int len) {
+            return crc32c(xCheck, frameHeader, off, len);
+        }
+    };
+
+    private static final int SEED_VALUE = 13331;
+
+    final short version;
+
+    LogFormat(short version) {
+        this.version = version;
+    }
+
+    /**
+     * 计算一条日志的Data的校验和，分帧的格式中日志没有校验和，返回0
+     */
+    abstract int checksum(byte[] buf, int off, int len);
+
+    /**
+     * 把从off开始、长度为len的一条完整日志（[Size][Checksum][Data]）累加到XChecksum上
+     * 分帧的格式累加的是一个块的Header
+     */
+    abstract int foldXChecksum(int xCheck, byte[] log, int off, int len);
+
+    /**
+     * 日志是否按块保存（LogFrame）
+     */
+    boolean framed() {
+        return this == FRAMED;
+    }
+
+    private static int seed(int xCheck, byte[] buf, int off, int len) {
+        for (int i = off; i < off + len; i ++) {
+            xCheck = xCheck * SEED_VALUE + buf[i];
+        }
+        return xCheck;
+    }
+
+    private static int crc32c(int xCheck, byte[] buf, int off, int len) {
+        java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+        crc.update(xCheck >>> 24);
+        crc.update(xCheck >>> 16);
+        crc.update(xCheck >>> 8);
+        crc.update(xCheck);
+        crc.update(buf, off, len);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Header中记录的版本对应的格式，不认识的版本返回null
+     */
+    static LogFormat of(short version) {
+        for (LogFormat format : values()) {
+            if (format.version == version) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
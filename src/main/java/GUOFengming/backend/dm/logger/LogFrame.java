@@ -0,0 +1,144 @@
+package GUOFengming.backend.dm.logger;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * 分帧格式（LogFormat.FRAMED）的日志段中，日志按块保存：[Header][Frame1][Frame2]...[FrameN][Trailer]
+ * drainer每次把缓冲区中的一批日志写到段文件时，这一批日志打包成一个块（Frame）：
+ * [Length][RawLength][StoredLength][Checksum][Payload]
+ *   Length 是块中日志占用的LSN长度（按[Size][Checksum][Data]计算），下一个块的第一条日志的LSN = 这个块的LSN + Length
+ *   Payload 解压后是RawLength字节：[Size][Data][Size][Data]...，Size是变长整数（每字节7位，高位表示后面还有），
+ *          每条日志不再单独保存校验和
+ *   StoredLength 是Payload在文件中的字节数，小于RawLength时Payload经过压缩（LzCodec），否则没有压缩
+ *   Checksum 是前12字节和Payload的CRC32C
+ * LSN仍然按不分帧时的位置分配，所以分帧的段中LSN和文件内偏移不同，段的End和下一个段的BaseLSN都按LSN计算。
+ *
+ * 一个LogFrame对象是drainer打包块用的缓冲区，只在一个线程中使用。
+ */
+class LogFrame {
+    static final int OF_LENGTH = 0;
+    static final int OF_RAW = OF_LENGTH + 4;
+    static final int OF_STORED = OF_RAW + 4;
+    static final int OF_CHECKSUM = OF_STORED + 4;
+    static final int HEADER_SIZE = OF_CHECKSUM + 4;
+
+    final byte[] header = new byte[HEADER_SIZE];
+    private final boolean compress;
+
+    private byte[] logs = new byte[0];      //这一批日志，就地整理成未压缩的Payload
+    private byte[] packed = new byte[0];    //压缩后的Payload
+    private byte[] payload;
+    private int stored;
+    private int length;                     //块中日志占用的LSN长度
+
+    LogFrame(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * 把缓冲区中从from开始、长度为length的一批日志打包成一个块
+     * @return 块的长度
+     */
+    int encode(LogBuffer buffer, long from, int length) {
+        ensureLogs(length);
+        buffer.get(from, logs, length);
+        return pack(length);
+    }
+
+    /**
+     * 把若干条日志打包成一个块，截断时重写被截断的块用
+     */
+    int encode(List<byte[]> records) {
+        int length = 0;
+        for(byte[] data : records) {
+            length += LoggerImpl.OF_DATA + data.length;
+        }
+        ensureLogs(length);
+        ByteBuffer bb = ByteBuffer.wrap(logs);
+        int p = 0;
+        for(byte[] data : records) {
+            bb.putInt(p, data.length);
+            System.arraycopy(data, 0, logs, p + LoggerImpl.OF_DATA, data.length);
+            p += LoggerImpl.OF_DATA + data.length;
+        }
+        return pack(length);
+    }
+
+    /**
+     * 刚打包好的块中日志占用的LSN长度
+     */
+    int getLogicalLength() {
+        return length;
+    }
+
+    /**
+     * 刚打包好的块：[Header, Payload]
+     */
+    ByteBuffer[] buffers() {
+        return new ByteBuffer[]{ByteBuffer.wrap(header), ByteBuffer.wrap(payload, 0, stored)};
+    }
+
+    private void ensureLogs(int length) {
+        if(logs.length < length) {
+            logs = new byte[length];
+        }
+    }
+
+    /**
+     * logs中的[Size][Checksum][Data]就地改写成[Size][Data]（Size变长，不会覆盖还没有读到的日志），
+     * 需要时再压缩，最后填写Header
+     */
+    private int pack(int length) {
+        ByteBuffer bb = ByteBuffer.wrap(logs);
+        int raw = 0;
+        for(int p = 0; p < length; ) {
+            int size = bb.getInt(p);
+            raw = putSize(logs, raw, size);
+            System.arraycopy(logs, p + LoggerImpl.OF_DATA, logs, raw, size);
+            raw += size;
+            p += LoggerImpl.OF_DATA + size;
+        }
+
+        this.length = length;
+        payload = logs;
+        stored = raw;
+        if(compress) {
+            if(packed.length < raw) {
+                packed = new byte[raw];
+            }
+            int n = LzCodec.compress(logs, 0, raw, packed, raw - 1);
+            if(n >= 0) {
+                payload = packed;
+                stored = n;
+            }
+        }
+
+        ByteBuffer h = ByteBuffer.wrap(header);
+        h.putInt(OF_LENGTH, length);
+        h.putInt(OF_RAW, raw);
+        h.putInt(OF_STORED, stored);
+        h.putInt(OF_CHECKSUM, checksum(header, 0, payload, 0, stored));
+        return HEADER_SIZE + stored;
+    }
+
+    private static int putSize(byte[] buf, int p, int size) {
+        while((size & ~0x7F) != 0) {
+            buf[p ++] = (byte)((size & 0x7F) | 0x80);
+            size >>>= 7;
+        }
+        buf[p ++] = (byte)size;
+        return p;
+    }
+
+    /**
+     * 块的校验和：Header的前12字节和Payload的CRC32C
+     */
+    static int checksum(byte[] header, int h, byte[] payload, int p, int stored) {
+        CRC32C crc = new CRC32C();
+        crc.update(header, h, OF_CHECKSUM);
+        crc.update(payload, p, stored);
+        return (int)crc.getValue();
+    }
+}
@@ -0,0 +1,294 @@
+package GUOFengming.backend.dm.logger;
+
+import GUOFengming.backend.common.SubArray;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 顺序读日志的迭代器
+ * 按大块把日志段读进缓冲区，next返回的是缓冲区中这条日志的Data部分（SubArray），不复制；
+ * 校验和也直接在缓冲区上计算，读日志几乎不分配内存。
+ * 返回的SubArray只在下一次调用next之前有效，需要保留时调用者自己复制。
+ * 分帧的段（LogFrame）按块读：校验整个块，需要时解压，再从块中依次取出日志，对调用者是透明的。
+ *
+ * 读到日志末尾时next返回null，之后再写入的日志可以继续用next读到（追读）；
+ * 读到损坏的日志时也返回null。
+ * 迭代器只能在一个线程中使用；正在读的段被迭代器引用（pin），recycle回收它时等迭代器读完再删除文件，
+ * 所以用完迭代器必须调用close。
+ */
+public class LogIterator implements AutoCloseable {
+    static final int BUFFER_SIZE = 1 << 20;
+
+    private final LoggerImpl lg;        //为null时只读一个段（打开日志、截断时校验当前段）
+    private final long fixedLimit;      //只读一个段时读到文件的哪里为止
+
+    private LogSegment seg;
+    private boolean closed;
+    private long offset;                //下一条日志相对BaseLSN的偏移
+    private long lsn = -1;              //上一次返回的日志的LSN
+
+    private byte[] buf;
+    private long bufOffset;             //buf[0]在段文件中的偏移
+    private int bufEnd;                 //buf中有效数据的长度
+    private int last;                   //上一次返回的日志在buf中的位置（不分帧的段）
+
+    //分帧的段
+    private long fileOffset;            //下一个块在段文件中的偏移
+    private long frameOffset;           //块中下一条日志相对BaseLSN的偏移
+    private long skipTo;                //定位的位置，之前的日志跳过
+    private byte[] frame;               //当前块的Payload（未压缩时就是buf）
+    private int framePos;               //块中下一条日志在frame中的位置
+    private int frameEnd;
+    private byte[] unpacked;            //解压用的缓冲区
+    private final byte[] frameHeader = new byte[LogFrame.HEADER_SIZE];
+
+    LogIterator(LoggerImpl lg, long lsn) {
+        this.lg = lg;
+        this.fixedLimit = -1;
+        this.seg = lg.pinSegmentFor(lsn);
+        start(Math.max(lsn - seg.baseLSN, LogSegment.HEADER_SIZE));
+    }
+
+    LogIterator(LogSegment seg, long limit) {
+        this.lg = null;
+        this.fixedLimit = limit;
+        this.seg = seg;
+        start(LogSegment.HEADER_SIZE);
+    }
+
+    //从当前段中偏移为offset的日志开始读
+    private void start(long offset) {
+        this.offset = offset;
+        this.skipTo = offset;
+        this.fileOffset = LogSegment.HEADER_SIZE;
+        this.frameOffset = LogSegment.HEADER_SIZE;
+        this.framePos = 0;
+        this.frameEnd = 0;
+        this.bufEnd = 0;
+    }
+
+    /**
+     * 读下一条日志，返回它的Data；没有更多完整的日志时返回null
+     */
+    public SubArray next() {
+        while(true) {
+            long limit = fixedLimit >= 0 ? fixedLimit : seg.fileEnd;
+            SubArray data = seg.format.framed() ? readFramed(limit) : readLog(limit);
+            if(data != null || lg == null) {
+                return data;
+            }
+            if(filePosition() != limit) {
+                return null;                //损坏的日志
+            }
+            //当前段读完了，段已经封存时继续读下一个段
+            LogSegment next = lg.pinNextSegment(seg);
+            if(next == null) {
+                return null;
+            }
+            if(limit != seg.fileEnd) {
+                lg.unpin(next);
+                continue;                   //封存之前又写入了日志
+            }
+            lg.unpin(seg);
+            seg = next;
+            start(LogSegment.HEADER_SIZE);
+        }
+    }
+
+    /**
+     * 不再读日志，释放正在读的段；只读一个段的迭代器不引用段
+     */
+    @Override
+    public void close() {
+        if(lg != null && !closed) {
+            closed = true;
+            lg.unpin(seg);
+        }
+    }
+
+    //已经读到的文件内偏移，分帧的段中当前块没有读完时返回-1
+    private long filePosition() {
+        if(!seg.format.framed()) {
+            return offset;
+        }
+        return framePos < frameEnd ? -1 : fileOffset;
+    }
+
+    private SubArray readLog(long limit) {
+        if(offset + LoggerImpl.OF_DATA > limit) {
+            return null;
+        }
+        fill(offset, LoggerImpl.OF_DATA, limit);
+        int p = (int)(offset - bufOffset);
+        int size = getInt(p);
+        //日志条目可能损坏，拒绝解析该日志，避免错误恢复或程序崩溃。
+        if(size < 0 || offset + LoggerImpl.OF_DATA + size > limit) {
+            return null;
+        }
+        fill(offset, LoggerImpl.OF_DATA + size, limit);
+        p = (int)(offset - bufOffset);
+        int start = p + LoggerImpl.OF_DATA;
+        if(seg.format.checksum(buf, start, size) != getInt(p + LoggerImpl.OF_CHECKSUM)) {
+            return null;
+        }
+        last = p;
+        lsn = seg.baseLSN + offset;
+        offset += LoggerImpl.OF_DATA + size;
+        return new SubArray(buf, start, start + size);
+    }
+
+    private SubArray readFramed(long limit) {
+        while(true) {
+            if(framePos >= frameEnd && !readFrame(limit)) {
+                return null;
+            }
+            int size = readSize();
+            if(size < 0 || size > frameEnd - framePos) {
+                frameEnd = framePos;
+                return null;
+            }
+            int start = framePos;
+            framePos += size;
+            long recordOffset = frameOffset;
+            frameOffset += LoggerImpl.OF_DATA + size;
+            if(recordOffset < skipTo) {
+                continue;
+            }
+            lsn = seg.baseLSN + recordOffset;
+            offset = frameOffset;
+            return new SubArray(frame, start, start + size);
+        }
+    }
+
+    /**
+     * 读fileOffset处的块，校验并解压；整块都在skipTo之前时只读Header跳过它
+     * @return 没有完整的块或者块损坏时返回false
+     */
+    private boolean readFrame(long limit) {
+        while(true) {
+            if(fileOffset + LogFrame.HEADER_SIZE > limit) {
+                return false;
+            }
+            fill(fileOffset, LogFrame.HEADER_SIZE, limit);
+            int p = (int)(fileOffset - bufOffset);
+            int length = getInt(p + LogFrame.OF_LENGTH);
+            int raw = getInt(p + LogFrame.OF_RAW);
+            int stored = getInt(p + LogFrame.OF_STORED);
+            if(length <= 0 || raw <= 0 || stored <= 0 || stored > raw
+                    || fileOffset + LogFrame.HEADER_SIZE + stored > limit) {
+                return false;
+            }
+            if(frameOffset + length <= skipTo) {
+                fileOffset += LogFrame.HEADER_SIZE + stored;
+                frameOffset += length;
+                continue;
+            }
+
+            fill(fileOffset, LogFrame.HEADER_SIZE + stored, limit);
+            p = (int)(fileOffset - bufOffset);
+            int start = p + LogFrame.HEADER_SIZE;
+            if(LogFrame.checksum(buf, p, buf, start, stored) != getInt(p + LogFrame.OF_CHECKSUM)) {
+                return false;
+            }
+            if(stored == raw) {
+                frame = buf;
+                framePos = start;
+            } else {
+                if(unpacked == null || unpacked.length < raw) {
+                    unpacked = new byte[Math.max(BUFFER_SIZE, raw)];
+                }
+                if(!LzCodec.decompress(buf, start, stored, unpacked, raw)) {
+                    return false;
+                }
+                frame = unpacked;
+                framePos = 0;
+            }
+            frameEnd = framePos + raw;
+            System.arraycopy(buf, p, frameHeader, 0, LogFrame.HEADER_SIZE);
+            fileOffset += LogFrame.HEADER_SIZE + stored;
+            return true;
+        }
+    }
+
+    //读块中下一条日志的Size（变长整数），损坏时返回-1
+    private int readSize() {
+        int size = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            if(framePos >= frameEnd) {
+                return -1;
+            }
+            int b = frame[framePos ++];
+            size |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return size;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 保证文件中从pos开始的length字节都在buf中，不在时从pos开始重新读一块（不超过limit）
+     */
+    private void fill(long pos, int length, long limit) {
+        if(pos >= bufOffset && pos + length <= bufOffset + bufEnd) {
+            return;
+        }
+        if(buf == null || buf.length < length) {
+            buf = new byte[Math.max(BUFFER_SIZE, Integer.highestOneBit(length - 1) << 1)];
+        }
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, (int)Math.min(buf.length, limit - pos));
+        seg.read(bb, pos);
+        bufOffset = pos;
+        bufEnd = bb.position();
+    }
+
+    private int getInt(int p) {
+        return ((buf[p] & 0xFF) << 24) | ((buf[p + 1] & 0xFF) << 16) | ((buf[p + 2] & 0xFF) << 8) | (buf[p + 3] & 0xFF);
+    }
+
+    /**
+     * 上一次next返回的日志的LSN
+     */
+    public long getLSN() {
+        return lsn;
+    }
+
+    /**
+     * 下一条日志的LSN
+     */
+    public long getNextLSN() {
+        return seg.baseLSN + offset;
+    }
+
+    /**
+     * 下一条日志相对BaseLSN的偏移，只读一个段时使用
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * 已经读完的部分在段文件中的偏移，只在atBoundary时有意义
+     */
+    long getFileOffset() {
+        return seg.format.framed() ? fileOffset : offset;
+    }
+
+    /**
+     * 上一次next返回的日志是否是一次写入的最后一条：不分帧的段中每条日志都是，分帧的段中是块的最后一条
+     * XChecksum按次累加，截断也只能截在两次写入之间
+     */
+    boolean atBoundary() {
+        return !seg.format.framed() || framePos >= frameEnd;
+    }
+
+    /**
+     * 把刚读完的一次写入（一条日志或者一个块）累加到XChecksum上，atBoundary时调用
+     */
+    int foldXChecksum(int xCheck) {
+        if(seg.format.framed()) {
+            return seg.format.foldXChecksum(xCheck, frameHeader, 0, LogFrame.HEADER_SIZE);
+        }
+        return seg.format.foldXChecksum(xCheck, buf, last, (int)(seg.baseLSN + offset - lsn));
+    }
+}
@@ -0,0 +1,269 @@
+package GUOFengming.backend.dm.logger;
+
+import GUOFengming.backend.utils.Panic;
+import GUOFengming.common.Error;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * 日志段文件
+ * 文件格式：[Header][Log1][Log2]...[LogN][Trailer]
+ * Header（32字节）：[Magic][Version][Reserved][SegNo][BaseLSN][HeaderChecksum][XChecksum]
+ *   Magic 固定为"MYLG"，Version 是日志格式（LogFormat）的版本，SegNo 是段的序号，从0开始连续递增
+ *   BaseLSN 是文件偏移0对应的LSN，段中日志的LSN = BaseLSN + 文件内偏移，下一个段的BaseLSN = BaseLSN + Trailer的偏移
+ *   HeaderChecksum 是前24字节的CRC32C
+ *   XChecksum 是对这个段中所有日志计算的校验和，每写入一批日志更新一次
+ * Trailer（16字节）：[TrailerMagic][End][XChecksum]
+ *   段写满后追加Trailer，封存这个段，之后不再修改；End 是段中日志的末尾相对BaseLSN的偏移，也就是Trailer自己的偏移
+ *   打开日志时有Trailer的段不需要再逐条校验
+ * 分帧格式（LogFormat.FRAMED）的段中日志按块保存（LogFrame），LSN和文件内偏移不同：
+ *   end/written 是按LSN计算的偏移，fileEnd/fileWritten 是文件内偏移，Trailer的End是按LSN计算的偏移；
+ *   其他格式的段两者相同。
+ */
+class LogSegment {
+    static final int MAGIC = 0x4D594C47;            //"MYLG"
+    static final int TRAILER_MAGIC = 0x4C47454E;    //"LGEN"
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    private static final int OF_SEGNO = OF_VERSION + 4;
+    private static final int OF_BASE = OF_SEGNO + 8;
+    private static final int OF_HEADER_CHECKSUM = OF_BASE + 8;
+    private static final int OF_XCHECKSUM = OF_HEADER_CHECKSUM + 4;
+    static final int HEADER_SIZE = OF_XCHECKSUM + 4;
+
+    private static final int OF_TRAILER_MAGIC = 0;
+    private static final int OF_TRAILER_END = OF_TRAILER_MAGIC + 4;
+    private static final int OF_TRAILER_XCHECKSUM = OF_TRAILER_END + 8;
+    static final int TRAILER_SIZE = OF_TRAILER_XCHECKSUM + 4;
+
+    final File f;
+    final long segNo;
+    final long baseLSN;
+    final LogFormat format;
+    private final RandomAccessFile file;
+    private final FileChannel fc;
+
+    volatile long end;      //最后一条已经保存到硬盘的日志的末尾相对BaseLSN的偏移
+    long written;           //已经写到文件（不一定保存到硬盘）的日志的末尾相对BaseLSN的偏移，只由写日志的drainer使用
+    volatile long fileEnd;  //end对应的文件内偏移，读日志读到这里为止
+    long fileWritten;       //written对应的文件内偏移
+    int xChecksum;
+    boolean sealed;
+    int pins;               //正在读这个段的迭代器个数，由LoggerImpl的lock保护，大于0时回收的段暂不删除
+
+    private LogSegment(File f, RandomAccessFile file, FileChannel fc, long segNo, long baseLSN, LogFormat format, int xChecksum) {
+        this.f = f;
+        this.format = format;
+        this.file = file;
+        this.fc = fc;
+        this.segNo = segNo;
+        this.baseLSN = baseLSN;
+        this.xChecksum = xChecksum;
+        this.end = HEADER_SIZE;
+        this.written = HEADER_SIZE;
+        this.fileEnd = HEADER_SIZE;
+        this.fileWritten = HEADER_SIZE;
+    }
+
+    /**
+     * 新建一个空的日志段，写入Header并保存到硬盘
+     */
+    static LogSegment create(File f, long segNo, long baseLSN, LogFormat format) {
+        try {
+            if(!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        RandomAccessFile raf = openFile(f);
+        FileChannel fc = raf.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(OF_MAGIC, MAGIC);
+        header.putShort(OF_VERSION, format.version);
+        header.putLong(OF_SEGNO, segNo);
+        header.putLong(OF_BASE, baseLSN);
+        header.putInt(OF_HEADER_CHECKSUM, headerChecksum(header));
+        header.putInt(OF_XCHECKSUM, 0);
+        try {
+            fc.write(header, 0);
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return new LogSegment(f, raf, fc, segNo, baseLSN, format, 0);
+    }
+
+    /**
+     * 打开已有的日志段，只读取并校验Header，End在readTrailer或者逐条校验日志后确定
+     */
+    static LogSegment open(File f) {
+        RandomAccessFile raf = openFile(f);
+        FileChannel fc = raf.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try {
+            if(fc.size() < HEADER_SIZE) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            fc.read(header, 0);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        LogFormat format = LogFormat.of(header.getShort(OF_VERSION));
+        if(header.getInt(OF_MAGIC) != MAGIC
+                || header.getInt(OF_HEADER_CHECKSUM) != headerChecksum(header)
+                || format == null) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        return new LogSegment(f, raf, fc, header.getLong(OF_SEGNO), header.getLong(OF_BASE), format, header.getInt(OF_XCHECKSUM));
+    }
+
+    private static RandomAccessFile openFile(File f) {
+        if(!f.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        if(!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        return raf;
+    }
+
+    private static int headerChecksum(ByteBuffer header) {
+        CRC32C crc = new CRC32C();
+        crc.update(header.array(), 0, OF_HEADER_CHECKSUM);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * 检查文件末尾是否是有效的Trailer，是则这个段已经封存，end取Trailer中的End
+     */
+    boolean readTrailer() {
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        long length = 0;
+        try {
+            length = fc.size();
+            if(length < HEADER_SIZE + TRAILER_SIZE) {
+                return false;
+            }
+            fc.read(trailer, length - TRAILER_SIZE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        long trailerEnd = trailer.getLong(OF_TRAILER_END);
+        if(trailer.getInt(OF_TRAILER_MAGIC) != TRAILER_MAGIC
+                || (format.framed() ? trailerEnd < HEADER_SIZE : trailerEnd != length - TRAILER_SIZE)
+                || trailer.getInt(OF_TRAILER_XCHECKSUM) != xChecksum) {
+            return false;
+        }
+        end = trailerEnd;
+        written = end;
+        fileEnd = length - TRAILER_SIZE;
+        fileWritten = fileEnd;
+        sealed = true;
+        return true;
+    }
+
+    /**
+     * 在已经写入的日志之后写入Trailer，封存这个段并保存到硬盘
+     */
+    void seal() {
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        trailer.putInt(OF_TRAILER_MAGIC, TRAILER_MAGIC);
+        trailer.putLong(OF_TRAILER_END, written);
+        trailer.putInt(OF_TRAILER_XCHECKSUM, xChecksum);
+        writeXChecksum();
+        write(trailer, fileWritten);
+        force();
+        fileEnd = fileWritten;
+        end = written;
+        sealed = true;
+    }
+
+    long length() {
+        try {
+            return fc.size();
+        } catch (IOException e) {
+            Panic.panic(e);
+            return 0;
+        }
+    }
+
+    void read(ByteBuffer buf, long offset) {
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    void write(ByteBuffer buf, long offset) {
+        try {
+            while(buf.hasRemaining()) {
+                offset += fc.write(buf, offset);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 依次写入多个buf（环形缓冲区的末尾和开头）
+     */
+    void write(ByteBuffer[] bufs, long offset) {
+        for(ByteBuffer buf : bufs) {
+            int length = buf.remaining();
+            write(buf, offset);
+            offset += length;
+        }
+    }
+
+    void writeXChecksum() {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        buf.putInt(0, xChecksum);
+        write(buf, OF_XCHECKSUM);
+    }
+
+    void force() {
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    void truncate(long offset) {
+        try {
+            fc.truncate(offset);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    void close() {
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
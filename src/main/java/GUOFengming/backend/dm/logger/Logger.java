@@ -1,86 +1,111 @@
 package GUOFengming.backend.dm.logger;
 
 import GUOFengming.backend.utils.Panic;
-import GUOFengming.backend.utils.Parser;
 import GUOFengming.common.Error;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * log文件格式：[XChecksum][Log1][Log2][Log3]...[LogN][BadTail]
- * XChecksum 是一个四字节的整数，是对后续所有日志计算的校验和。
- * Log1 ~ LogN 是常规的日志数据。
- * BadTail 是在数据库崩溃时，没有来得及写完的日志数据，这个 BadTail 不一定存在。
+ * 日志由若干个日志段文件组成：#{path}.00000000.log、#{path}.00000001.log ...
+ * 日志段的格式见LogSegment，当前段写满后封存（追加Trailer），新日志写入下一个段。
+ * 打开日志时只需要逐条校验最后一个没有封存的段，截断其中没来得及写完的日志（BadTail）。
  *
  * 单条Log格式:[Size][Checksum][Data]
  * Size 是一个四字节整数，标识了 Data 段的字节数。
  * Checksum 是该条日志的校验和。
+ *
+ * LSN：日志在整个日志中的位置，等于所在段的BaseLSN加上它在段文件中的偏移，随写入单调增长。
+ * 检查点之前的日志段可以用recycle回收；段从最早的开始删除，最早的段的Header中的BaseLSN就是持久化的日志起点，
+ * 崩溃后起点不会回退，剩下的段也仍然连续，打开日志的时间只和剩下的段数有关。
  */
 public interface Logger {
-    void log(byte[] data);
+    /**
+     * 写入一条日志，返回时已经保存到硬盘
+     * @return 日志的LSN
+     */
+    long log(byte[] data);
+    /**
+     * 写入一条日志，立即返回它的LSN，不等待保存到硬盘
+     */
+    long append(byte[] data);
+    /**
+     * 写入一条日志，返回的future在它保存到硬盘后完成，结果是它的LSN
+     */
+    CompletableFuture<Long> logAsync(byte[] data);
+    /**
+     * 等待lsn处（以及之前）的日志保存到硬盘，必要时由当前线程写日志
+     */
+    void waitForDurable(long lsn);
+    /**
+     * lsn处（以及之前）的日志保存到硬盘后完成的future，由后台线程写日志，调用者不阻塞
+     */
+    CompletableFuture<Long> whenDurable(long lsn);
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
+    /**
+     * 从lsn处的日志开始读，lsn必须是某条日志的起始位置或者日志末尾
+     * lsn所在的段已经被回收时，从最早的日志开始读
+     */
+    void rewind(long lsn);
+    /**
+     * 已经保存到硬盘的日志末尾的位置，之后append的日志的LSN不会小于它
+     */
+    long getEndLSN();
+    /**
+     * 日志的起点：最早的日志段的BaseLSN，之前的日志已经被回收
+     */
+    long getStartLSN();
+    /**
+     * 从lsn处开始顺序读日志的迭代器，返回的日志是缓冲区中的切片，不复制，适合恢复、复制这类大量顺序读
+     * 迭代器正在读的段不会被recycle删除，用完必须close
+     */
+    LogIterator iterator(long lsn);
+    /**
+     * 回收所有日志都在lsn之前的已封存的段：删除，或者移动到LoggerOptions.archiveDir
+     * 调用者保证恢复不再需要lsn之前的日志（检查点之后）
+     */
+    void recycle(long lsn);
+    /**
+     * 设置换段后调用的回调，Checkpointer用它按日志量触发检查点
+     * 回调在写日志的线程中执行，不能写日志，也不能长时间阻塞
+     */
+    void setRotateListener(Runnable listener);
     void close();
 
     public static Logger create(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        try {
-            if(!f.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
-            }
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
+        return create(path, new LoggerOptions());
+    }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+    public static Logger create(String path, LoggerOptions options) {
+        if(!LoggerImpl.listSegments(path).isEmpty() || LoggerImpl.legacyFile(path).exists()) {
+            Panic.panic(Error.FileExistsException);
         }
-
-        return new LoggerImpl(raf, fc, 0);
+        List<LogSegment> segments = new ArrayList<>();
+        segments.add(LogSegment.create(LoggerImpl.segmentFile(path, 0), 0, 0, LoggerImpl.format(options)));
+        return new LoggerImpl(path, options, segments);
     }
 
     public static Logger open(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        if(!f.exists()) {
+        return open(path, new LoggerOptions());
+    }
+
+    public static Logger open(String path, LoggerOptions options) {
+        //旧版本的单个日志文件先转换成第0个段
+        LoggerImpl.migrateLegacy(path);
+        List<File> files = LoggerImpl.listSegments(path);
+        if(files.isEmpty()) {
             Panic.panic(Error.FileNotExistsException);
         }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
+        List<LogSegment> segments = new ArrayList<>();
+        for(File f : files) {
+            segments.add(LogSegment.open(f));
         }
 
-        LoggerImpl lg = new LoggerImpl(raf, fc);
+        LoggerImpl lg = new LoggerImpl(path, options, segments);
         lg.init();
 
         return lg;
@@ -1,242 +1,844 @@
 package GUOFengming.backend.dm.logger;
 
+import GUOFengming.backend.common.SubArray;
 import GUOFengming.backend.utils.Panic;
-import GUOFengming.backend.utils.Parser;
 import GUOFengming.common.Error;
-import com.google.common.primitives.Bytes;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * append把日志直接写进无锁的日志缓冲区（LogBuffer），立即返回LSN，这时日志还没有保存到硬盘。
+ * 把缓冲区中的日志写到文件的drainer同一时间只有一个（drainLock）：
+ * waitForDurable等待某个LSN之前的日志保存到硬盘，没有drainer时当前线程成为leader，
+ * 把缓冲区中所有已发布的日志写入文件，更新XChecksum，只fsync一次，再唤醒等待的线程（组提交）；
+ * 缓冲区满时写日志的线程也会成为drainer，只写文件不fsync。
+ * 比缓冲区还大的日志不经过缓冲区，写它的线程成为drainer，等之前的日志都写到文件后直接把它写到段文件。
+ * log = append + waitForDurable；logAsync/whenDurable返回的future由后台的flusher线程（第一次使用时启动）
+ * 以同样的方式写日志后完成，调用者不用阻塞。
+ *
+ * 日志分段：LSN在append时分配，所以是否换段也在append时决定：
+ * 一条日志会让当前段超过LoggerOptions.segmentSize时，它写到下一个段，drainer写到换段的位置时封存当前段。
+ *
+ * 分帧格式（LoggerOptions.framed）：drainer每次写到文件的一批日志打包成一个块（LogFrame），可以压缩，
+ * 一批日志只有一个块头和一个校验和；LSN的分配和缓冲区都不变，读日志时由LogIterator按块解开。
+ */
 public class LoggerImpl implements Logger{
-    private static final int SEED = 13331;
-
     private static final int OF_SIZE = 0;
-    private static final int OF_CHECKSUM = OF_SIZE + 4;
-    private static final int OF_DATA = OF_CHECKSUM + 4;
+    static final int OF_CHECKSUM = OF_SIZE + 4;
+    static final int OF_DATA = OF_CHECKSUM + 4;
 
     public static final String LOG_SUFFIX = ".log";
 
-    private RandomAccessFile file;
-    private FileChannel fc;
+    private final String path;
+    private final LoggerOptions options;
+    private final LogFormat format;     //新日志使用的格式，和当前段的格式相同
     private Lock lock;
 
-    private long position;  // 当前日志指针的位置
-    private long fileSize;  // 初始化时记录，log操作不更新
-    private int xChecksum;
+    //按BaseLSN排序的日志段，由lock保护；最后一个是当前写入的段，只有drainer会写它
+    private final TreeMap<Long, LogSegment> segments = new TreeMap<>();
+    private volatile LogSegment current;
+    //已经回收、等待删除的段，按BaseLSN排序，由lock保护；最前面的段没有迭代器在读时才删除，保证剩下的段是连续的
+    private final ArrayDeque<LogSegment> retired = new ArrayDeque<>();
+    private final Lock retireLock = new ReentrantLock();      //删除段的线程同一时间只有一个，按顺序删除
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.fc = fc;
-        this.file = raf;
-        lock = new ReentrantLock();
-    }
+    private final LogBuffer buffer;
+    //drainer持有，下面两个字段只由drainer修改
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private long written;                                       //已经写到文件的日志的末尾
+    private final LogFrame frame;                               //分帧格式打包块用，其他格式为null
+    private volatile Runnable rotateListener;
+    private volatile long durableEnd;                           //已经保存到硬盘的日志的末尾
+
+    //组提交，由lock保护
+    private Condition flushed;                                  //drainer写完了一次
+    //whenDurable返回的future，按LSN排序，由保存了这个LSN的leader完成
+    private final TreeMap<Long, List<CompletableFuture<Long>>> waiters = new TreeMap<>();
+    private Condition flushRequested;                           //有新的future等待
+    private Thread flusher;
+    private boolean closed;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xCheckSum) {
-        this.fc = fc;
-        this.file = raf;
-        this.xChecksum = xCheckSum;
+    //next使用的迭代器，rewind时丢弃，下一次next从position开始重新读；都由readerLock保护
+    private final Lock readerLock = new ReentrantLock();
+    private LogIterator reader;
+    private long position;
+
+    LoggerImpl(String path, LoggerOptions options, List<LogSegment> segments) {
+        this.path = path;
+        this.options = options;
+        this.format = format(options);
+        for (LogSegment seg : segments) {
+            this.segments.put(seg.baseLSN, seg);
+        }
+        this.current = segments.get(segments.size() - 1);
         lock = new ReentrantLock();
+        flushed = lock.newCondition();
+        flushRequested = lock.newCondition();
+        buffer = new LogBuffer(options.bufferSize, options.segmentSize);
+        frame = format.framed() ? new LogFrame(options.compress) : null;
+        resetTail();
     }
 
     /**
-     * 初始化方法，每次打开log文件时执行
-     * 读取.log文件的前四个字节得到xCheckSum
-     * 判断是否有BadTail，并截断BadTail
+     * 没有写日志的线程时，从当前段的末尾开始分配LSN
      */
-    void init() {
-        long size = 0;
-        try {
-            size = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        if (size < 4) {
-            Panic.panic(Error.BadLogFileException);
-        }
+    private void resetTail() {
+        current.written = current.end;
+        current.fileWritten = current.fileEnd;
+        written = current.baseLSN + current.end;
+        durableEnd = written;
+        buffer.reset(current.baseLSN, current.end);
+    }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
-        try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e) {
-            Panic.panic(e);
+    static LogFormat format(LoggerOptions options) {
+        if (options.framed) {
+            return LogFormat.FRAMED;
         }
-        int xCheckSum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xCheckSum;
+        return options.crc32c ? LogFormat.CRC32C : LogFormat.SEED;
+    }
 
-        checkAndRemoveTail();
+    /**
+     * 第segNo个日志段的文件：#{path}.#{segNo}.log
+     */
+    static File segmentFile(String path, long segNo) {
+        return new File(path + "." + String.format("%08d", segNo) + LOG_SUFFIX);
     }
 
-    //根据每个日志的校验和求出.log文件的校验和
-    private int calCheckSum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+    /**
+     * 找出path的所有日志段文件，按段序号排序
+     */
+    static List<File> listSegments(String path) {
+        File base = new File(path).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        TreeMap<Long, File> found = new TreeMap<>();
+        File[] files = base.getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                //旧版本的#{path}.log也以prefix开头、LOG_SUFFIX结尾，两者重叠，不是段文件
+                if (!name.startsWith(prefix) || !name.endsWith(LOG_SUFFIX)
+                        || name.length() < prefix.length() + LOG_SUFFIX.length()) {
+                    continue;
+                }
+                String segNo = name.substring(prefix.length(), name.length() - LOG_SUFFIX.length());
+                if (!segNo.isEmpty() && segNo.chars().allMatch(Character::isDigit)) {
+                    found.put(Long.parseLong(segNo), f);
+                }
+            }
         }
-        return xCheck;
+        return new ArrayList<>(found.values());
+    }
+
+    /**
+     * 旧版本的单个日志文件：#{path}.log，格式为[XChecksum][Log1][Log2]...[LogN]，日志的格式和SEED格式的段相同
+     */
+    static File legacyFile(String path) {
+        return new File(path + LOG_SUFFIX);
     }
 
-    private byte[] internNext() {
-        // position 是当前日志文件读到的位置偏移 OF_DATA是当前日志的data的偏移量（data开始的索引）
-        //确保当前还有日志待读取
-        if (position + OF_DATA >= fileSize) {
-            return null;    //读取到 .log 文件末尾，正常结束读取。
+    /**
+     * 把旧版本的日志文件转换成SEED格式的第0个段（BaseLSN为0），打开日志前调用
+     * 按旧版本的规则校验：逐条校验日志，丢掉BadTail，XChecksum不对时文件损坏；
+     * 有效的日志复制到临时文件，保存到硬盘后改名为第0个段，最后删除旧文件。
+     * 任何一步崩溃后重新打开都能继续：没有段时重新转换，已经有段时旧文件是转换完没来得及删除的，直接删除。
+     */
+    static void migrateLegacy(String path) {
+        File legacy = legacyFile(path);
+        if (!legacy.exists()) {
+            return;
+        }
+        if (!listSegments(path).isEmpty()) {
+            if (!legacy.delete()) {
+                Panic.panic(Error.FileCannotRWException);
+            }
+            return;
         }
-        //开始读取当前日志
-        ByteBuffer tmp = ByteBuffer.allocate(4);
+        if (!legacy.canRead() || !legacy.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+
+        File tmp = new File(segmentFile(path, 0).getPath() + ".tmp");
+        if (tmp.exists() && !tmp.delete()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        LogSegment seg = LogSegment.create(tmp, 0, 0, LogFormat.SEED);
+        int xCheck = 0;
+        try (FileChannel fc = FileChannel.open(legacy.toPath(), StandardOpenOption.READ)) {
+            long fileSize = fc.size();
+            if (fileSize < 4) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            ByteBuffer head = ByteBuffer.allocate(OF_DATA);
+            fc.read(head, 0);
+            int xChecksum = head.getInt(0);
+
+            long position = 4;
+            while (position + OF_DATA <= fileSize) {
+                head.clear();
+                fc.read(head, position);
+                int size = head.getInt(OF_SIZE);
+                if (size < 0 || position + OF_DATA + size > fileSize) {
+                    break;
+                }
+                ByteBuffer log = ByteBuffer.allocate(OF_DATA + size);
+                while (log.hasRemaining()) {
+                    fc.read(log, position + log.position());
+                }
+                byte[] raw = log.array();
+                if (LogFormat.SEED.checksum(raw, OF_DATA, size) != log.getInt(OF_CHECKSUM)) {
+                    break;
+                }
+                xCheck = LogFormat.SEED.foldXChecksum(xCheck, raw, 0, raw.length);
+                seg.write(ByteBuffer.wrap(raw), seg.fileWritten);
+                seg.fileWritten += raw.length;
+                position += raw.length;
+            }
+            if (xCheck != xChecksum) {
+                Panic.panic(Error.BadLogFileException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        seg.xChecksum = xCheck;
+        seg.writeXChecksum();
+        seg.force();
+        seg.close();
         try {
-            fc.position(position);
-            fc.read(tmp);
+            Files.move(tmp.toPath(), segmentFile(path, 0).toPath(), StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int size = Parser.parseInt(tmp.array());
-        //日志条目可能损坏，拒绝解析该日志，避免错误恢复或程序崩溃。
-        if (position + size + OF_DATA > fileSize) {
-            return null;
+        if (!legacy.delete()) {
+            Panic.panic(Error.FileCannotRWException);
         }
+    }
 
-        //开始读取日志的data
-        //读取size
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+    /**
+     * 初始化方法，每次打开日志时执行
+     * 已封存的段只检查Trailer和段之间是否连续
+     * 最后一个段没有封存时逐条校验，截断BadTail；已经封存时新建下一个段用于写入
+     * 最后一个段的格式和配置的不同时（打开旧格式的日志），封存它，新日志写入新格式的段
+     */
+    void init() {
+        LogSegment prev = null;
+        for (LogSegment seg : segments.values()) {
+            if (prev != null && (seg.segNo != prev.segNo + 1 || seg.baseLSN != prev.baseLSN + prev.end)) {
+                Panic.panic(Error.BadLogFileException);     //中间缺了段
+            }
+            //只有最后一个段可能没有封存
+            if (!seg.readTrailer() && seg != current) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            prev = seg;
+        }
+
+        if (!current.sealed) {
+            checkAndRemoveTail(current);
+        }
+        if (current.sealed || current.format != format) {
+            rotate();
+        }
+        resetTail();
+        rewind();
+    }
+
+    /**
+     * lsn所在的段，已经被回收时返回最早的段
+     * 返回的段被迭代器引用（pin），读完后调用unpin，期间回收它不会删除文件
+     */
+    LogSegment pinSegmentFor(long lsn) {
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            Map.Entry<Long, LogSegment> entry = segments.floorEntry(lsn);
+            LogSegment seg = entry == null ? segments.firstEntry().getValue() : entry.getValue();
+            seg.pins ++;
+            return seg;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        //校验checkSum
-        byte[] log = buf.array();
-        //Arrays.copyOfRange(log,OF_DATA,log.length)    当前日志的data部分数据
-        //calCheckSum(0, Arrays.copyOfRange(log,OF_DATA,log.length))    用calCheckSum计算当前日志的checkSum
-        int checkSum1 = calCheckSum(0, Arrays.copyOfRange(log,OF_DATA,log.length));
-        //读取当前日志的checkSum（储存于当前日志的  第4-7字节处）
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log,OF_CHECKSUM,OF_DATA));
-        if (checkSum1 != checkSum2) {
-            return null;
+    /**
+     * seg之后的段，并引用它；seg是当前段时返回null
+     * seg已经被回收时，它之后的段可能也在retired中：seg被引用，它们都还没有删除
+     */
+    LogSegment pinNextSegment(LogSegment seg) {
+        lock.lock();
+        try {
+            LogSegment next = null;
+            for (LogSegment r : retired) {
+                if (r.baseLSN > seg.baseLSN) {
+                    next = r;
+                    break;
+                }
+            }
+            if (next == null) {
+                Map.Entry<Long, LogSegment> entry = segments.higherEntry(seg.baseLSN);
+                if (entry == null) {
+                    return null;
+                }
+                next = entry.getValue();
+            }
+            next.pins ++;
+            return next;
+        } finally {
+            lock.unlock();
         }
-        //position 更新到下一个日志开头处
-        position += log.length;
-        return log;
     }
 
-    private void checkAndRemoveTail() {
-        //将日志文件的 position 指针重置到文件的第四字节处，从而从头开始检查所有日志。
-        rewind();
+    /**
+     * 迭代器不再读seg，seg已经被回收时可能可以删除了
+     */
+    void unpin(LogSegment seg) {
+        boolean deletable;
+        lock.lock();
+        try {
+            seg.pins --;
+            deletable = seg.pins == 0 && retired.peekFirst() == seg;
+        } finally {
+            lock.unlock();
+        }
+        if (deletable) {
+            deleteRetired(false);
+        }
+    }
 
+    /**
+     * 逐条校验最后一个段中的日志，截断BadTail
+     * 日志和XChecksum在同一次fsync中保存，崩溃时可能日志写完了而XChecksum还没有更新，
+     * 所以保留的是累计校验和等于XChecksum的最长前缀，之后的日志都没有被确认过
+     */
+    private void checkAndRemoveTail(LogSegment seg) {
+        LogIterator it = new LogIterator(seg, seg.length());
         int xCheck = 0;
+        long good = xCheck == seg.xChecksum ? it.getFileOffset() : -1;
+        long goodEnd = it.getOffset();
         while(true) {
-            byte[] log = internNext();
-            if(log == null) break;
-            xCheck = calCheckSum(xCheck,log);
+            SubArray data = it.next();
+            if(data == null) break;
+            if(!it.atBoundary()) continue;
+            xCheck = it.foldXChecksum(xCheck);
+            if(xCheck == seg.xChecksum) {
+                good = it.getFileOffset();
+                goodEnd = it.getOffset();
+            }
         }
-        if(xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException); //.log文件有有BadTail
+        if(good < 0) {
+            Panic.panic(Error.BadLogFileException); //XChecksum对不上任何前缀，日志段损坏
         }
 
+        //截断BadTail（从good开始后面的字节）
+        seg.truncate(good);
+        seg.fileEnd = good;
+        seg.fileWritten = good;
+        seg.end = goodEnd;
+        seg.written = goodEnd;
+    }
+
+    /**
+     * 封存当前段，新建下一个段作为当前段
+     * 只在drainer写日志或者初始化时调用
+     */
+    private LogSegment rotate() {
+        LogSegment old = current;
+        if (!old.sealed) {
+            old.seal();
+        }
+        long segNo = old.segNo + 1;
+        LogSegment seg = LogSegment.create(segmentFile(path, segNo), segNo, old.baseLSN + old.written, format);
+        lock.lock();
         try {
-            //截断BadTail（从position开始后面的字节）
-            truncate(position);
-        } catch (Exception e) {
-            Panic.panic(e);
+            segments.put(seg.baseLSN, seg);
+            current = seg;
+        } finally {
+            lock.unlock();
         }
+        return seg;
+    }
 
+    /**
+     * 向日志文件写入日志，返回时日志已经保存到硬盘
+     * @param data 日志内容
+     * @return 日志的LSN
+     */
+    @Override
+    public long log(byte[] data) {
+        long lsn = append(data);
+        waitForDurable(lsn);
+        return lsn;
+    }
+
+    @Override
+    public long append(byte[] data) {
+        if (OF_DATA + data.length > buffer.capacity()) {
+            return appendDirect(data);
+        }
+        return buffer.append(data, format, this::tryDrain);
+    }
+
+    /**
+     * 写入一条放不进缓冲区的日志：占用LSN，等它之前的日志都发布后成为drainer，把之前的日志写到文件，
+     * 再把它直接写到段文件，最后发布它，之后的日志照常经过缓冲区。
+     * 期间其他写日志的线程会等待，只有很大的日志走这条路
+     */
+    private long appendDirect(byte[] data) {
+        int length = OF_DATA + data.length;
+        long lsn = buffer.claim(length);
+        //等待时不能持有drainLock：前面可能还有一条很大的日志在等drainLock
+        int spins = 0;
+        while (buffer.getPublished() != lsn) {
+            tryDrain();
+            spins = LogBuffer.pause(spins);
+        }
+        List<Map.Entry<Long, List<CompletableFuture<Long>>>> done = new ArrayList<>();
+        drainLock.lock();
         try {
-            //将文件指针移动到position处，以便后续写入新日志
-            file.seek(position);
-        } catch (IOException e) {
-            Panic.panic(e);
+            //写走之前的日志，需要时换段
+            drain();
+            LogSegment seg = current;
+            if (frame != null) {
+                writeFrame(seg, frame.encode(List.of(data)), lsn + length - seg.baseLSN);
+            } else {
+                byte[] log = new byte[length];
+                ByteBuffer bb = ByteBuffer.wrap(log);
+                bb.putInt(OF_SIZE, data.length);
+                bb.putInt(OF_CHECKSUM, seg.format.checksum(data, 0, data.length));
+                System.arraycopy(data, 0, log, OF_DATA, data.length);
+                seg.write(bb, lsn - seg.baseLSN);
+                seg.xChecksum = seg.format.foldXChecksum(seg.xChecksum, log, 0, length);
+                seg.written = lsn + length - seg.baseLSN;
+                seg.fileWritten = seg.written;
+            }
+            written = lsn + length;
+            buffer.setWritten(written);
+            buffer.publish(lsn, written);
+        } finally {
+            releaseDrain(done);
         }
-        rewind();
+        complete(done);
+        return lsn;
+    }
+
+    @Override
+    public CompletableFuture<Long> logAsync(byte[] data) {
+        return whenDurable(append(data));
+    }
 
+    //lsn处的日志已经保存到硬盘，或者没有还没保存的日志（lsn处没有日志）
+    private boolean isDurable(long lsn) {
+        long end = durableEnd;
+        return lsn < end || end == buffer.claimedEnd();
+    }
+
+    @Override
+    public void waitForDurable(long lsn) {
+        List<Map.Entry<Long, List<CompletableFuture<Long>>>> done = new ArrayList<>();
+        int spins = 0;
+        while (!isDurable(lsn)) {
+            if (drainLock.tryLock()) {
+                //成为leader，写走缓冲区中所有已发布的日志
+                long before = durableEnd;
+                try {
+                    flush();
+                } finally {
+                    releaseDrain(done);
+                }
+                if (durableEnd == before) {
+                    //lsn处的日志还在被写进缓冲区
+                    spins = LogBuffer.pause(spins);
+                }
+                continue;
+            }
+            lock.lock();
+            try {
+                //其他线程正在写，等它写完，可能这一批已经包含了自己的日志
+                if (!isDurable(lsn) && drainLock.isLocked()) {
+                    flushed.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        complete(done);
     }
 
     /**
-     * 向日志文件写入日志
-     * @param data 日志内容
+     * 缓冲区满时写日志的线程调用：没有drainer时把已发布的日志写到文件，腾出缓冲区空间
      */
+    private void tryDrain() {
+        if (drainLock.tryLock()) {
+            List<Map.Entry<Long, List<CompletableFuture<Long>>>> done = new ArrayList<>();
+            try {
+                drain();
+            } finally {
+                releaseDrain(done);
+            }
+            complete(done);
+        }
+    }
+
+    /**
+     * 放弃drainer，取出已经保存到硬盘的future，唤醒等待的线程
+     */
+    private void releaseDrain(List<Map.Entry<Long, List<CompletableFuture<Long>>>> done) {
+        drainLock.unlock();
+        lock.lock();
+        try {
+            while (!waiters.isEmpty() && isDurable(waiters.firstKey())) {
+                done.add(waiters.pollFirstEntry());
+            }
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //在锁外完成future，future的回调可能会再写日志
+    private static void complete(List<Map.Entry<Long, List<CompletableFuture<Long>>>> done) {
+        for (Map.Entry<Long, List<CompletableFuture<Long>>> entry : done) {
+            for (CompletableFuture<Long> future : entry.getValue()) {
+                future.complete(entry.getKey());
+            }
+        }
+    }
+
     @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data); //将data转化为字节数组
-        ByteBuffer buf = ByteBuffer.wrap(log);  //包装成buf
+    public CompletableFuture<Long> whenDurable(long lsn) {
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            if (isDurable(lsn)) {
+                return CompletableFuture.completedFuture(lsn);
+            }
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            waiters.computeIfAbsent(lsn, k -> new ArrayList<>()).add(future);
+            if (flusher == null) {
+                flusher = new Thread(this::flushLoop, "log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            flushRequested.signal();
+            return future;
         } finally {
             lock.unlock();
         }
-        updateXCheckSum(log);   //更新.log文件的XCheckSum
     }
 
     /**
-     * 更新.log文件的XCheckSum
-     * @param log 新写入的data（转化为了字节数组）
+     * flusher线程：有future在等待时，把日志写到其中最大的LSN为止
      */
-    private void updateXCheckSum(byte[] log) {
-        this.xChecksum = calCheckSum(this.xChecksum,log);   //计算出新的XCheckSum(int格式)
-        try {
-            fc.position(0); //指向.log文件的开头
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));  //写入新的XCheckSum(字节数组格式)
-            fc.force(false);    //强转写入磁盘（不附加元数据（修改时间等））
-        } catch (IOException e){
-            Panic.panic(e);
+    private void flushLoop() {
+        while (true) {
+            long target;
+            lock.lock();
+            try {
+                while (!closed && waiters.isEmpty()) {
+                    flushRequested.awaitUninterruptibly();
+                }
+                if (closed) {
+                    return;
+                }
+                target = waiters.lastKey();
+            } finally {
+                lock.unlock();
+            }
+            waitForDurable(target);
         }
     }
 
     /**
-     * 将data包装为日志格式
-     * @param data
-     * @return  data转化成的日志格式的字节数组
+     * drainer调用：把缓冲区中已发布的日志写到文件，fsync一次
      */
-    private byte[] wrapLog(byte[] data) {
-        byte[] checkSum = Parser.int2Byte(calCheckSum(0,data)); //计算checkSum
-        byte[] size = Parser.int2Byte(data.length); //计算data的大小
-        return Bytes.concat(size,checkSum,data);    //将size、checkSum、data合并成一个字节数组
+    private void flush() {
+        drain();
+        if (written > durableEnd) {
+            LogSegment seg = current;
+            seg.writeXChecksum();
+            seg.force();
+            seg.fileEnd = seg.fileWritten;
+            seg.end = seg.written;
+            durableEnd = written;
+        }
     }
 
+    /**
+     * drainer调用：把缓冲区中已发布的日志写到文件（不fsync），更新XChecksum，释放缓冲区空间
+     * 写到换段的位置时封存当前段，新建下一个段继续写
+     */
+    private void drain() {
+        long published = buffer.getPublished();
+        while (written < published) {
+            Long rotation = buffer.nextRotation();
+            if (rotation != null && rotation == written) {
+                //换段的空隙（新段的Header）已经发布
+                rotate();
+                buffer.rotated();
+                written = rotation + LogSegment.HEADER_SIZE;
+                Runnable listener = rotateListener;
+                if (listener != null) {
+                    listener.run();
+                }
+                continue;
+            }
+            long to = rotation != null && rotation < published ? rotation : published;
+            writeRegion(current, written, to);
+            written = to;
+        }
+        buffer.setWritten(written);
+    }
+
+    /**
+     * 把缓冲区中[from, to)的日志写到段文件，并累加到段的XChecksum上
+     */
+    private void writeRegion(LogSegment seg, long from, long to) {
+        if (frame != null) {
+            writeFrame(seg, frame.encode(buffer, from, (int)(to - from)), to - seg.baseLSN);
+            return;
+        }
+        seg.write(buffer.slice(from, (int)(to - from)), from - seg.baseLSN);
+        byte[] header = new byte[OF_DATA];
+        for (long lsn = from; lsn < to; ) {
+            int length = OF_DATA + buffer.getInt(lsn);
+            byte[] log = header;
+            if (seg.format == LogFormat.SEED) {
+                //旧格式的XChecksum要遍历整条日志
+                log = new byte[length];
+            }
+            buffer.get(lsn, log, log.length);
+            seg.xChecksum = seg.format.foldXChecksum(seg.xChecksum, log, 0, length);
+            lsn += length;
+        }
+        seg.written = to - seg.baseLSN;
+        seg.fileWritten = seg.written;
+    }
+
+    /**
+     * 把frame刚打包好的块写到段文件的末尾，累加到XChecksum上
+     * @param end 块中最后一条日志的末尾相对BaseLSN的偏移
+     */
+    private void writeFrame(LogSegment seg, int length, long end) {
+        seg.write(frame.buffers(), seg.fileWritten);
+        seg.xChecksum = seg.format.foldXChecksum(seg.xChecksum, frame.header, 0, LogFrame.HEADER_SIZE);
+        seg.fileWritten += length;
+        seg.written = end;
+    }
+
+    /**
+     * 截断当前段中x之后的日志，只能在没有线程写日志时调用
+     * 保留下来的日志重新计算XChecksum；分帧的段中x落在一个块的中间时，这个块中x之前的日志重新打包成一个块
+     */
     @Override
     public void truncate(long x) throws Exception {
-        lock.lock();
+        drainLock.lock();
         try {
-            fc.truncate(x);
+            flush();
+            LogSegment seg = current;
+            long offset = Math.max(x - seg.baseLSN, LogSegment.HEADER_SIZE);
+            LogIterator it = new LogIterator(seg, seg.fileEnd);
+            int xCheck = 0;
+            long good = it.getFileOffset();
+            long goodEnd = it.getOffset();
+            List<byte[]> rest = new ArrayList<>();      //被截断的块中要保留的日志
+            while (true) {
+                SubArray data = it.next();
+                if (data == null || it.getLSN() - seg.baseLSN >= offset) break;
+                if (!it.atBoundary()) {
+                    rest.add(Arrays.copyOfRange(data.raw, data.start, data.end));
+                    continue;
+                }
+                xCheck = it.foldXChecksum(xCheck);
+                good = it.getFileOffset();
+                goodEnd = it.getOffset();
+                rest.clear();
+            }
+            seg.truncate(good);
+            seg.xChecksum = xCheck;
+            seg.fileWritten = good;
+            seg.written = goodEnd;
+            if (!rest.isEmpty()) {
+                int length = frame.encode(rest);
+                writeFrame(seg, length, goodEnd + frame.getLogicalLength());
+            }
+            seg.writeXChecksum();
+            seg.force();
+            seg.fileEnd = seg.fileWritten;
+            seg.end = seg.written;
+            resetTail();
         } finally {
-            lock.unlock();
+            drainLock.unlock();
         }
     }
 
     @Override
     public byte[] next() {
+        readerLock.lock();
+        try {
+            if (reader == null) {
+                reader = new LogIterator(this, position);
+            }
+            SubArray data = reader.next();
+            if (data == null) return null;
+            return Arrays.copyOfRange(data.raw,data.start,data.end);
+        } finally {
+            readerLock.unlock();
+        }
+    }
+
+    @Override
+    public void rewind() {
+        rewind(0);
+    }
+
+    @Override
+    public void rewind(long lsn) {
+        readerLock.lock();
+        try {
+            position = lsn;
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+        } finally {
+            readerLock.unlock();
+        }
+    }
+
+    @Override
+    public LogIterator iterator(long lsn) {
+        return new LogIterator(this, lsn);
+    }
+
+    @Override
+    public long getEndLSN() {
+        return durableEnd;
+    }
+
+    @Override
+    public long getStartLSN() {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if (log == null) return null;
-            return Arrays.copyOfRange(log,OF_DATA,log.length);
+            return segments.firstKey();
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    public void rewind() {
-        position = 4;
+    public void setRotateListener(Runnable listener) {
+        rotateListener = listener;
     }
 
+    /**
+     * 回收的段先从段表中去掉（getStartLSN随之推进），再按顺序删除；
+     * 还有迭代器在读的段等最后一个迭代器读完（unpin）后再删除，它之后的段也随它一起等待
+     */
+    @Override
+    public void recycle(long lsn) {
+        lock.lock();
+        try {
+            while (true) {
+                LogSegment seg = segments.firstEntry().getValue();
+                if (seg == current || seg.baseLSN + seg.end > lsn) {
+                    break;
+                }
+                segments.pollFirstEntry();
+                retired.addLast(seg);
+            }
+        } finally {
+            lock.unlock();
+        }
+        deleteRetired(false);
+    }
+
+    /**
+     * 从最早的段开始删除已经回收的段，崩溃后剩下的段仍然是连续的
+     * @param force 关闭日志时为true，不管是否还有迭代器在读
+     */
+    private void deleteRetired(boolean force) {
+        retireLock.lock();
+        try {
+            while (true) {
+                LogSegment seg;
+                lock.lock();
+                try {
+                    seg = retired.peekFirst();
+                    if (seg == null || (seg.pins > 0 && !force)) {
+                        return;
+                    }
+                    retired.pollFirst();
+                } finally {
+                    lock.unlock();
+                }
+                seg.close();
+                try {
+                    if (options.archiveDir == null) {
+                        Files.delete(seg.f.toPath());
+                    } else {
+                        Files.move(seg.f.toPath(), Paths.get(options.archiveDir, seg.f.getName()), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+            }
+        } finally {
+            retireLock.unlock();
+        }
+    }
+
+    /**
+     * 写完所有等待写入的日志，停止flusher线程，再关闭日志段；已经回收的段不再等迭代器，直接删除
+     */
     @Override
     public void close() {
+        waitForDurable(Long.MAX_VALUE);
+        Thread t;
+        lock.lock();
         try {
-            fc.close();
-            file.close();
-        } catch (IOException e) {
-            Panic.panic(e);
+            closed = true;
+            flushRequested.signalAll();
+            t = flusher;
+        } finally {
+            lock.unlock();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        readerLock.lock();
+        try {
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+        } finally {
+            readerLock.unlock();
+        }
+        deleteRetired(true);
+        lock.lock();
+        try {
+            for (LogSegment seg : segments.values()) {
+                seg.close();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 }
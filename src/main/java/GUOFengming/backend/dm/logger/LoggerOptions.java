@@ -0,0 +1,22 @@
+package GUOFengming.backend.dm.logger;
+
+/**
+ * 日志的可选配置，不设置时使用默认值
+ */
+public class LoggerOptions {
+    //日志段的大小，当前段再写入一批日志会超过这个大小时封存它，新日志写入下一个段
+    public long segmentSize = 16 * 1024 * 1024;
+    //回收的日志段移动到这个目录归档，null表示直接删除
+    public String archiveDir = null;
+    //新建的日志段使用CRC32C校验和（LogFormat.CRC32C），false时使用旧的逐字节校验和（LogFormat.SEED）
+    //打开已有日志时，格式不同的当前段会被封存，之后的日志写入新格式的段
+    public boolean crc32c = true;
+    //新建的日志段使用分帧格式（LogFormat.FRAMED）：每批写入的日志打包成一个带校验和的块，优先于crc32c
+    //一批中的日志越多（组提交、异步写日志）节省的字节越多
+    public boolean framed = false;
+    //分帧格式的块用LzCodec压缩，压缩后没有变小的块不压缩
+    public boolean compress = false;
+    //日志缓冲区（堆外内存）的大小；超过它的日志（包括8字节的头）不经过缓冲区，
+    //写它的线程等之前的日志写到文件后直接写入段文件，期间其他写日志的线程等待
+    public int bufferSize = 4 * 1024 * 1024;
+}
@@ -0,0 +1,152 @@
+package GUOFengming.backend.dm.logger;
+
+/**
+ * 日志块（LogFrame）使用的LZ77压缩，纯Java实现，格式和LZ4的块格式类似
+ * 压缩后的数据是若干个序列：[Token][LiteralLength][Literals][Offset][MatchLength]
+ *   Token 高4位是字面量的字节数，低4位是匹配长度减4；等于15时在LiteralLength/MatchLength中继续累加，
+ *         每个字节加到长度上，直到一个不是255的字节
+ *   Offset 是两字节（小端）的回溯距离，从已经解压出的数据中复制匹配的字节，可以和正在复制的字节重叠
+ * 最后一个序列只有字面量，没有Offset和匹配
+ * 用哈希表查找4字节的重复，只比较最近一次出现的位置，速度优先于压缩率；
+ * 日志中XID、页号、偏移以及更新前后的数据重复很多，压缩效果不错。
+ */
+final class LzCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+
+    private LzCodec() {}
+
+    /**
+     * 压缩src中从srcOff开始的length个字节到dst
+     * @return 压缩后的长度；会超过maxLength时放弃压缩，返回-1
+     */
+    static int compress(byte[] src, int srcOff, int length, byte[] dst, int maxLength) {
+        int[] table = new int[1 << HASH_LOG];      //4字节的哈希 -> 最近一次出现的位置+1，0表示没有出现过
+        int end = srcOff + length;
+        int anchor = srcOff;                       //还没有输出的字面量的起点
+        int p = srcOff;
+        int d = 0;
+        while(p + MIN_MATCH <= end) {
+            int v = readInt(src, p);
+            int h = (v * 0x9E3779B1) >>> (32 - HASH_LOG);
+            int ref = table[h] - 1;
+            table[h] = p + 1;
+            if(ref < 0 || p - ref > MAX_OFFSET || readInt(src, ref) != v) {
+                p ++;
+                continue;
+            }
+            int match = MIN_MATCH;
+            while(p + match < end && src[ref + match] == src[p + match]) {
+                match ++;
+            }
+            int literals = p - anchor;
+            if(d + sequenceBound(literals, match) > maxLength) {
+                return -1;
+            }
+            d = writeSequence(dst, d, src, anchor, literals, p - ref, match);
+            p += match;
+            anchor = p;
+        }
+        int literals = end - anchor;
+        if(d + sequenceBound(literals, 0) > maxLength) {
+            return -1;
+        }
+        return writeSequence(dst, d, src, anchor, literals, 0, 0);
+    }
+
+    /**
+     * 解压src中从srcOff开始的length个字节到dst，解压后应该正好是rawLength字节
+     * @return 数据损坏时返回false
+     */
+    static boolean decompress(byte[] src, int srcOff, int length, byte[] dst, int rawLength) {
+        int s = srcOff;
+        int end = srcOff + length;
+        int d = 0;
+        while(s < end) {
+            int token = src[s ++] & 0xFF;
+            int literals = token >>> 4;
+            if(literals == 15) {
+                int b;
+                do {
+                    if(s >= end) return false;
+                    b = src[s ++] & 0xFF;
+                    literals += b;
+                } while(b == 255);
+            }
+            if(literals > end - s || literals > rawLength - d) {
+                return false;
+            }
+            System.arraycopy(src, s, dst, d, literals);
+            s += literals;
+            d += literals;
+            if(s == end) {
+                break;      //最后一个序列
+            }
+
+            if(end - s < 2) return false;
+            int offset = (src[s] & 0xFF) | ((src[s + 1] & 0xFF) << 8);
+            s += 2;
+            int match = token & 0xF;
+            if(match == 15) {
+                int b;
+                do {
+                    if(s >= end) return false;
+                    b = src[s ++] & 0xFF;
+                    match += b;
+                } while(b == 255);
+            }
+            match += MIN_MATCH;
+            if(offset == 0 || offset > d || match > rawLength - d) {
+                return false;
+            }
+            //逐字节复制，匹配可能和正在写的字节重叠
+            for(int i = 0; i < match; i ++) {
+                dst[d] = dst[d - offset];
+                d ++;
+            }
+        }
+        return d == rawLength;
+    }
+
+    //一个序列压缩后最多占用的字节数
+    private static int sequenceBound(int literals, int match) {
+        return 1 + literals / 255 + 1 + literals + 2 + match / 255 + 1;
+    }
+
+    /**
+     * 写一个序列，match为0时是只有字面量的最后一个序列
+     */
+    private static int writeSequence(byte[] dst, int d, byte[] src, int anchor, int literals, int offset, int match) {
+        int token = d ++;
+        int matchLength = match - MIN_MATCH;
+        dst[token] = (byte)((Math.min(literals, 15) << 4) | (match == 0 ? 0 : Math.min(matchLength, 15)));
+        if(literals >= 15) {
+            d = writeLength(dst, d, literals - 15);
+        }
+        System.arraycopy(src, anchor, dst, d, literals);
+        d += literals;
+        if(match == 0) {
+            return d;
+        }
+        dst[d ++] = (byte)offset;
+        dst[d ++] = (byte)(offset >>> 8);
+        if(matchLength >= 15) {
+            d = writeLength(dst, d, matchLength - 15);
+        }
+        return d;
+    }
+
+    private static int writeLength(byte[] dst, int d, int length) {
+        while(length >= 255) {
+            dst[d ++] = (byte)255;
+            length -= 255;
+        }
+        dst[d ++] = (byte)length;
+        return d;
+    }
+
+    private static int readInt(byte[] buf, int p) {
+        return (buf[p] & 0xFF) | ((buf[p + 1] & 0xFF) << 8) | ((buf[p + 2] & 0xFF) << 16) | ((buf[p + 3] & 0xFF) << 24);
+    }
+}
@@ -1,11 +1,73 @@
 package GUOFengming.backend.dm.page;
 
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
+/**
+ * 页面锁是读写锁（不可重入）：
+ * 修改页面内容前必须持有排它锁（lock），读可以持有共享锁（lockShared），
+ * 也可以不加锁乐观地读：先取得版本戳，读完后检查期间没有写者加过排它锁，读到的内容才有效。
+ */
 public interface Page {
+    //排它锁
     void lock();
     void unlock();
+    //共享锁
+    void lockShared();
+    void unlockShared();
+    /**
+     * 开始一次乐观读，返回版本戳；页面正被加排它锁时返回0
+     */
+    long tryOptimisticRead();
+    /**
+     * 从stamp以来没有写者加过排它锁时返回true
+     */
+    boolean validate(long stamp);
+    /**
+     * 当前线程是否持有排它锁
+     */
+    boolean isLockedByCurrentThread();
     void release();
     void setDirty(boolean dirty);
     boolean isDirty();
+    /**
+     * 页面的修改写入了LSN为lsn的日志之后调用
+     * 顺序必须是：setDirty(true)、写日志、setLSN，页面的recLSN才不会晚于修改它的日志，违反时抛出IllegalStateException
+     */
+    void setLSN(long lsn);
+    /**
+     * pageLSN：最后一条修改这个页面的日志的LSN，没有时为0
+     * 页面写回文件之前，日志必须已经保存到硬盘到这个位置（WAL）
+     */
+    long getLSN();
     int getPageNumber();
-    byte[] getData();
+    /**
+     * 页面数据，直接指向缓冲池中的页帧（堆外内存），修改会直接反映到页面上
+     * 只能使用按下标的绝对读写方法，不要修改它的position和limit
+     */
+    ByteBuffer getData();
+
+    /**
+     * 读取页面内容：先乐观地读，版本戳失效时加共享锁重读
+     * reader在乐观读时可能读到正在修改的内容，只能做按固定下标的读取，不能因此抛出异常，也不能修改页面
+     * 当前线程已经持有排它锁时直接读（锁不可重入）
+     */
+    default <T> T read(Supplier<T> reader) {
+        if(isLockedByCurrentThread()){
+            return reader.get();
+        }
+        long stamp = tryOptimisticRead();
+        if(stamp != 0){
+            T result = reader.get();
+            if(validate(stamp)){
+                return result;
+            }
+        }
+        lockShared();
+        try{
+            return reader.get();
+        }finally {
+            unlockShared();
+        }
+    }
 }
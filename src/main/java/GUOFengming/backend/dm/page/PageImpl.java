@@ -2,34 +2,85 @@ package GUOFengming.backend.dm.page;
 
 import GUOFengming.backend.dm.pageCache.PageCache;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
 public class PageImpl implements Page{
 
     private int pageNumber;     //从1开始
-    private byte[] data;
-    private boolean dirty;
-    private Lock lock;
+    private ByteBuffer frame;   //页面在内存中的完整内容
+    private ByteBuffer data;    //页帧中交给页面格式使用的部分
+    private volatile boolean dirty;
+    private StampedLock lock;           //页面读写锁，同时提供乐观读的版本戳
+    private volatile Thread writer;     //持有排它锁的线程
+    private long writeStamp;            //排它锁的版本戳，只由持有排它锁的线程读写
+    private final AtomicLong pageLSN = new AtomicLong();     //最后一条修改这个页面的日志的LSN
 
     private PageCache pc;
 
-    public PageImpl(int pageNumber, byte[] data, PageCache pc) {
+    public PageImpl(int pageNumber, ByteBuffer data, PageCache pc) {
+        this(pageNumber,data,0,pc);
+    }
+
+    /**
+     * @param dataOffset 页帧开头由缓存保留的字节数（如校验和），getData()从这之后开始
+     */
+    public PageImpl(int pageNumber, ByteBuffer frame, int dataOffset, PageCache pc) {
         this.pageNumber = pageNumber;
-        this.data = data;
+        this.frame = frame;
+        this.data = dataOffset == 0 ? frame : frame.slice(dataOffset,frame.capacity() - dataOffset);
         this.pc = pc;
-        lock = new ReentrantLock();
+        lock = new StampedLock();
     }
 
 
     @Override
     public void lock() {
-        lock.lock();
+        long stamp = lock.writeLock();
+        writeStamp = stamp;
+        writer = Thread.currentThread();
     }
 
+    /**
+     * 当前线程没有持有排它锁时抛出IllegalMonitorStateException
+     */
     @Override
     public void unlock() {
-        lock.unlock();
+        if(writer != Thread.currentThread()){
+            throw new IllegalMonitorStateException("page " + pageNumber + " is not locked by current thread");
+        }
+        long stamp = writeStamp;
+        writer = null;
+        lock.unlockWrite(stamp);
+    }
+
+    @Override
+    public void lockShared() {
+        lock.readLock();
+    }
+
+    @Override
+    public void unlockShared() {
+        //共享锁不区分持有者，没有任何线程持有共享锁时才能发现错误
+        if(!lock.tryUnlockRead()){
+            throw new IllegalMonitorStateException("page " + pageNumber + " is not locked shared");
+        }
+    }
+
+    @Override
+    public long tryOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return lock.validate(stamp);
+    }
+
+    @Override
+    public boolean isLockedByCurrentThread() {
+        return writer == Thread.currentThread();
     }
 
     @Override
@@ -39,7 +90,25 @@ public class PageImpl implements Page{
 
     @Override
     public void setDirty(boolean dirty) {
+        boolean wasDirty = this.dirty;
         this.dirty = dirty;
+        if(dirty && !wasDirty && pc != null){
+            //页面由干净变脏，通知缓存
+            pc.markDirty(this);
+        }
+    }
+
+    @Override
+    public void setLSN(long lsn) {
+        if(pc != null){
+            pc.markLogged(this,lsn);
+        }
+        pageLSN.accumulateAndGet(lsn,Math::max);
+    }
+
+    @Override
+    public long getLSN() {
+        return pageLSN.get();
     }
 
     @Override
@@ -53,7 +122,14 @@ public class PageImpl implements Page{
     }
 
     @Override
-    public byte[] getData() {
+    public ByteBuffer getData() {
         return data;
     }
+
+    /**
+     * 页帧，包括缓存保留的部分，由缓存读写文件时使用
+     */
+    public ByteBuffer getFrame() {
+        return frame;
+    }
 }
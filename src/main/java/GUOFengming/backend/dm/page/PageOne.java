@@ -3,21 +3,31 @@ package GUOFengming.backend.dm.page;
 import GUOFengming.backend.dm.pageCache.PageCache;
 import GUOFengming.backend.utils.RandomUtil;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * vc ->valid check
  * db启动时给100~107字节处填入一个随即字节，db关闭时将其拷贝到108~115字节处
  * 用于判断上一次数据库是否正常关闭Init
+ * 0~11字节由PageCache保存文件的页面格式，这里不使用
+ *
+ * 16~39字节保存最近一次检查点：[CkptLSN][RedoLSN][UndoLSN]，各8字节
+ * CkptLSN: 检查点开始时日志的末尾位置，为0表示还没有做过检查点
+ * RedoLSN: 检查点完成时还没有保存到硬盘的修改中最早的recLSN，恢复时从这里开始重做
+ * UndoLSN: 检查点开始时最早的活跃事务的第一条日志，恢复时从这里开始查找需要回滚的事务
  */
 public class PageOne {
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
 
+    private static final int OF_CKPT_LSN = 16;
+    private static final int OF_REDO_LSN = OF_CKPT_LSN + 8;
+    private static final int OF_UNDO_LSN = OF_REDO_LSN + 8;
+
     //初始化数据库时调用，创建第一页
     public static byte[] InitRaw(){
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setVcOpen(raw);
+        setVcOpen(ByteBuffer.wrap(raw));
         return raw;
     }
 
@@ -26,11 +36,10 @@ public class PageOne {
         setVcOpen(pg.getData());
     }
 
-    private static void setVcOpen(byte[] raw){
+    private static void setVcOpen(ByteBuffer raw){
         //在第一页的page对象pg的100~107字节处填入随机字节
         // 并将第一页标记为脏，在数据库正常关闭时写入硬盘文件
-        //五个参数 ： 原数组、原数组起始位置、目标数组、目标数组起始位置、复制的长度
-        System.arraycopy(RandomUtil.randomBytes(LEN_VC),0,raw,OF_VC,LEN_VC);
+        raw.put(OF_VC,RandomUtil.randomBytes(LEN_VC));
     }
 
     public static void setVcClose(Page pg){
@@ -38,21 +47,42 @@ public class PageOne {
         setVcClose(pg.getData());
     }
 
-    private static void setVcClose(byte[] raw){
+    private static void setVcClose(ByteBuffer raw){
         //数据库关闭时调用该方法，将第一页的page对象pg的100~107字节处的随机字节
         //拷贝到108~115字节处
-        //五个参数 ： 原数组、原数组起始位置、目标数组、目标数组起始位置、复制的长度
-        System.arraycopy(raw,OF_VC,raw,OF_VC + LEN_VC,LEN_VC);
+        //四个参数 ： 目标起始位置、原缓冲区、原缓冲区起始位置、复制的长度
+        raw.put(OF_VC + LEN_VC,raw,OF_VC,LEN_VC);
+    }
+
+    /**
+     * 记录一次检查点
+     */
+    public static void setCheckpoint(Page pg,long ckptLSN,long redoLSN,long undoLSN){
+        pg.setDirty(true);
+        ByteBuffer raw = pg.getData();
+        raw.putLong(OF_CKPT_LSN,ckptLSN);
+        raw.putLong(OF_REDO_LSN,redoLSN);
+        raw.putLong(OF_UNDO_LSN,undoLSN);
+    }
+
+    public static long getCheckpointLSN(Page pg){
+        return pg.getData().getLong(OF_CKPT_LSN);
+    }
+
+    public static long getRedoLSN(Page pg){
+        return pg.getData().getLong(OF_REDO_LSN);
+    }
+
+    public static long getUndoLSN(Page pg){
+        return pg.getData().getLong(OF_UNDO_LSN);
     }
 
     public static boolean checkVc(Page pg){
         return checkVc(pg.getData());
     }
 
-    private static boolean checkVc(byte[] raw){
+    private static boolean checkVc(ByteBuffer raw){
         //比较第一页的page对象pg的100~108字节处与108~115字节处内容
-        return Arrays.equals(
-                Arrays.copyOfRange(raw,OF_VC,OF_VC + LEN_VC)
-                ,Arrays.copyOfRange(raw,OF_VC + LEN_VC,OF_VC + LEN_VC + LEN_VC));
+        return raw.slice(OF_VC,LEN_VC).equals(raw.slice(OF_VC + LEN_VC,LEN_VC));
     }
 }
@@ -0,0 +1,450 @@
+package GUOFengming.backend.dm.page;
+
+import GUOFengming.backend.dm.pageCache.PageCache;
+import GUOFengming.backend.dm.pageIndex.PageIndex;
+import GUOFengming.common.Error;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PageSlotted管理带槽目录的普通页
+ * 页面结构
+ * [Format][SlotCount][DataStart][Fragmented][PageLSN][Slot0][Slot1]...[SlotN] ... 空闲 ... [DataN]...[Data1][Data0]
+ * Format: 2字节，固定为FORMAT_SLOTTED(1)。PageX的FreeSpaceOffset至少为2，新分配的全0页面为0，以此区分两种格式
+ * SlotCount: 2字节，槽的个数
+ * DataStart: 2字节，数据区的起始位置，数据从页尾向前增长
+ * Fragmented: 2字节，删除或缩短记录后留在数据区中的碎片字节数
+ * PageLSN: 8字节，最后一条修改这个页面的日志的LSN，和页面一起写回文件，恢复时跳过页面已经包含的日志
+ * Slot: 4字节 [Offset][Length]，Offset为0表示空槽
+ *
+ * 记录用 (页号, 槽号) 定位，即 Types.addressToUid(pgno, slot)，槽号不随记录在页内的移动而改变。
+ * 删除或缩短记录留下的碎片在空闲空间不够时通过页内整理（compact）回收，不需要把页面重写到别处。
+ * 所有的长度和偏移都是2字节无符号数，64kb页面的最后一个字节不使用。
+ * 写入之前先检查空间（包括可以回收的碎片）是否足够，不够时抛出PageFullException，页面不做任何修改。
+ * 删除和更新的槽号超出槽目录或者是空槽时抛出InvalidSlotException，页面同样不做修改。
+ *
+ * 插入、更新、删除都要写日志（Recover.slotInsertLog/slotUpdateLog/slotDeleteLog），修改之后用setLSN代替pg.setLSN。
+ * 日志按槽号记录内容，重做时记录放在页内什么位置都可以，所以页内整理不写日志。
+ * 删除或缩短记录释放的槽和空间在这个事务结束之前不能被其他事务使用，否则撤销时会覆盖别的记录或者放不下。
+ * 和PageX一样，修改页面的方法持有页面的排它锁（调用者已经持有时直接修改），读取的方法通过pg.read乐观地读，
+ * 页内整理移动记录时读者不会读到移动了一半的记录；异常在释放锁之后抛出。
+ */
+public class PageSlotted {
+
+    public static final short FORMAT_SLOTTED = 1;
+
+    private static final int OF_FORMAT = 0;
+    private static final int OF_SLOT_COUNT = 2;
+    private static final int OF_DATA_START = 4;
+    private static final int OF_FRAGMENTED = 6;
+    private static final int OF_PAGE_LSN = 8;
+    private static final int OF_SLOTS = 16;
+    private static final int SLOT_SIZE = 4;
+    private static final int MAX_END = 0xFFFF;     //2字节无符号数能表示的最大位置
+
+    public static byte[] initRaw(){
+        return initRaw(PageCache.PAGE_SIZE);
+    }
+
+    //按页面可用的大小（PageCache.getPageDataSize()）创建新页面
+    public static byte[] initRaw(int size){
+        byte[] raw = new byte[size];
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        buf.putShort(OF_FORMAT,FORMAT_SLOTTED);
+        setDataStart(buf,end(buf));
+        return raw;
+    }
+
+    /**
+     * 把全0的页面格式化为空的带槽目录的页面
+     * 新页面的初始内容不写日志，崩溃时还没有写回的新页面在文件中是全0的，恢复时先格式化再重做它的日志
+     */
+    public static void recoverInit(Page pg){
+        PageX.write(pg,() -> {
+            pg.setDirty(true);
+            pg.getData().put(0,initRaw(pg.getData().capacity()));
+            return null;
+        });
+    }
+
+    /**
+     * 判断页面是否是带槽目录的格式，不是时按PageX读取
+     */
+    public static boolean isSlotted(Page pg){
+        return pg.read(() -> pg.getData().getShort(OF_FORMAT) == FORMAT_SLOTTED);
+    }
+
+    /**
+     * 下一次插入使用的槽号，写插入日志时调用
+     * 调用者需要持有排它锁直到插入完成，并且已经用getFreeSpace确认放得下
+     */
+    public static short getInsertSlot(Page pg){
+        return pg.read(() -> (short) findFreeSlot(pg.getData()));
+    }
+
+    //将raw插入pg中，返回槽号；空间不够时抛出PageFullException
+    public static short insert(Page pg,byte[] raw) throws Exception {
+        int slot = PageX.write(pg,() -> {
+            ByteBuffer buf = pg.getData();
+            int s = findFreeSlot(buf);
+            int need = raw.length + (s == getSlotCount(buf) ? SLOT_SIZE : 0);
+            if(available(buf) < need){
+                return -1;
+            }
+            pg.setDirty(true);
+            if(contiguousFree(buf) < need){
+                compact(buf);
+            }
+            if(s == getSlotCount(buf)){
+                setSlotCount(buf,s + 1);
+            }
+            int offset = allocate(buf,raw.length);
+            buf.put(offset,raw);
+            setSlot(buf,s,offset,raw.length);
+            return s;
+        });
+        if(slot < 0){
+            throw Error.PageFullException;
+        }
+        return (short) slot;
+    }
+
+    //将raw插入pg中，并更新pg在空闲空间索引中的位置
+    public static short insert(Page pg,byte[] raw,PageIndex pIndex) throws Exception {
+        short slot = insert(pg,raw);
+        pIndex.add(pg.getPageNumber(),getFreeSpace(pg));
+        return slot;
+    }
+
+    /**
+     * 读取slot号记录（复制一份），记录已删除时返回null
+     * 之后的修改、页内整理或者页帧被回收都不影响返回的内容
+     */
+    public static byte[] read(Page pg,short slot){
+        int s = Short.toUnsignedInt(slot);
+        return pg.read(() -> {
+            ByteBuffer buf = pg.getData();
+            if(!isValid(buf,s)){
+                return null;
+            }
+            int offset = getSlotOffset(buf,s);
+            int length = getSlotLength(buf,s);
+            if(offset + length > buf.capacity()){
+                //乐观读读到了修改了一半的槽，pg.read会加共享锁重读
+                return null;
+            }
+            byte[] raw = new byte[length];
+            buf.get(offset,raw);
+            return raw;
+        });
+    }
+
+    //删除slot号记录，它占用的空间成为碎片
+    public static void delete(Page pg,short slot) throws Exception {
+        int s = Short.toUnsignedInt(slot);
+        boolean deleted = PageX.write(pg,() -> {
+            ByteBuffer buf = pg.getData();
+            if(!isValid(buf,s)){
+                return false;
+            }
+            pg.setDirty(true);
+            delete(buf,s);
+            return true;
+        });
+        if(!deleted){
+            throw Error.InvalidSlotException;
+        }
+    }
+
+    private static void delete(ByteBuffer buf,int s){
+        free(buf,s);
+        //末尾的空槽可以直接去掉
+        int count = getSlotCount(buf);
+        while(count > 0 && getSlotOffset(buf,count - 1) == 0){
+            count --;
+        }
+        setSlotCount(buf,count);
+    }
+
+    /**
+     * 用raw替换slot号记录：不变长时原地覆盖，变短时多出的部分成为碎片，
+     * 变长时在页内重新分配空间，槽号不变；页内放不下时抛出PageFullException
+     */
+    public static void update(Page pg,short slot,byte[] raw) throws Exception {
+        int s = Short.toUnsignedInt(slot);
+        Exception e = PageX.write(pg,() -> update(pg,pg.getData(),s,raw));
+        if(e != null){
+            throw e;
+        }
+    }
+
+    //持有排它锁时替换记录，返回要抛出的异常，成功时返回null
+    private static Exception update(Page pg,ByteBuffer buf,int s,byte[] raw){
+        if(!isValid(buf,s)){
+            return Error.InvalidSlotException;
+        }
+        int offset = getSlotOffset(buf,s);
+        int length = getSlotLength(buf,s);
+        //原来的记录释放后也可以使用
+        if(raw.length > length && available(buf) + length < raw.length){
+            return Error.PageFullException;
+        }
+        pg.setDirty(true);
+        if(raw.length <= length){
+            buf.put(offset,raw);
+            setSlot(buf,s,offset,raw.length);
+            setFragmented(buf,getFragmented(buf) + length - raw.length);
+            return null;
+        }
+        free(buf,s);
+        if(contiguousFree(buf) < raw.length){
+            compact(buf);
+        }
+        offset = allocate(buf,raw.length);
+        buf.put(offset,raw);
+        setSlot(buf,s,offset,raw.length);
+        return null;
+    }
+
+    //获取页面能插入的最大数据长度（包括整理后可以回收的碎片）
+    public static int getFreeSpace(Page pg){
+        return pg.read(() -> {
+            ByteBuffer buf = pg.getData();
+            int free = available(buf);
+            if(findFreeSlot(buf) == getSlotCount(buf)){
+                //没有空槽，插入时还要占用一个新槽
+                free -= SLOT_SIZE;
+            }
+            return Math.max(free,0);
+        });
+    }
+
+    /**
+     * 恢复插入：把raw放到slot号槽中
+     * 恢复时槽号由日志给出，记录在页内的位置可以与原来不同，重复执行结果相同
+     */
+    public static void recoverInsert(Page pg,byte[] raw,short slot) throws Exception {
+        int s = Short.toUnsignedInt(slot);
+        Exception e = PageX.write(pg,() -> {
+            ByteBuffer buf = pg.getData();
+            int count = getSlotCount(buf);
+            if(isValid(buf,s)){
+                //已经插入过了，覆盖成日志中的内容
+                return update(pg,buf,s,raw);
+            }
+            if(available(buf) < Math.max(s + 1 - count,0) * SLOT_SIZE + raw.length){
+                return Error.PageFullException;
+            }
+            pg.setDirty(true);
+            if(s >= count){
+                //中间的槽补成空槽
+                for(int i = count; i < s; i ++){
+                    setSlot(buf,i,0,0);
+                }
+                if(contiguousFree(buf) < (s + 1 - count) * SLOT_SIZE + raw.length){
+                    compact(buf);
+                }
+                setSlotCount(buf,s + 1);
+            }else if(contiguousFree(buf) < raw.length){
+                compact(buf);
+            }
+            int offset = allocate(buf,raw.length);
+            buf.put(offset,raw);
+            setSlot(buf,s,offset,raw.length);
+            return null;
+        });
+        if(e != null){
+            throw e;
+        }
+    }
+
+    //恢复插入，并更新pg在空闲空间索引中的位置
+    public static void recoverInsert(Page pg,byte[] raw,short slot,PageIndex pIndex) throws Exception {
+        recoverInsert(pg,raw,slot);
+        pIndex.add(pg.getPageNumber(),getFreeSpace(pg));
+    }
+
+    /**
+     * 恢复更新：槽号不变，用raw替换记录
+     * 和恢复插入相同，槽还不存在时（例如页面比日志旧）直接放入
+     */
+    public static void recoverUpdate(Page pg,byte[] raw,short slot) throws Exception {
+        recoverInsert(pg,raw,slot);
+    }
+
+    //恢复删除
+    public static void recoverDelete(Page pg,short slot){
+        int s = Short.toUnsignedInt(slot);
+        PageX.write(pg,() -> {
+            ByteBuffer buf = pg.getData();
+            if(isValid(buf,s)){
+                pg.setDirty(true);
+                delete(buf,s);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 页内整理：把所有记录紧密地移到页尾，碎片合并进中间的空闲区，槽号不变
+     */
+    public static void compact(Page pg){
+        PageX.write(pg,() -> {
+            pg.setDirty(true);
+            compact(pg.getData());
+            return null;
+        });
+    }
+
+    private static void compact(ByteBuffer buf){
+        int count = getSlotCount(buf);
+        //按记录位置从后往前处理，每条记录只会向页尾移动，不会覆盖还没处理的记录
+        List<Integer> order = new ArrayList<>(count);
+        for(int i = 0; i < count; i ++){
+            if(getSlotOffset(buf,i) != 0){
+                order.add(i);
+            }
+        }
+        order.sort((a,b) -> getSlotOffset(buf,b) - getSlotOffset(buf,a));
+
+        int end = end(buf);
+        for(int s : order){
+            int offset = getSlotOffset(buf,s);
+            int length = getSlotLength(buf,s);
+            int target = end - length;
+            if(target != offset){
+                buf.put(target,buf,offset,length);
+                setSlot(buf,s,target,length);
+            }
+            end = target;
+        }
+        setDataStart(buf,end);
+        setFragmented(buf,0);
+    }
+
+    /**
+     * 页面中记录的PageLSN，没有写过日志时为0
+     */
+    public static long getLSN(Page pg){
+        return pg.read(() -> pg.getData().getLong(OF_PAGE_LSN));
+    }
+
+    /**
+     * 修改写入了LSN为lsn的日志之后调用，代替pg.setLSN：同时把它记为页面中的PageLSN
+     */
+    public static void setLSN(Page pg,long lsn){
+        PageX.write(pg,() -> {
+            setPageLSN(pg.getData(),lsn);
+            return null;
+        });
+        pg.setLSN(lsn);
+    }
+
+    /**
+     * 恢复时重做了LSN为lsn的日志之后调用，只修改页面中的PageLSN
+     */
+    public static void recoverLSN(Page pg,long lsn){
+        PageX.write(pg,() -> {
+            pg.setDirty(true);
+            setPageLSN(pg.getData(),lsn);
+            return null;
+        });
+    }
+
+    private static void setPageLSN(ByteBuffer buf,long lsn){
+        if(lsn > buf.getLong(OF_PAGE_LSN)){
+            buf.putLong(OF_PAGE_LSN,lsn);
+        }
+    }
+
+    //页面中可以使用的部分的结尾
+    private static int end(ByteBuffer buf){
+        return Math.min(buf.capacity(),MAX_END);
+    }
+
+    //从数据区起始位置向前分配length字节，调用前保证空间足够
+    private static int allocate(ByteBuffer buf,int length){
+        int offset = getDataStart(buf) - length;
+        setDataStart(buf,offset);
+        return offset;
+    }
+
+    //释放slot号记录占用的空间，槽变为空槽
+    private static void free(ByteBuffer buf,int s){
+        int offset = getSlotOffset(buf,s);
+        int length = getSlotLength(buf,s);
+        if(offset == getDataStart(buf)){
+            //记录恰好在数据区开头，直接归还给空闲区
+            setDataStart(buf,offset + length);
+        }else{
+            setFragmented(buf,getFragmented(buf) + length);
+        }
+        setSlot(buf,s,0,0);
+    }
+
+    //s号槽在槽目录中并且不是空槽
+    private static boolean isValid(ByteBuffer buf,int s){
+        return s < getSlotCount(buf) && getSlotOffset(buf,s) != 0;
+    }
+
+    //第一个空槽，没有时返回SlotCount（即需要新建的槽号）
+    private static int findFreeSlot(ByteBuffer buf){
+        int count = getSlotCount(buf);
+        for(int i = 0; i < count; i ++){
+            if(getSlotOffset(buf,i) == 0){
+                return i;
+            }
+        }
+        return count;
+    }
+
+    //整理后可以使用的空间：连续空闲空间加上碎片
+    private static int available(ByteBuffer buf){
+        return contiguousFree(buf) + getFragmented(buf);
+    }
+
+    //槽目录末尾与数据区之间的连续空闲空间
+    private static int contiguousFree(ByteBuffer buf){
+        return getDataStart(buf) - (OF_SLOTS + getSlotCount(buf) * SLOT_SIZE);
+    }
+
+    //乐观读可能读到修改了一半的SlotCount，限制在槽目录最多能占用的范围内，按槽号读时不会越界
+    private static int getSlotCount(ByteBuffer buf){
+        return Math.min(Short.toUnsignedInt(buf.getShort(OF_SLOT_COUNT)),(end(buf) - OF_SLOTS) / SLOT_SIZE);
+    }
+
+    private static void setSlotCount(ByteBuffer buf,int count){
+        buf.putShort(OF_SLOT_COUNT,(short) count);
+    }
+
+    private static int getDataStart(ByteBuffer buf){
+        return Short.toUnsignedInt(buf.getShort(OF_DATA_START));
+    }
+
+    private static void setDataStart(ByteBuffer buf,int dataStart){
+        buf.putShort(OF_DATA_START,(short) dataStart);
+    }
+
+    private static int getFragmented(ByteBuffer buf){
+        return Short.toUnsignedInt(buf.getShort(OF_FRAGMENTED));
+    }
+
+    private static void setFragmented(ByteBuffer buf,int fragmented){
+        buf.putShort(OF_FRAGMENTED,(short) fragmented);
+    }
+
+    private static int getSlotOffset(ByteBuffer buf,int s){
+        return Short.toUnsignedInt(buf.getShort(OF_SLOTS + s * SLOT_SIZE));
+    }
+
+    private static int getSlotLength(ByteBuffer buf,int s){
+        return Short.toUnsignedInt(buf.getShort(OF_SLOTS + s * SLOT_SIZE + 2));
+    }
+
+    private static void setSlot(ByteBuffer buf,int s,int offset,int length){
+        buf.putShort(OF_SLOTS + s * SLOT_SIZE,(short) offset);
+        buf.putShort(OF_SLOTS + s * SLOT_SIZE + 2,(short) length);
+    }
+}
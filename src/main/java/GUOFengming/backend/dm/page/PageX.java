@@ -1,9 +1,10 @@
 package GUOFengming.backend.dm.page;
 
 import GUOFengming.backend.dm.pageCache.PageCache;
-import GUOFengming.backend.utils.Parser;
+import GUOFengming.backend.dm.pageIndex.PageIndex;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
 
 /**
  * PageX管理普通页
@@ -11,56 +12,117 @@ import java.util.Arrays;
  * [FreeSpaceOffset] [Data]
  * FreeSpaceOffset: 2字节的无符号数 记录的是当前页面 （Page） 数据结尾的下一个字节处的索引，
  * 也就是 新数据应该插入的位置。
+ * 页面大小由数据库决定（4kb~64kb），FreeSpaceOffset最大为65535，64kb页面的最后一个字节不使用。
+ * 返回和传入的offset都是short，按无符号数解释。
+ * 修改页面的方法自己持有页面的排它锁；调用者已经持有时（例如需要和写日志一起完成）直接修改。
+ * 新页面的初始内容不单独写入文件，崩溃后文件中间可能留下全0的页面（日志中没有它的修改）；
+ * FreeSpaceOffset小于OF_DATA的页面按还没有数据的空页面处理，读到的FSO都是OF_DATA。
  */
 public class PageX {
 
     private static final short OF_FREE = 0;     //pageX的起始位置
     private static final short OF_DATA = 2;     //新数据前的2字节偏移量
 
-    //一页最多写8192 - 2字节的数据（pageX开头偏移2字节）
+    private static final int MAX_END = 0xFFFF;   //FreeSpaceOffset能表示的最大位置
+
+    //默认大小的页面最多写8192 - 2字节的数据（pageX开头偏移2字节）
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
 
+    //pg所在数据库中一页最多能写的数据
+    public static int getMaxFreeSpace(Page pg){
+        return end(pg.getData()) - OF_DATA;
+    }
+
     public static byte[] initRaw(){
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw,OF_DATA);
+        return initRaw(PageCache.PAGE_SIZE);
+    }
+
+    //按页面可用的大小（PageCache.getPageDataSize()）创建新页面
+    public static byte[] initRaw(int size){
+        byte[] raw = new byte[size];
+        setFSO(ByteBuffer.wrap(raw),OF_DATA);
         return raw;
     }
 
     /**
-     * 将ofDate转换为字节数组覆盖掉raw的0-1（2个字节）位置
+     * 将ofDate写入raw的0-1（2个字节）位置
      * @param raw
      * @param ofData
      */
-    private static void setFSO(byte[] raw,short ofData){
-        System.arraycopy(Parser.short2Byte(ofData),0,raw,OF_FREE,OF_DATA);
+    private static void setFSO(ByteBuffer raw,short ofData){
+        raw.putShort(OF_FREE,ofData);
     }
 
+    /**
+     * 获取FSO:实际也就是当前页面占用的大小
+     */
     public static short getFSO(Page pg){
-        return getFSO(pg.getData());
+        return pg.read(() -> (short) fso(pg.getData()));
+    }
+
+    //FSO的无符号值，没有初始化的页面（全0）返回OF_DATA
+    private static int fso(ByteBuffer raw){
+        int fso = Short.toUnsignedInt(raw.getShort(OF_FREE));
+        return fso < OF_DATA ? OF_DATA : fso;
+    }
+
+    //页面中可以使用的部分的结尾
+    private static int end(ByteBuffer raw){
+        return Math.min(raw.capacity(),MAX_END);
     }
 
     /**
-     * 获取FSO:实际也就是当前页面占用的大小
+     * 持有pg的排它锁执行writer，当前线程已经持有时直接执行（锁不可重入）
+     * PageSlotted也用它修改页面
      */
-    private static short getFSO(byte[] raw){
-        return Parser.parseShort(Arrays.copyOfRange(raw,0,2));
+    static <T> T write(Page pg,Supplier<T> writer){
+        if(pg.isLockedByCurrentThread()){
+            return writer.get();
+        }
+        pg.lock();
+        try{
+            return writer.get();
+        }finally {
+            pg.unlock();
+        }
     }
 
     //将raw插入pg中，返回插入的位置
     public static short insert(Page pg,byte[] raw){
-        pg.setDirty(true);
-        //获取偏移量
-        short offset = getFSO(pg.getData());
-        //将raw内的内容写入pg的以offset索引开始处
-        System.arraycopy(raw,0,pg.getData(),offset,raw.length);
-        //更新偏移量FSO
-        setFSO(pg.getData(),(short)(offset + raw.length));
+        return write(pg,() -> {
+            pg.setDirty(true);
+            //获取偏移量
+            int offset = fso(pg.getData());
+            //将raw内的内容写入pg的以offset索引开始处
+            pg.getData().put(offset,raw);
+            //更新偏移量FSO
+            setFSO(pg.getData(),(short)(offset + raw.length));
+            return (short) offset;
+        });
+    }
+
+    //将raw插入pg中，并更新pg在空闲空间索引中的位置
+    public static short insert(Page pg,byte[] raw,PageIndex pIndex){
+        short offset = insert(pg,raw);
+        pIndex.add(pg.getPageNumber(),getFreeSpace(pg));
         return offset;
     }
 
     //获取页面的空闲空间大小
     public static int getFreeSpace(Page pg){
-        return PageCache.PAGE_SIZE - (int) getFSO(pg.getData());
+        return pg.read(() -> end(pg.getData()) - fso(pg.getData()));
+    }
+
+    /**
+     * 读取offset处length字节的数据（复制一份），不阻塞其他读者
+     */
+    public static byte[] read(Page pg,short offset,int length){
+        int off = Short.toUnsignedInt(offset);
+        byte[] raw = new byte[length];
+        return pg.read(() -> {
+            pg.getData().get(off,raw);
+            return raw;
+        });
     }
 
     /**
@@ -72,21 +134,34 @@ public class PageX {
      * （此时没有真正格式化，只是逻辑上格式化了，如果后续进行插入数据的操作，会把这部分覆盖）
      */
     public static void recoverInsert(Page pg,byte[] raw,short offset){
-        pg.setDirty(true);
-        //将raw（需要恢复插入的数据）复制到pg的offset处  但此处不更新fso！！！
-        System.arraycopy(raw,0,pg.getData(),offset,raw.length);
-        //获取原先fso
-        short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length){
-            //更新fso
-            setFSO(pg.getData(),(short) (offset + raw.length));
-        }
+        write(pg,() -> {
+            pg.setDirty(true);
+            int off = Short.toUnsignedInt(offset);
+            //将raw（需要恢复插入的数据）复制到pg的offset处  但此处不更新fso！！！
+            pg.getData().put(off,raw);
+            //获取原先fso
+            int rawFSO = fso(pg.getData());
+            if(rawFSO < off + raw.length){
+                //更新fso
+                setFSO(pg.getData(),(short) (off + raw.length));
+            }
+            return null;
+        });
+    }
+
+    //恢复插入，并更新pg在空闲空间索引中的位置
+    public static void recoverInsert(Page pg,byte[] raw,short offset,PageIndex pIndex){
+        recoverInsert(pg,raw,offset);
+        pIndex.add(pg.getPageNumber(),getFreeSpace(pg));
     }
 
     //将raw插入pg的offset位置，不更新offset
     public static void recoverUpdate(Page pg,byte[] raw,short offset){
-        pg.setDirty(true);
-        System.arraycopy(raw,0,pg.getData(),offset,raw.length);
+        write(pg,() -> {
+            pg.setDirty(true);
+            pg.getData().put(Short.toUnsignedInt(offset),raw);
+            return null;
+        });
     }
 
 }
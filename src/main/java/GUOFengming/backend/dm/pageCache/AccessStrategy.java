@@ -0,0 +1,76 @@
+package GUOFengming.backend.dm.pageCache;
+
+import java.util.ArrayDeque;
+
+/**
+ * 缓冲区访问策略
+ * 全表扫描、清理（vacuum）、批量导入这类大范围的一次性访问，如果和普通访问一样使用整个缓存，
+ * 会把所有热点页面挤出去。使用访问策略时，这次访问只在缓存中占用一个小的环（ring）：
+ * 不在缓存中的页面读入后记在环里，环满时先驱逐环里最早读入的页面，再读下一页，
+ * 所以整个扫描最多只占用环大小个缓存位置，不会驱逐其他页面。
+ * 已经在缓存中的页面照常使用，但不通知驱逐策略，扫描经过也不会让它变得更"热"。
+ *
+ * 环里的页面如果正被其他线程引用，就不驱逐，留在缓存中，由驱逐策略正常处理。
+ * 一个AccessStrategy对象只属于一次访问（一个线程），不能在线程之间共享。
+ */
+public class AccessStrategy {
+
+    public enum Type {
+        BULK_READ,      //全表扫描
+        BULK_WRITE,     //批量导入，环较大，驱逐的脏页写回可以合并
+        VACUUM          //清理
+    }
+
+    private static final int BULK_READ_RING = 256 * 1024;          //环的大小（字节）
+    private static final int BULK_WRITE_RING = 16 * 1024 * 1024;
+    private static final int VACUUM_RING = 256 * 1024;
+
+    private final Type type;
+    private final int ringBytes;
+    private final ArrayDeque<Integer> ring = new ArrayDeque<>();   //环中的页号，按读入顺序
+    private int ringPages = -1;                                    //第一次使用时根据页面大小和缓存大小确定
+
+    private AccessStrategy(Type type,int ringBytes) {
+        this.type = type;
+        this.ringBytes = ringBytes;
+    }
+
+    public static AccessStrategy create(Type type) {
+        switch (type) {
+            case BULK_WRITE:
+                return new AccessStrategy(type,BULK_WRITE_RING);
+            case VACUUM:
+                return new AccessStrategy(type,VACUUM_RING);
+            default:
+                return new AccessStrategy(type,BULK_READ_RING);
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * 环的页数，不超过缓存的1/8，避免和普通访问抢位置
+     */
+    int ringPages(int pageSize,int maxResource) {
+        if(ringPages < 0){
+            ringPages = Math.max(Math.min(ringBytes / pageSize,maxResource / 8),1);
+        }
+        return ringPages;
+    }
+
+    /**
+     * 环满时取出最早读入的页面，由缓存尝试驱逐它，没有时返回null
+     */
+    Integer next(int ringPages) {
+        return ring.size() >= ringPages ? ring.pollFirst() : null;
+    }
+
+    /**
+     * 记录一个由这次访问读入缓存的页面
+     */
+    void add(int pgno) {
+        ring.addLast(pgno);
+    }
+}
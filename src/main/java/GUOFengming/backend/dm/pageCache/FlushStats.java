@@ -0,0 +1,31 @@
+package GUOFengming.backend.dm.pageCache;
+
+/**
+ * 刷脏统计：写了多少页、合并成了多少段连续页面、调用了多少次write
+ * pages / runs 越大，说明合并的效果越好
+ */
+public class FlushStats {
+    public long pages;          //写回的页面数
+    public long runs;           //合并后的连续段数，每段用一次聚集写写入
+    public long writeCalls;     //实际的write调用次数
+    public long syncs;          //force次数
+
+    public synchronized void add(FlushStats other) {
+        pages += other.pages;
+        runs += other.runs;
+        writeCalls += other.writeCalls;
+        syncs += other.syncs;
+    }
+
+    public synchronized FlushStats copy() {
+        FlushStats s = new FlushStats();
+        s.add(this);
+        return s;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "pages=" + pages + " runs=" + runs + " writeCalls=" + writeCalls + " syncs=" + syncs
+                + " pagesPerRun=" + (runs == 0 ? 0 : String.format("%.2f",(double) pages / runs));
+    }
+}
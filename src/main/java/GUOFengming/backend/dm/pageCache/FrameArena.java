@@ -0,0 +1,58 @@
+package GUOFengming.backend.dm.pageCache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * 页帧池
+ * 启动时一次性申请堆外内存（DirectByteBuffer），切分成一个个页面大小的页帧。
+ * 页面被载入缓存时从这里取出一个页帧，被驱逐后归还，页面数据不再占用堆内存，
+ * 也不会在页面换入换出时反复申请8kb的数组，GC不需要扫描和复制缓冲池。
+ *
+ * 单个DirectByteBuffer最大2GB，所以按块申请，每块包含若干个页帧。
+ */
+public class FrameArena {
+
+    private static final int CHUNK_SIZE = 1 << 30;     //每块堆外内存1GB
+
+    private final int frameSize;
+    private final ArrayBlockingQueue<ByteBuffer> freeFrames;       //空闲页帧
+
+    public FrameArena(int frames, int frameSize) {
+        this.frameSize = frameSize;
+        this.freeFrames = new ArrayBlockingQueue<>(frames);
+        int framesPerChunk = CHUNK_SIZE / frameSize;
+        int left = frames;
+        while(left > 0){
+            int n = Math.min(left,framesPerChunk);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(n * frameSize);
+            for(int i = 0; i < n; i ++){
+                freeFrames.offer(chunk.slice(i * frameSize,frameSize));
+            }
+            left -= n;
+        }
+    }
+
+    /**
+     * 取出一个页帧，内容是上一次使用留下的数据，由调用者覆盖
+     * 池中的页帧用完时（缓存上限之外的临时页面）单独申请一个，归还时直接丢弃
+     */
+    public ByteBuffer checkout() {
+        ByteBuffer frame = freeFrames.poll();
+        if(frame == null){
+            frame = ByteBuffer.allocateDirect(frameSize);
+        }
+        return frame;
+    }
+
+    /**
+     * 归还页帧，调用者之后不能再访问它
+     */
+    public void recycle(ByteBuffer frame) {
+        freeFrames.offer(frame);
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+}
@@ -0,0 +1,301 @@
+package GUOFengming.backend.dm.pageCache;
+
+import GUOFengming.backend.common.AbstractCache;
+import GUOFengming.backend.dm.page.Page;
+import GUOFengming.backend.dm.page.PageImpl;
+import GUOFengming.backend.utils.Panic;
+import GUOFengming.common.Error;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * 使用内存映射的页面缓存
+ * 将.db文件按块（每块CHUNK_PAGES页）映射到内存，getPage返回的页面直接指向映射区域，
+ * 缺页时不需要read系统调用，也不需要把8kb数据复制到页帧中，由操作系统的页缓存负责换入换出和回写。
+ * 适合数据能放进操作系统页缓存、以读为主的场景。
+ *
+ * 映射一个新块时文件会被扩展到块的末尾，块中还没有分配的页面全为0。
+ * 关闭时把文件截断到实际页数；异常关闭后再打开时，从文件末尾跳过全0的页面来确定实际页数。
+ *
+ * 这里的缓存只用来保证同一页面只有一个Page对象（页面锁和脏标记都在Page对象上），
+ * 驱逐时不需要回写，修改过的页面在 flushPage 或关闭时force到硬盘。
+ *
+ * 操作系统可能在任何时候把映射区域写回文件，无法保证修改页面的日志先于页面保存到硬盘（WAL），
+ * 只有 flushPage 会先等待页面的日志保存到硬盘。需要崩溃后能撤销未提交修改的场景应使用PageCacheImpl。
+ */
+public class MappedPageCacheImpl extends AbstractCache<Page> implements PageCache {
+
+    private static final int MEM_MIN_LIM = 10;
+    private static final int CHUNK_PAGES = 1 << 13;       //每块8192页，8kb的页面对应64MB
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private PageFormat format;              //文件的页面格式
+    private int pageSize;                   //页面大小，由文件格式决定
+    private long chunkSize;                 //每块映射的字节数
+    private volatile LongConsumer logFlusher = lsn -> {};
+
+    private AtomicInteger pageNumbers = new AtomicInteger();    //记录当前数据库有多少页，由init确定
+
+    public MappedPageCacheImpl(RandomAccessFile file, FileChannel fc,int maxResource) {
+        this(file,fc,maxResource,new PageCacheOptions());
+    }
+
+    public MappedPageCacheImpl(RandomAccessFile file, FileChannel fc,int maxResource,PageCacheOptions options) {
+        super(maxResource,options.policy);
+        if(maxResource < MEM_MIN_LIM){
+            Panic.panic(Error.MemTooSmallException);
+        }
+        long length = 0;
+        try{
+            length = file.length();
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        this.file = file;
+        this.fc = fc;
+        this.format = PageFormat.read(fc,length,options);
+        if(format.hasChecksum()){
+            //映射区域随时可能被操作系统写回，无法在写回前更新校验和
+            Panic.panic(Error.MmapChecksumException);
+        }
+        this.pageSize = format.getPageSize();
+        this.chunkSize = (long) CHUNK_PAGES * pageSize;
+    }
+
+    /**
+     * 确定实际页数，构造完成之后由PageCache.create/open调用（直接构造时需要自己调用），
+     * 避免在构造函数中映射和读取文件
+     */
+    public MappedPageCacheImpl init() {
+        try{
+            pageNumbers.set(countPages((int)(fc.size() / pageSize)));
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        return this;
+    }
+
+    /**
+     * 异常关闭时文件末尾可能留有映射时扩展出来的全0页面，从后往前跳过它们
+     */
+    private int countPages(int filePages){
+        int pages = filePages;
+        while(pages > 0 && isZero(view(pages))){
+            pages --;
+        }
+        return pages;
+    }
+
+    static boolean isZero(ByteBuffer page){
+        for(int i = 0; i < page.capacity(); i += Long.BYTES){
+            if(page.getLong(i) != 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int newPage(byte[] initData) {
+        int pgno = pageNumbers.incrementAndGet();
+        //直接写入映射区域，由操作系统回写
+        ByteBuffer view = view(pgno);
+        view.put(0,initData,0,Math.min(initData.length,pageSize));
+        if(pgno == 1){
+            format.stamp(view);
+        }
+        return pgno;
+    }
+
+    @Override
+    public Page getPage(int pgno) throws Exception {
+        return get((long)pgno);
+    }
+
+    /**
+     * 映射模式下缓存不决定哪些页面留在内存中，访问策略不起作用
+     */
+    @Override
+    public Page getPage(int pgno, AccessStrategy strategy) throws Exception {
+        return getPage(pgno);
+    }
+
+    @Override
+    public int newPage(byte[] initData, AccessStrategy strategy) {
+        return newPage(initData);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        try{
+            for(MappedByteBuffer chunk : chunks){
+                chunk.force();
+            }
+            chunks = new MappedByteBuffer[0];
+            //去掉映射时扩展出来的部分
+            fc.truncate(pageOffset(pageNumbers.get() + 1));
+            fc.close();
+            file.close();
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void release(Page page) {
+        release((long)page.getPageNumber());
+    }
+
+    /**
+     * 恢复时调用，把数据库截断到maxPgno页，之后的页面全部丢弃
+     * 截断的部分可能还在映射中，把它们清0，下一次使用时和新扩展的页面一样
+     */
+    @Override
+    public void truncateByPgno(int maxPgno) {
+        int old = pageNumbers.getAndSet(maxPgno);
+        for(int pgno = maxPgno + 1; pgno <= old; pgno ++){
+            ByteBuffer view = view(pgno);
+            for(int i = 0; i < pageSize; i += Long.BYTES){
+                view.putLong(i,0);
+            }
+        }
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pageNumbers.intValue();
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public int getPageDataSize() {
+        return pageSize;
+    }
+
+    @Override
+    public void flushPage(Page pg) {
+        if(pg.getLSN() > 0){
+            logFlusher.accept(pg.getLSN());
+        }
+        long offset = pageOffset(pg.getPageNumber());
+        chunk((int)(offset / chunkSize)).force((int)(offset % chunkSize),pageSize);
+    }
+
+    @Override
+    public void markDirty(Page pg) {
+        //修改直接反映在映射区域上，由操作系统回写
+    }
+
+    @Override
+    public void markLogged(Page pg, long lsn) {
+        //不跟踪recLSN，没有需要检查的顺序
+    }
+
+    /**
+     * 修改直接反映在映射区域上，无法知道哪些修改已经被操作系统写回，
+     * 不跟踪recLSN，检查点之后恢复仍然从日志开头重做
+     */
+    @Override
+    public void setRecLSNSource(LongSupplier source) {
+    }
+
+    @Override
+    public void setLogFlusher(LongConsumer flusher) {
+        logFlusher = flusher;
+    }
+
+    @Override
+    public long getMinRecLSN() {
+        return 0;
+    }
+
+    @Override
+    public void flushDirtyPages() {
+        for(MappedByteBuffer chunk : chunks){
+            chunk.force();
+        }
+    }
+
+    /**
+     * 映射模式下在后台让操作系统把这段页面读入页缓存
+     */
+    @Override
+    public void prefetch(int fromPgno, int toPgno) {
+        int to = Math.min(toPgno,pageNumbers.get());
+        if(fromPgno > to){
+            return;
+        }
+        CompletableFuture.runAsync(() -> {
+            for(int pgno = fromPgno; pgno <= to; pgno ++){
+                ((MappedByteBuffer)view(pgno)).load();
+            }
+        });
+    }
+
+    @Override
+    protected Page getForCache(long key) throws Exception {
+        int pgno = (int)key;
+        return new PageImpl(pgno,view(pgno),this);
+    }
+
+    @Override
+    protected void releaseForCache(Page pg) {
+        pg.setDirty(false);
+    }
+
+    /**
+     * 页面在映射区域中的视图
+     */
+    private ByteBuffer view(int pgno){
+        long offset = pageOffset(pgno);
+        return chunk((int)(offset / chunkSize)).slice((int)(offset % chunkSize),pageSize);
+    }
+
+    private MappedByteBuffer chunk(int index){
+        MappedByteBuffer[] cs = chunks;
+        if(index < cs.length){
+            return cs[index];
+        }
+        return map(index);
+    }
+
+    /**
+     * 映射到第index块为止的所有块，映射会把文件扩展到块的末尾
+     */
+    private synchronized MappedByteBuffer map(int index){
+        MappedByteBuffer[] cs = chunks;
+        if(index < cs.length){
+            return cs[index];
+        }
+        MappedByteBuffer[] grown = new MappedByteBuffer[index + 1];
+        System.arraycopy(cs,0,grown,0,cs.length);
+        try{
+            for(int i = cs.length; i <= index; i ++){
+                grown[i] = fc.map(FileChannel.MapMode.READ_WRITE,i * chunkSize,chunkSize);
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        chunks = grown;
+        return grown[index];
+    }
+
+    private long pageOffset(int pgno){
+        return (long) (pgno - 1) * pageSize;      //页面页码从1开始
+    }
+}
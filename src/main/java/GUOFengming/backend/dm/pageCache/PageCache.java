@@ -1,18 +1,139 @@
 package GUOFengming.backend.dm.pageCache;
 
 import GUOFengming.backend.dm.page.Page;
+import GUOFengming.backend.utils.Panic;
+import GUOFengming.common.Error;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
 
 public interface PageCache {
 
-    public static final int PAGE_SIZE = 1 << 13;        //设置一个页面的大小是8kb
+    public static final int PAGE_SIZE = 1 << 13;        //默认的页面大小是8kb
+    //页面大小在创建数据库时选择（PageCacheOptions.pageSize），必须是这个范围内的2的幂
+    public static final int MIN_PAGE_SIZE = 1 << 12;
+    public static final int MAX_PAGE_SIZE = 1 << 16;
 
     int newPage(byte[] initData);
     Page getPage(int pgno) throws Exception;
+
+    /**
+     * 使用访问策略（全表扫描、批量导入、清理）访问页面，只占用策略自己的一小部分缓存，
+     * 不会把其他热点页面挤出缓存
+     */
+    Page getPage(int pgno, AccessStrategy strategy) throws Exception;
+    int newPage(byte[] initData, AccessStrategy strategy);
     void close();
     void release(Page page);
 
-    void truncateByPgno();
+    /**
+     * 把数据库截断到maxPgno页
+     */
+    void truncateByPgno(int maxPgno);
     int getPageNumber();
+
+    /**
+     * 数据库的页面大小，创建时确定，记录在第一页中
+     */
+    int getPageSize();
+
+    /**
+     * 页面中可以由页面格式（PageX等）使用的字节数，即 getData() 的容量
+     * 启用校验和时比页面大小少校验和占用的部分，新页面的initData应按这个大小创建
+     */
+    int getPageDataSize();
     void flushPage(Page pg);
 
+    /**
+     * 页面由干净变脏时由Page调用，缓存据此跟踪脏页，由后台线程批量写回
+     */
+    void markDirty(Page pg);
+
+    /**
+     * 页面的修改写入了LSN为lsn的日志，由Page.setLSN调用
+     * 检查页面在写这条日志之前已经被标记为脏页（recLSN不晚于lsn）
+     */
+    void markLogged(Page pg, long lsn);
+
+    /**
+     * 异步预读页号在[fromPgno, toPgno]之间的页面，不等待读取完成，读入的页面不被引用
+     * 用于全表扫描等已知访问范围的场景
+     */
+    void prefetch(int fromPgno, int toPgno);
+
+    /**
+     * 设置页面由干净变脏时使用的recLSN来源，通常是日志的末尾位置（Logger.getEndLSN）
+     * 页面必须在写它的日志之前被标记为脏（setDirty），recLSN才不会晚于这条日志，Page.setLSN检查这一点
+     */
+    void setRecLSNSource(LongSupplier source);
+
+    /**
+     * 设置写回页面之前调用的日志刷盘方法，通常是Logger.waitForDurable
+     * 页面写入文件之前用它的pageLSN调用flusher，保证修改页面的日志先于页面保存到硬盘（WAL）
+     */
+    void setLogFlusher(LongConsumer flusher);
+
+    /**
+     * 还没有保存到硬盘的修改中最早的recLSN，没有时返回Long.MAX_VALUE
+     * 恢复时从这里开始重做就不会漏掉没有写回的修改
+     */
+    long getMinRecLSN();
+
+    /**
+     * 把当前没有被使用的脏页写回并保存到硬盘，由检查点调用
+     * 正被使用的页面留在脏页表中，它们的recLSN仍由getMinRecLSN计入
+     */
+    void flushDirtyPages();
+
+    public static PageCache create(String path, long memory, PageCacheOptions options) {
+        File f = new File(path+PageCacheImpl.DB_SUFFIX);
+        try {
+            if(!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        if(!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        return newPageCache(f, memory, options);
+    }
+
+    public static PageCache open(String path, long memory, PageCacheOptions options) {
+        File f = new File(path+PageCacheImpl.DB_SUFFIX);
+        if(!f.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        if(!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        return newPageCache(f, memory, options);
+    }
+
+    /**
+     * 根据options选择使用FileChannel读写还是内存映射
+     */
+    private static PageCache newPageCache(File f, long memory, PageCacheOptions options) {
+        FileChannel fc = null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+            fc = raf.getChannel();
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        //缓存的页数取决于数据库的页面大小
+        int pageSize = PageFormat.read(fc, f.length(), options).getPageSize();
+        int maxResource = (int)(memory/pageSize);
+        if(options.mmap) {
+            return new MappedPageCacheImpl(raf, fc, maxResource, options).init();
+        }
+        return new PageCacheImpl(raf, fc, maxResource, options).init();
+    }
+
 }
@@ -10,9 +10,17 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
 
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
@@ -21,12 +29,43 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     private RandomAccessFile file;
     private FileChannel fc;
-    private Lock fileLock;
+    private FrameArena arena;               //缓存页面使用的堆外页帧
+    private PageCleaner cleaner;            //后台刷脏线程
+    private PageReadAhead readAhead;        //顺序预读
+    private PageFormat format;              //文件的页面格式
+    private PageScrubber scrubber;          //后台校验线程，没有启用校验和时为null
+    //聚集写只能使用通道的position，用这个锁保护；其他读写都带位置参数，不受影响
+    private Lock gatherLock = new ReentrantLock();
 
-    private AtomicInteger pageNumbers;      //记录当前数据库有多少页
+    /*
+     * 检查点需要知道哪些修改还没有保存到硬盘：
+     * 脏页的recLSN记录在刷脏线程的脏页表中；已经写入文件但还没有fsync的页面，只需要记住其中最小的recLSN。
+     * 写文件时持有syncLock的读锁，sync在写锁下把unsyncedMin移到syncingMin再force，
+     * force完成后这些页面都已经保存到硬盘。
+     */
+    private volatile LongSupplier recLSNSource = () -> 0;          //页面变脏时的recLSN，默认0（从头恢复）
+    private volatile LongConsumer logFlusher = lsn -> {};          //写回页面前把日志保存到pageLSN处
+    private ReadWriteLock syncLock = new ReentrantReadWriteLock();
+    private Lock forceLock = new ReentrantLock();                   //同一时间只有一个线程force
+    private AtomicLong unsyncedMin = new AtomicLong(Long.MAX_VALUE);
+    private volatile long syncingMin = Long.MAX_VALUE;
+
+    private AtomicInteger pageNumbers = new AtomicInteger();    //记录当前数据库有多少页，由init确定
+    private int maxResource;                //缓存的最大页数
+    private int extentPages;                //文件每次扩展多少页
+    private volatile int allocatedPages;    //文件当前的长度（页数），不小于pageNumbers，由extend修改
+    private int pageSize;                   //页面大小，由文件格式决定
+
+    //每个预读线程一次读入一段连续页面用的缓冲区
+    private final ThreadLocal<ByteBuffer> prefetchBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(PageReadAhead.MAX_RUN_PAGES * pageSize));
 
     public PageCacheImpl(RandomAccessFile file, FileChannel fc,int maxResource) {
-        super(maxResource);
+        this(file,fc,maxResource,new PageCacheOptions());
+    }
+
+    public PageCacheImpl(RandomAccessFile file, FileChannel fc,int maxResource,PageCacheOptions options) {
+        super(maxResource,options.policy);
         if(maxResource < MEM_MIN_LIM){
             //当最大缓存资源数小于最小缓存页数时报错
             //因为此时缓存太小，指令难以命中，无法有效发挥缓存的作用
@@ -40,48 +79,333 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.file = file;
         this.fc = fc;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.maxResource = maxResource;
+        this.format = PageFormat.read(fc,length,options);
+        this.pageSize = format.getPageSize();
+        this.arena = new FrameArena(maxResource,pageSize);
+        this.extentPages = Math.max(options.extentPages,1);
+        this.allocatedPages = (int)(length / pageSize);
+        if(format.hasChecksum() && options.scrubPagesPerSecond > 0){
+            this.scrubber = new PageScrubber(this,options);
+        }
+        this.cleaner = new PageCleaner(this,maxResource,options);
+        this.readAhead = new PageReadAhead(this,options);
+    }
+
+    /**
+     * 确定实际页数并启动后台线程，构造完成之后由PageCache.create/open调用（直接构造时需要自己调用），
+     * 在构造函数中读文件或启动线程时，可能用到还没有初始化完的对象
+     */
+    public PageCacheImpl init() {
+        pageNumbers.set(countPages(allocatedPages));
+        cleaner.start();
+        if(scrubber != null){
+            scrubber.start();
+        }
+        return this;
     }
 
+    /**
+     * 文件按extent（extentPages页）一次扩展，扩展出来的部分全为0，不产生写页面的I/O。
+     * 新页面直接作为脏页放入缓存，由刷脏线程或驱逐时写入文件，newPage本身不读写文件。
+     *
+     * 崩溃后文件末尾可能留有扩展出来、还没有写过的全0页面，打开时从后往前跳过它们；
+     * 新页面在写入文件之前的内容由日志恢复，恢复完成后调用truncateByPgno确定最终的页数。
+     */
     @Override
     public int newPage(byte[] initData) {
 
+        //新页面都是脏页，和getPage一样，脏页过多时先等待刷脏线程
+        cleaner.throttle();
         //数据库创建新页时，pageNumbers+1并赋值给pgno
         int pgno = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pgno,initData,null);
-        flush(pg);
+        if(pgno > allocatedPages){
+            extend(pgno);
+        }
+        int dataOffset = dataOffset(pgno);
+        ByteBuffer frame = arena.checkout();
+        frame.put(dataOffset,initData,0,Math.min(initData.length,pageSize - dataOffset));
+        for(int i = dataOffset + initData.length; i < pageSize; i ++){
+            frame.put(i,(byte)0);
+        }
+        if(pgno == 1){
+            format.stamp(frame);
+        }
+        Page pg = new PageImpl(pgno,frame,dataOffset,this);
+        if(beginPreload(pgno)){
+            //先记为脏页再放入缓存，放入之后驱逐时才会写回它
+            pg.setDirty(true);
+            finishPreload(pgno,pg);
+            return pgno;
+        }
+        //预读已经把这一页（扩展出来的全0内容）读入了缓存，或者缓存已满
+        try{
+            Page cached = get(pgno);
+            ((PageImpl)cached).getFrame().put(0,frame,0,pageSize);
+            cached.setDirty(true);
+            release(cached);
+        }catch (Exception e){
+            //缓存中没有这一页，直接写入文件，不单独fsync
+            write(pg,Long.MAX_VALUE);
+        }
+        arena.recycle(frame);
         return pgno;
     }
 
+    /**
+     * 把文件扩展到至少能放下pgno页，一次扩展extentPages页
+     */
+    private synchronized void extend(int pgno){
+        if(pgno <= allocatedPages){
+            return;
+        }
+        int pages = allocatedPages;
+        while(pages < pgno){
+            pages += extentPages;
+        }
+        try{
+            file.setLength(pageOffset(pages + 1));
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        allocatedPages = pages;
+    }
+
+    /**
+     * 从文件末尾跳过全0的页面，得到实际的页数
+     */
+    private int countPages(int filePages){
+        ByteBuffer buf = ByteBuffer.allocateDirect(pageSize);
+        int pages = filePages;
+        while(pages > 0){
+            readPage(pages,buf);
+            if(!MappedPageCacheImpl.isZero(buf)){
+                break;
+            }
+            pages --;
+        }
+        return pages;
+    }
+
     @Override
     public Page getPage(int pgno) throws Exception {
-        return null;
+        //脏页过多时先等待刷脏线程
+        cleaner.throttle();
+        readAhead.onAccess(pgno);
+        return get((long)pgno);
     }
 
+    /**
+     * 使用访问策略获取页面：不在缓存中的页面读入策略的环中，不会驱逐环以外的页面
+     * 这类访问自己决定访问范围，不触发顺序预读
+     */
     @Override
-    public void close() {
+    public Page getPage(int pgno, AccessStrategy strategy) throws Exception {
+        cleaner.throttle();
+        if(isCached(pgno)){
+            return get((long)pgno,false);
+        }
+        makeRoom(strategy);
+        Page pg = get((long)pgno,false);
+        strategy.add(pgno);
+        return pg;
+    }
+
+    @Override
+    public int newPage(byte[] initData, AccessStrategy strategy) {
+        makeRoom(strategy);
+        int pgno = newPage(initData);
+        strategy.add(pgno);
+        return pgno;
+    }
+
+    /**
+     * 环满时驱逐环里最早读入的页面，给下一页腾出位置
+     * 页面正被其他线程引用时不驱逐，这一次读入由驱逐策略腾位置
+     */
+    private void makeRoom(AccessStrategy strategy){
+        Integer victim = strategy.next(strategy.ringPages(pageSize,maxResource));
+        if(victim != null){
+            evict(victim);
+        }
+    }
 
+    @Override
+    public void prefetch(int fromPgno, int toPgno) {
+        readAhead.prefetch(fromPgno,toPgno);
+    }
+
+    @Override
+    public void close() {
+        if(scrubber != null){
+            scrubber.close();
+        }
+        readAhead.close();
+        cleaner.close();
+        super.close();
+        try{
+            //去掉extent中没有使用的部分
+            file.setLength(pageOffset(pageNumbers.get() + 1));
+            fc.force(false);
+            fc.close();
+            file.close();
+        }catch (IOException e){
+            Panic.panic(e);
+        }
     }
 
     @Override
     public void release(Page page) {
+        release((long)page.getPageNumber());
+    }
 
+    /**
+     * 恢复时调用，把数据库截断到maxPgno页，之后的页面全部丢弃
+     * 调用时这些页面不应该在缓存中
+     */
+    @Override
+    public void truncateByPgno(int maxPgno) {
+        synchronized (this){
+            try{
+                file.setLength(pageOffset(maxPgno + 1));
+            }catch (IOException e){
+                Panic.panic(e);
+            }
+            allocatedPages = maxPgno;
+        }
+        pageNumbers.set(maxPgno);
     }
 
     @Override
-    public void truncateByPgno() {
+    public int getPageNumber() {
+        return pageNumbers.intValue();
+    }
 
+    @Override
+    public int getPageSize() {
+        return pageSize;
     }
 
     @Override
-    public int getPageNumber() {
-        return 0;
+    public int getPageDataSize() {
+        return pageSize - dataOffset(2);
     }
 
     @Override
     public void flushPage(Page pg) {
+        write(pg,cleaner.recLSN(pg.getPageNumber()));
+        sync();
+    }
+
+    /**
+     * 第一页（PageOne）的内容不写日志，不需要recLSN
+     */
+    @Override
+    public void markDirty(Page pg) {
+        int pgno = pg.getPageNumber();
+        cleaner.markDirty(pgno,pgno == 1 ? Long.MAX_VALUE : recLSNSource.getAsLong());
+    }
+
+    @Override
+    public void markLogged(Page pg, long lsn) {
+        int pgno = pg.getPageNumber();
+        if(cleaner.recLSN(pgno) > lsn){
+            //先写了日志再把页面标记为脏页，recLSN晚于这条日志，检查点会跳过它
+            throw new IllegalStateException("page " + pgno + " was logged at " + lsn + " before it was marked dirty");
+        }
+    }
+
+    @Override
+    public void setRecLSNSource(LongSupplier source) {
+        recLSNSource = source;
+    }
+
+    @Override
+    public void setLogFlusher(LongConsumer flusher) {
+        logFlusher = flusher;
+    }
+
+    /**
+     * 写回页面之前，修改它的日志必须已经保存到硬盘（WAL），pageLSN为0表示页面没有写过日志
+     */
+    private void flushLog(long pageLSN){
+        if(pageLSN > 0){
+            logFlusher.accept(pageLSN);
+        }
+    }
+
+    @Override
+    public long getMinRecLSN() {
+        //先读unsyncedMin再读syncingMin，sync交换两者时不会两个都错过
+        long min = unsyncedMin.get();
+        min = Math.min(min,syncingMin);
+        return Math.min(min,cleaner.minRecLSN());
+    }
+
+    @Override
+    public void flushDirtyPages() {
+        cleaner.cleanAll();
+        //驱逐时写回的页面也要保存到硬盘
+        sync();
+    }
+
+    /**
+     * 独占地引用一个在缓存中且没有被使用的页面，供刷脏线程回写
+     */
+    Page getPageExclusive(int pgno) {
+        return getExclusive(pgno);
+    }
+
+    void releasePageExclusive(int pgno) {
+        releaseExclusive(pgno);
+    }
+
+    boolean isCached(int pgno) {
+        return contains(pgno);
+    }
+
+    /**
+     * 预读线程调用：一次读入[from, to]这一段连续的页面，放入缓存但不引用
+     * 读之前先在缓存中占好位置，读的过程中其他线程请求这些页面会等待预读完成
+     */
+    void readRun(int from,int to) {
+        int pages = to - from + 1;
+        boolean[] reserved = new boolean[pages];
+        boolean any = false;
+        for(int i = 0; i < pages; i ++){
+            reserved[i] = beginReadAhead(from + i);
+            any |= reserved[i];
+        }
+        if(!any){
+            return;
+        }
 
+        ByteBuffer buf = prefetchBuffer.get();
+        buf.clear().limit(pages * pageSize);
+        try{
+            readFully(buf,pageOffset(from));
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        while(buf.hasRemaining()){
+            buf.put((byte)0);
+        }
+
+        for(int i = 0; i < pages; i ++){
+            if(!reserved[i]){
+                continue;
+            }
+            int pgno = from + i;
+            ByteBuffer frame = arena.checkout();
+            frame.put(0,buf,i * pageSize,pageSize);
+            if(!verify(pgno,frame)){
+                //损坏的页面不放入缓存，由请求它的线程自己读取时报错
+                arena.recycle(frame);
+                abortPreload(pgno,Error.BadPageChecksumException);
+                continue;
+            }
+            finishPreload(pgno,new PageImpl(pgno,frame,dataOffset(pgno),this));
+        }
     }
 
     /**
@@ -90,54 +414,188 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int)key;
-        long offset = PageCacheImpl.pageOffset(pgno);
 
-        //准备一个大小为页面大小（这里是8kb）的缓存区
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+        //从页帧池取出一个页面大小的页帧，直接读入，不经过堆内存
+        ByteBuffer frame = arena.checkout();
+        readPage(pgno,frame);
+        if(!verify(pgno,frame)){
+            arena.recycle(frame);
+            throw Error.BadPageChecksumException;
+        }
+        //包装成一个page对象返回
+        return new PageImpl(pgno,frame,dataOffset(pgno),this);
+    }
 
-        fileLock.lock();
+    /**
+     * 把pgno页的内容读入buf，文件末尾之后的部分补0
+     */
+    void readPage(int pgno,ByteBuffer buf){
+        ByteBuffer dst = buf.duplicate().clear();
         try{
-            fc.position(offset);
-            //读取一个页大小的数据
-            fc.read(buf);
+            readFully(dst,pageOffset(pgno));
         }catch (IOException e){
             Panic.panic(e);
         }
-        fileLock.unlock();
-        //包装成一个page对象返回
-        return new PageImpl(pgno,buf.array(),this);
+        //页帧里还留着上一个页面的数据
+        while(dst.hasRemaining()){
+            dst.put((byte)0);
+        }
+    }
+
+    /**
+     * 检查读入的页面的校验和，第一页和没有启用校验和的文件总是通过
+     */
+    private boolean verify(int pgno,ByteBuffer frame){
+        return dataOffset(pgno) == 0 || PageChecksum.verify(frame);
+    }
+
+    /**
+     * 写入文件前调用，启用校验和时更新页帧中的校验和
+     */
+    private ByteBuffer seal(Page pg){
+        ByteBuffer frame = ((PageImpl)pg).getFrame();
+        if(dataOffset(pg.getPageNumber()) != 0){
+            PageChecksum.seal(frame);
+        }
+        return frame;
+    }
+
+    /**
+     * 页帧开头保留给校验和的字节数，第一页保存文件格式，总是按原样读写
+     */
+    private int dataOffset(int pgno){
+        return format.hasChecksum() && pgno != 1 ? PageChecksum.LENGTH : 0;
+    }
+
+    /**
+     * 后台校验发现的损坏页面，没有启用校验和时为空
+     */
+    public Set<Integer> getCorruptPages(){
+        return scrubber == null ? Collections.emptySet() : scrubber.getCorruptPages();
     }
 
     @Override
     protected void releaseForCache(Page pg) {
         if(pg.isDirty()){
-            //如果pg是脏页面，需要刷新到数据库
-            flush(pg);
+            //如果pg是脏页面，需要写回数据库，fsync交给刷脏线程
             pg.setDirty(false);
+            write(pg,cleaner.recLSN(pg.getPageNumber()));
+            cleaner.markClean(pg.getPageNumber());
         }
+        //页面已经写回，页帧归还给页帧池
+        arena.recycle(((PageImpl)pg).getFrame());
     }
 
-    private void flush(Page pg){
+    /**
+     * 将页面写入文件（操作系统缓存），不fsync
+     * @param recLSN 页面的recLSN，在下一次sync之前由getMinRecLSN计入
+     */
+    void write(Page pg,long recLSN){
         int pgno = pg.getPageNumber();
         long offset = pageOffset(pgno);
+        flushLog(pg.getLSN());
 
-        fileLock.lock();
+        syncLock.readLock().lock();
         try{
+            unsyncedMin.accumulateAndGet(recLSN,Math::min);
             //读取page数据
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            //写入内存
-            fc.write(buf);
-            //保存到硬盘
+            ByteBuffer buf = seal(pg).duplicate();
+            buf.clear();
+            writeFully(buf,offset);
+        }catch (IOException e){
+            Panic.panic(e);
+        }finally {
+            syncLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 用一次聚集写把页号连续的一段页面写入文件，不fsync
+     * @param recLSN 这些页面中最小的recLSN
+     * @return 实际调用write的次数
+     */
+    int writeRun(List<Page> run,long recLSN){
+        ByteBuffer[] bufs = new ByteBuffer[run.size()];
+        long pageLSN = 0;
+        for(int i = 0; i < bufs.length; i ++){
+            bufs[i] = seal(run.get(i)).duplicate();
+            bufs[i].clear();
+            pageLSN = Math.max(pageLSN,run.get(i).getLSN());
+        }
+        flushLog(pageLSN);
+        int calls = 0;
+        syncLock.readLock().lock();
+        gatherLock.lock();
+        try{
+            unsyncedMin.accumulateAndGet(recLSN,Math::min);
+            fc.position(pageOffset(run.get(0).getPageNumber()));
+            while(bufs[bufs.length - 1].hasRemaining()){
+                fc.write(bufs);
+                calls ++;
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }finally {
+            gatherLock.unlock();
+            syncLock.readLock().unlock();
+        }
+        return calls;
+    }
+
+    /**
+     * 刷脏线程（包括关闭时）累计的刷脏统计
+     */
+    public FlushStats getFlushStats(){
+        return cleaner.getStats();
+    }
+
+    /**
+     * 把已经写入文件的页面保存到硬盘
+     */
+    void sync(){
+        forceLock.lock();
+        try{
+            //等正在进行的写完成，之前写入的页面都会被这次force保存
+            syncLock.writeLock().lock();
+            try{
+                syncingMin = unsyncedMin.get();
+                unsyncedMin.set(Long.MAX_VALUE);
+            }finally {
+                syncLock.writeLock().unlock();
+            }
             fc.force(false);
+            syncingMin = Long.MAX_VALUE;
         }catch (IOException e){
             Panic.panic(e);
         }finally {
-            fileLock.unlock();
+            forceLock.unlock();
+        }
+    }
+
+    /**
+     * 从文件的offset处读满buf，到达文件末尾时停止
+     * 使用带位置参数的read，不修改也不依赖通道的position，多个线程可以同时读写不同的页面
+     */
+    private void readFully(ByteBuffer buf,long offset) throws IOException {
+        while(buf.hasRemaining()){
+            int n = fc.read(buf,offset);
+            if(n < 0){
+                break;
+            }
+            offset += n;
+        }
+    }
+
+    /**
+     * 将buf全部写入文件的offset处，同样不使用通道的position
+     */
+    private void writeFully(ByteBuffer buf,long offset) throws IOException {
+        while(buf.hasRemaining()){
+            offset += fc.write(buf,offset);
         }
     }
 
-    private static long pageOffset(int pgno){
-        return (long) (pgno - 1) * PAGE_SIZE;      //页面页码从1开始
+    private long pageOffset(int pgno){
+        return (long) (pgno - 1) * pageSize;      //页面页码从1开始
     }
 }
@@ -0,0 +1,37 @@
+package GUOFengming.backend.dm.pageCache;
+
+import GUOFengming.backend.common.EvictionPolicy;
+
+/**
+ * 页面缓存的可选配置，不设置时使用默认值
+ */
+public class PageCacheOptions {
+    public EvictionPolicy.Type policy = EvictionPolicy.Type.CLOCK;     //缓存驱逐策略
+    //使用内存映射访问.db文件（MappedPageCacheImpl），而不是FileChannel读写
+    public boolean mmap = false;
+
+    //后台刷脏：脏页数量达到高水位（占缓存的比例）时唤醒刷脏线程，刷到低水位为止
+    public double cleanerHighWatermark = 0.5;
+    public double cleanerLowWatermark = 0.25;
+    //脏页比例超过该值时，前台线程获取页面前要等待刷脏线程
+    public double dirtyLimit = 0.9;
+    //没有达到高水位时，刷脏线程每隔多长时间把所有脏页刷一遍
+    public long cleanerIntervalMillis = 1000;
+
+    //预读：按页号顺序访问时，提前异步读入后面的多少页，0表示关闭顺序预读
+    public int readAheadPages = 32;
+    //执行预读的I/O线程数
+    public int prefetchThreads = 2;
+
+    //文件每次扩展的页数，newPage从扩展出来的部分分配页面
+    public int extentPages = 64;
+
+    //新建数据库的页面大小，4kb~64kb之间的2的幂，打开已有数据库时以文件记录的为准
+    public int pageSize = PageCache.PAGE_SIZE;
+
+    //校验和：新建数据库时是否给普通页加上CRC32C校验和，打开已有数据库时以文件记录的为准
+    //内存映射模式不支持校验和
+    public boolean checksum = false;
+    //启用校验和时，后台校验线程每秒最多校验多少个不在缓存中的页面，0表示不启动
+    public int scrubPagesPerSecond = 64;
+}
@@ -0,0 +1,56 @@
+package GUOFengming.backend.dm.pageCache;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * 页面校验和
+ * 启用校验和的文件中，普通页的前4个字节保存其余部分的CRC32C，Page.getData()只包含后面的部分，
+ * 页面格式（PageX等）里的偏移量不受影响。
+ * CRC32C在JDK中由硬件指令实现，对页帧（DirectByteBuffer）计算时不会复制数据。
+ *
+ * 从来没有写过的页面（文件扩展出来的部分）全为0，也认为是正确的。
+ */
+class PageChecksum {
+
+    static final int LENGTH = 4;
+
+    /**
+     * 写入文件前调用，计算页面的校验和并写到页帧开头
+     */
+    static void seal(ByteBuffer frame) {
+        frame.putInt(0,compute(frame));
+    }
+
+    /**
+     * 检查从文件读入的页帧
+     */
+    static boolean verify(ByteBuffer frame) {
+        int stored = frame.getInt(0);
+        if(stored == compute(frame)){
+            return true;
+        }
+        return stored == 0 && isZero(frame);
+    }
+
+    private static int compute(ByteBuffer frame) {
+        CRC32C crc = new CRC32C();
+        crc.update(frame.slice(LENGTH,frame.capacity() - LENGTH));
+        return (int) crc.getValue();
+    }
+
+    private static boolean isZero(ByteBuffer frame) {
+        int i = 0;
+        for(; i + Long.BYTES <= frame.capacity(); i += Long.BYTES){
+            if(frame.getLong(i) != 0){
+                return false;
+            }
+        }
+        for(; i < frame.capacity(); i ++){
+            if(frame.get(i) != 0){
+                return false;
+            }
+        }
+        return true;
+    }
+}
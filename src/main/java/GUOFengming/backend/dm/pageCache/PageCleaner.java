@@ -0,0 +1,259 @@
+package GUOFengming.backend.dm.pageCache;
+
+import GUOFengming.backend.dm.page.Page;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台刷脏线程
+ * 页面变脏时记录到按页号排序的脏页表中，刷脏线程按页号顺序把脏页写入文件，
+ * 一轮只在最后调用一次force，而不是每写一页都fsync。
+ *
+ * 脏页数量达到高水位时立刻唤醒刷脏线程，刷到低水位为止；
+ * 平时每隔一段时间把所有脏页刷一遍。
+ * 脏页超过上限时，前台线程在获取页面前等待一轮刷脏结束。
+ *
+ * 页号连续的脏页合并成一段，用一次聚集写（gathering write）写到这一段的起始位置，
+ * 减少系统调用次数，也让设备看到大块的顺序写。
+ *
+ * 刷脏线程只写没有被引用的页面：写之前独占地引用它，写完之前其他线程无法使用这个页面，
+ * 正在被使用的页面留到下一轮。
+ *
+ * 脏页表同时记录每个脏页的recLSN（页面由干净变脏时日志的末尾位置），
+ * 页面写入文件之后才从脏页表中去掉，检查点据此得到最早的还没有写回的修改。
+ */
+public class PageCleaner implements Runnable {
+
+    private static final int MAX_RUN_PAGES = 64;       //一次聚集写最多合并多少页
+
+    private final PageCacheImpl pc;
+    private final ConcurrentSkipListMap<Integer,Long> dirtyPages = new ConcurrentSkipListMap<>();    //页号 -> recLSN
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final int dirtyLimit;
+    private final long intervalMillis;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition wakeUp = lock.newCondition();      //唤醒刷脏线程
+    private final Condition cleaned = lock.newCondition();     //一轮刷脏结束
+    private long rounds = 0;                                   //已经完成的刷脏轮数
+    private volatile boolean wakeRequested = false;
+    private volatile boolean closed = false;
+    private final FlushStats totalStats = new FlushStats();    //累计的刷脏统计
+
+    private final Thread thread;
+
+    PageCleaner(PageCacheImpl pc,int maxResource,PageCacheOptions options) {
+        this.pc = pc;
+        this.highWatermark = Math.max((int)(maxResource * options.cleanerHighWatermark),1);
+        this.lowWatermark = (int)(maxResource * options.cleanerLowWatermark);
+        this.dirtyLimit = Math.max((int)(maxResource * options.dirtyLimit),1);
+        this.intervalMillis = options.cleanerIntervalMillis;
+        this.thread = new Thread(this,"page-cleaner");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * 启动刷脏线程，页面缓存构造完成之后调用
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * 页面由干净变脏
+     */
+    void markDirty(int pgno,long recLSN) {
+        dirtyPages.putIfAbsent(pgno,recLSN);
+        if(dirtyPages.size() >= highWatermark && !wakeRequested){
+            wakeUp();
+        }
+    }
+
+    /**
+     * 页面已经由其他途径（驱逐、flushPage）写回
+     */
+    void markClean(int pgno) {
+        dirtyPages.remove(pgno);
+    }
+
+    /**
+     * 脏页的recLSN，页面不是脏页时返回Long.MAX_VALUE
+     */
+    long recLSN(int pgno) {
+        return dirtyPages.getOrDefault(pgno,Long.MAX_VALUE);
+    }
+
+    /**
+     * 所有脏页中最小的recLSN，没有脏页时返回Long.MAX_VALUE
+     */
+    long minRecLSN() {
+        long min = Long.MAX_VALUE;
+        for(long lsn : dirtyPages.values()){
+            min = Math.min(min,lsn);
+        }
+        return min;
+    }
+
+    /**
+     * 立刻把所有没有被使用的脏页写回并force，由检查点调用
+     */
+    void cleanAll() {
+        clean(0);
+    }
+
+    /**
+     * 脏页超过上限时，等待刷脏线程完成一轮刷脏
+     */
+    void throttle() {
+        if(dirtyPages.size() <= dirtyLimit){
+            return;
+        }
+        lock.lock();
+        try{
+            long round = rounds;
+            wakeRequested = true;
+            wakeUp.signal();
+            while(!closed && rounds == round && dirtyPages.size() > dirtyLimit){
+                cleaned.awaitUninterruptibly();
+            }
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    private void wakeUp() {
+        lock.lock();
+        try{
+            wakeRequested = true;
+            wakeUp.signal();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        while(!closed){
+            lock.lock();
+            try{
+                if(!wakeRequested){
+                    wakeUp.await(intervalMillis,TimeUnit.MILLISECONDS);
+                }
+                wakeRequested = false;
+            }catch (InterruptedException e){
+                break;
+            }finally {
+                lock.unlock();
+            }
+            if(closed){
+                break;
+            }
+            //被高水位唤醒时刷到低水位，定时唤醒时全部刷一遍
+            clean(dirtyPages.size() >= highWatermark ? lowWatermark : 0);
+
+            lock.lock();
+            try{
+                rounds ++;
+                cleaned.signalAll();
+            }finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 按页号顺序写回脏页，直到脏页数量不超过target，最后force一次
+     * @return 这一轮的刷脏统计
+     */
+    private FlushStats clean(int target) {
+        FlushStats stats = new FlushStats();
+        List<Page> run = new ArrayList<>();
+        for(Integer pgno : dirtyPages.keySet()){
+            if(dirtyPages.size() <= target){
+                break;
+            }
+            Page pg = pc.getPageExclusive(pgno);
+            if(pg == null){
+                //页面正被使用，留到下一轮，当前这一段到此为止
+                writeRun(run,stats);
+                continue;
+            }
+            if(!pg.isDirty()){
+                dirtyPages.remove(pgno);
+                pc.releasePageExclusive(pgno);
+                writeRun(run,stats);
+                continue;
+            }
+            if(!run.isEmpty()
+                    && (run.get(run.size() - 1).getPageNumber() + 1 != pgno || run.size() == MAX_RUN_PAGES)){
+                writeRun(run,stats);
+            }
+            pg.setDirty(false);
+            run.add(pg);
+        }
+        writeRun(run,stats);
+        if(stats.pages > 0){
+            pc.sync();
+            stats.syncs ++;
+        }
+        totalStats.add(stats);
+        return stats;
+    }
+
+    /**
+     * 把一段页号连续的页面一次写入，然后结束对它们的独占
+     * 写入之后才从脏页表中去掉，独占期间页面不会重新变脏
+     */
+    private void writeRun(List<Page> run,FlushStats stats) {
+        if(run.isEmpty()){
+            return;
+        }
+        try{
+            long recLSN = Long.MAX_VALUE;
+            for(Page pg : run){
+                recLSN = Math.min(recLSN,recLSN(pg.getPageNumber()));
+            }
+            stats.writeCalls += pc.writeRun(run,recLSN);
+            stats.pages += run.size();
+            stats.runs ++;
+        }finally {
+            for(Page pg : run){
+                dirtyPages.remove(pg.getPageNumber());
+                pc.releasePageExclusive(pg.getPageNumber());
+            }
+            run.clear();
+        }
+    }
+
+    FlushStats getStats() {
+        return totalStats.copy();
+    }
+
+    /**
+     * 停止刷脏线程，并写回剩下的所有脏页
+     */
+    void close() {
+        closed = true;
+        wakeUp();
+        try{
+            thread.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        clean(0);
+        lock.lock();
+        try{
+            cleaned.signalAll();
+        }finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package GUOFengming.backend.dm.pageCache;
+
+import GUOFengming.backend.utils.Panic;
+import GUOFengming.common.Error;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * .db文件的页面格式，保存在第一页的0~11字节（PageOne不使用这部分）
+ * [Magic][Flags][PageSize]
+ * Magic: 4字节，固定为MAGIC，没有时说明是旧版本创建的文件，按8kb、不带任何可选特性的格式读取
+ * Flags: 4字节，文件启用的可选特性
+ * PageSize: 4字节，页面大小
+ *
+ * 格式在创建数据库时由PageCacheOptions决定，之后打开时以文件中记录的为准。
+ * 第一页本身总是按原样读写，这样打开文件时不需要知道格式就能读到它。
+ */
+class PageFormat {
+
+    static final int LENGTH = 12;
+    private static final int MAGIC = 0x4D594442;      //"MYDB"
+    private static final int OF_MAGIC = 0;
+    private static final int OF_FLAGS = 4;
+    private static final int OF_PAGE_SIZE = 8;
+
+    static final int FLAG_CHECKSUM = 1;                //普通页带CRC32C校验和
+
+    private final int flags;
+    private final int pageSize;
+
+    private PageFormat(int flags,int pageSize) {
+        if(Integer.bitCount(pageSize) != 1
+                || pageSize < PageCache.MIN_PAGE_SIZE || pageSize > PageCache.MAX_PAGE_SIZE){
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        this.flags = flags;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * 新建数据库时使用的格式
+     */
+    static PageFormat of(PageCacheOptions options) {
+        return new PageFormat(options.checksum ? FLAG_CHECKSUM : 0,options.pageSize);
+    }
+
+    /**
+     * 读取已有数据库文件的格式，空文件（刚创建）按options新建
+     */
+    static PageFormat read(FileChannel fc,long fileLength,PageCacheOptions options) {
+        if(fileLength == 0){
+            return of(options);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(LENGTH);
+        try{
+            while(buf.hasRemaining()){
+                if(fc.read(buf,buf.position()) < 0){
+                    break;
+                }
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        if(buf.getInt(OF_MAGIC) != MAGIC){
+            return new PageFormat(0,PageCache.PAGE_SIZE);
+        }
+        return new PageFormat(buf.getInt(OF_FLAGS),buf.getInt(OF_PAGE_SIZE));
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    boolean hasChecksum() {
+        return (flags & FLAG_CHECKSUM) != 0;
+    }
+
+    /**
+     * 把格式写入第一页
+     */
+    void stamp(ByteBuffer pageOne) {
+        pageOne.putInt(OF_MAGIC,MAGIC);
+        pageOne.putInt(OF_FLAGS,flags);
+        pageOne.putInt(OF_PAGE_SIZE,pageSize);
+    }
+}
@@ -0,0 +1,96 @@
+package GUOFengming.backend.dm.pageCache;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 顺序预读
+ * 记录最近一次访问的页号，连续SEQ_TRIGGER次按页号+1的顺序访问时认为正在顺序扫描，
+ * 在扫描位置前面保持readAheadPages页的预读窗口：扫描消耗掉一半窗口时，异步读入下一段。
+ * 预读在一个小的I/O线程池中进行，扫描线程只在预读跟不上时才需要同步读页面。
+ *
+ * 只跟踪一条顺序访问流，多个扫描同时进行时互相打断，退化为不预读。
+ */
+public class PageReadAhead {
+
+    private static final int SEQ_TRIGGER = 2;      //连续顺序访问多少次后开始预读
+    static final int MAX_RUN_PAGES = 16;            //一次预读请求最多读多少页
+
+    private final PageCacheImpl pc;
+    private final int window;
+    private final ExecutorService pool;
+
+    private final AtomicInteger lastPgno = new AtomicInteger(0);
+    private final AtomicInteger sequential = new AtomicInteger(0);     //连续顺序访问的次数
+    private final AtomicInteger readAheadEnd = new AtomicInteger(0);   //已经发出预读请求的最大页号
+
+    PageReadAhead(PageCacheImpl pc,PageCacheOptions options) {
+        this.pc = pc;
+        this.window = options.readAheadPages;
+        AtomicInteger threadNo = new AtomicInteger(0);
+        this.pool = Executors.newFixedThreadPool(Math.max(options.prefetchThreads,1),r -> {
+            Thread t = new Thread(r,"page-prefetch-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 每次getPage时调用，检测顺序访问并按需发出预读
+     */
+    void onAccess(int pgno) {
+        if(window <= 0){
+            return;
+        }
+        int last = lastPgno.getAndSet(pgno);
+        if(pgno != last + 1){
+            sequential.set(0);
+            return;
+        }
+        if(sequential.incrementAndGet() < SEQ_TRIGGER){
+            return;
+        }
+        int end = readAheadEnd.get();
+        if(end - pgno > window / 2){
+            //预读窗口里剩下的页面还够用
+            return;
+        }
+        int from = Math.max(end + 1,pgno + 1);
+        int to = Math.min(pgno + window,pc.getPageNumber());
+        if(from <= to && readAheadEnd.compareAndSet(end,to)){
+            prefetch(from,to);
+        }
+    }
+
+    /**
+     * 把[from, to]中不在缓存里的页面按连续的段提交给I/O线程
+     */
+    void prefetch(int from,int to) {
+        to = Math.min(to,pc.getPageNumber());
+        int runStart = -1;
+        for(int pgno = from; pgno <= to + 1; pgno ++){
+            boolean need = pgno <= to && !pc.isCached(pgno);
+            if(need && runStart < 0){
+                runStart = pgno;
+            }
+            if(runStart > 0 && (!need || pgno - runStart == MAX_RUN_PAGES)){
+                int start = runStart;
+                int end = pgno - 1;
+                pool.execute(() -> pc.readRun(start,end));
+                runStart = need ? pgno : -1;
+            }
+        }
+    }
+
+    void close() {
+        //不能用shutdownNow：中断正在读文件的线程会导致FileChannel被关闭
+        pool.shutdown();
+        try{
+            pool.awaitTermination(10,TimeUnit.SECONDS);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package GUOFengming.backend.dm.pageCache;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台校验线程
+ * 按页号顺序反复读取不在缓存中的页面并检查校验和，提前发现长期没有被访问的页面上的损坏。
+ * 校验直接从文件读到线程自己的缓冲区，不经过缓存，不会把热点页面挤出去；
+ * 在缓存中的页面以缓存里的内容为准，跳过。
+ * 每秒最多校验pagesPerSecond页，避免和前台I/O争抢。
+ *
+ * 读的过程中页面可能正被载入缓存并写回，所以校验失败时重读一次，
+ * 只有两次读到的内容相同并且校验都失败，才把页面记为损坏。
+ */
+class PageScrubber implements Runnable {
+
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);    //没有页面可校验时的等待时间
+
+    private final PageCacheImpl pc;
+    private final long nanosPerPage;
+    private final Set<Integer> corruptPages = new ConcurrentSkipListSet<>();
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition closing = lock.newCondition();
+    private volatile boolean closed = false;
+
+    private final Thread thread;
+
+    PageScrubber(PageCacheImpl pc,PageCacheOptions options) {
+        this.pc = pc;
+        this.nanosPerPage = TimeUnit.SECONDS.toNanos(1) / options.scrubPagesPerSecond;
+        this.thread = new Thread(this,"page-scrubber");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * 启动校验线程，页面缓存构造完成之后调用
+     */
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(pc.getPageSize());
+        ByteBuffer again = ByteBuffer.allocateDirect(pc.getPageSize());
+        //第一页不带校验和，从第二页开始
+        int pgno = 2;
+        while(!closed){
+            if(pgno > pc.getPageNumber()){
+                pgno = 2;
+                pause(IDLE_NANOS);
+                continue;
+            }
+            scrub(pgno,buf,again);
+            pgno ++;
+            pause(nanosPerPage);
+        }
+    }
+
+    private void scrub(int pgno,ByteBuffer buf,ByteBuffer again) {
+        if(pc.isCached(pgno)){
+            return;
+        }
+        pc.readPage(pgno,buf);
+        if(PageChecksum.verify(buf)){
+            //页面可能已经被重新写过
+            corruptPages.remove(pgno);
+            return;
+        }
+        if(pc.isCached(pgno)){
+            return;
+        }
+        pc.readPage(pgno,again);
+        if(again.clear().equals(buf.clear()) && !PageChecksum.verify(again)){
+            corruptPages.add(pgno);
+        }
+    }
+
+    /**
+     * 限速等待，关闭时立刻返回；不使用interrupt，中断正在读文件的线程会关闭FileChannel
+     */
+    private void pause(long nanos) {
+        lock.lock();
+        try{
+            while(!closed && nanos > 0){
+                nanos = closing.awaitNanos(nanos);
+            }
+        }catch (InterruptedException e){
+            closed = true;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 已经发现的损坏页面的页号
+     */
+    Set<Integer> getCorruptPages() {
+        return new TreeSet<>(corruptPages);
+    }
+
+    void close() {
+        lock.lock();
+        try{
+            closed = true;
+            closing.signalAll();
+        }finally {
+            lock.unlock();
+        }
+        try{
+            thread.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package GUOFengming.backend.dm.pageIndex;
+
+import GUOFengming.backend.dm.page.Page;
+import GUOFengming.backend.dm.page.PageSlotted;
+import GUOFengming.backend.dm.page.PageX;
+import GUOFengming.backend.dm.pageCache.AccessStrategy;
+import GUOFengming.backend.dm.pageCache.PageCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 页面空闲空间索引
+ * 将一页的空间划分成INTERVALS_NO个区间，按空闲空间大小把页号放进对应区间的桶里，
+ * 第i个桶中的页面空闲空间在 [i * threshold, (i + 1) * threshold) 之间，threshold由数据库的页面大小决定。
+ *
+ * 插入N字节的数据时，从 ceil(N / threshold) 号桶开始往后找第一个非空的桶，
+ * 其中任何一页都放得下，桶的个数是常数，所以选页是O(1)的。
+ * 选中的页面会从索引中移除，避免多个线程同时往同一页插入，插入后再用新的空闲空间加回来。
+ */
+public class PageIndex {
+    //将一页划成40个区间
+    private static final int INTERVALS_NO = 40;
+    private final int threshold;
+
+    private Lock lock;
+    private List<Set<Integer>> lists;               //每个区间的页号
+    private HashMap<Integer,Integer> bucketOf;      //页号 -> 所在区间
+
+    public PageIndex() {
+        this(PageCache.PAGE_SIZE);
+    }
+
+    public PageIndex(int pageSize) {
+        threshold = pageSize / INTERVALS_NO;
+        lock = new ReentrantLock();
+        lists = new ArrayList<>(INTERVALS_NO + 1);
+        for (int i = 0; i < INTERVALS_NO + 1; i ++) {
+            lists.add(new LinkedHashSet<>());
+        }
+        bucketOf = new HashMap<>();
+    }
+
+    /**
+     * 加入一个页面，页面已经在索引中时更新它的空闲空间
+     */
+    public void add(int pgno, int freeSpace) {
+        int number = Math.min(freeSpace / threshold,INTERVALS_NO);
+        lock.lock();
+        try {
+            Integer old = bucketOf.put(pgno,number);
+            if(old != null) {
+                lists.get(old).remove(pgno);
+            }
+            lists.get(number).add(pgno);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 选出一个至少有spaceSize字节空闲空间的页面，并将其从索引中移除
+     * 没有合适的页面时返回null，调用者需要新建页面
+     */
+    public PageInfo select(int spaceSize) {
+        int number = spaceSize / threshold;
+        if(number * threshold < spaceSize) {
+            //向上取整，保证桶里的页面一定放得下
+            number ++;
+        }
+        lock.lock();
+        try {
+            for(; number <= INTERVALS_NO; number ++) {
+                if(lists.get(number).isEmpty()) {
+                    continue;
+                }
+                Iterator<Integer> it = lists.get(number).iterator();
+                int pgno = it.next();
+                it.remove();
+                bucketOf.remove(pgno);
+                return new PageInfo(pgno, number * threshold);
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 启动时重建索引：依次读取第2页开始的所有普通页（第1页是PageOne）的空闲空间
+     * 整个数据库只读一遍，使用BULK_READ访问策略，只占用缓存中的一个小环，不会把缓存整个换一遍
+     */
+    public void fill(PageCache pc) throws Exception {
+        int pageNumber = pc.getPageNumber();
+        AccessStrategy strategy = AccessStrategy.create(AccessStrategy.Type.BULK_READ);
+        for(int pgno = 2; pgno <= pageNumber; pgno ++) {
+            Page pg = pc.getPage(pgno, strategy);
+            try {
+                add(pgno, PageSlotted.isSlotted(pg) ? PageSlotted.getFreeSpace(pg) : PageX.getFreeSpace(pg));
+            } finally {
+                pg.release();
+            }
+        }
+    }
+}
@@ -3,7 +3,7 @@ package GUOFengming.backend.utils;
 public class Types {
     public static long addressToUid(int pgno, short offset) {
         long u0 = (long)pgno;
-        long u1 = (long)offset;
+        long u1 = offset & 0xFFFFL;     //offset是无符号数，64kb的页面中可能超过32767
         return u0 << 32 | u1;
     }
 }
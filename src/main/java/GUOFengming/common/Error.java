@@ -3,6 +3,7 @@ package GUOFengming.common;
 public class Error {
     // common
     public static final Exception CacheFullException = new RuntimeException("Cache is full!");
+    public static final Exception CacheClosedException = new RuntimeException("Cache is closed!");
     public static final Exception FileExistsException = new RuntimeException("File already exists!");
     public static final Exception FileNotExistsException = new RuntimeException("File does not exists!");
     public static final Exception FileCannotRWException = new RuntimeException("File cannot read or write!");
@@ -12,6 +13,11 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception BadPageChecksumException = new RuntimeException("Bad page checksum!");
+    public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
+    public static final Exception MmapChecksumException = new RuntimeException("Page checksum is not supported with mmap!");
+    public static final Exception PageFullException = new RuntimeException("Page is full!");
+    public static final Exception InvalidSlotException = new RuntimeException("Invalid slot!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
@@ -0,0 +1,379 @@
+package GUOFengming.backend.common;
+
+import GUOFengming.common.Error;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AbstractCacheTest {
+
+    //资源就是key本身，记录获取和回写的次数
+    private static class CountingCache extends AbstractCache<Long> {
+        final AtomicInteger loads = new AtomicInteger();
+        final Set<Long> released = ConcurrentHashMap.newKeySet();
+        volatile CountDownLatch gate;               //不为null时获取资源要等它打开
+        volatile Exception failure;                 //不为null时获取资源失败
+        volatile CountDownLatch releaseGate;        //不为null时回写资源要等它打开
+        final AtomicInteger releasing = new AtomicInteger();
+
+        CountingCache(int maxResource, EvictionPolicy.Type type) {
+            super(maxResource, type);
+        }
+
+        @Override
+        protected Long getForCache(long key) throws Exception {
+            loads.incrementAndGet();
+            CountDownLatch g = gate;
+            if(g != null) {
+                g.await();
+            }
+            if(failure != null) {
+                throw failure;
+            }
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+            releasing.incrementAndGet();
+            CountDownLatch g = releaseGate;
+            if(g != null) {
+                try {
+                    g.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            released.add(obj);
+        }
+    }
+
+    /**
+     * 多个线程同时请求同一个不在缓存中的资源，只获取一次，都拿到同一个对象
+     */
+    @Test
+    public void testConcurrentLoadsCoalesce() throws Exception {
+        CountingCache cache = new CountingCache(16, EvictionPolicy.Type.CLOCK);
+        cache.gate = new CountDownLatch(1);
+        int threads = 8;
+        List<Thread> ts = new ArrayList<>();
+        Long[] got = new Long[threads];
+        CountDownLatch started = new CountDownLatch(threads);
+        for(int i = 0; i < threads; i ++) {
+            int n = i;
+            Thread t = new Thread(() -> {
+                started.countDown();
+                try {
+                    got[n] = cache.get(7);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            t.start();
+            ts.add(t);
+        }
+        started.await();
+        //等其他线程都进入等待
+        while(cache.loads.get() == 0) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        cache.gate.countDown();
+        for(Thread t : ts) {
+            t.join();
+        }
+        assertEquals(1, cache.loads.get());
+        for(Long v : got) {
+            assertSame(got[0], v);
+        }
+        //每个线程都持有一个引用，全部释放后才能被驱逐
+        for(int i = 0; i < threads - 1; i ++) {
+            cache.release(7);
+        }
+        assertFalse(cache.evict(7));
+        cache.release(7);
+        assertTrue(cache.evict(7));
+        assertTrue(cache.released.contains(7L));
+    }
+
+    /**
+     * 获取失败时等待的线程也失败，缓存项被移除，之后的请求重新获取
+     */
+    @Test
+    public void testFailedLoadIsRetried() throws Exception {
+        CountingCache cache = new CountingCache(16, EvictionPolicy.Type.CLOCK);
+        cache.failure = new Exception("load failed");
+        try {
+            cache.get(3);
+            fail();
+        } catch (Exception e) {
+            assertSame(cache.failure, e);
+        }
+        cache.failure = null;
+        assertEquals(Long.valueOf(3), cache.get(3));
+        assertEquals(2, cache.loads.get());
+        cache.release(3);
+    }
+
+    /**
+     * 缓存满时驱逐没有被引用的资源并回写，被引用的资源不会被驱逐；都被引用时抛出CacheFullException
+     */
+    @Test
+    public void testEvictionSkipsReferenced() throws Exception {
+        for(EvictionPolicy.Type type : EvictionPolicy.Type.values()) {
+            CountingCache cache = new CountingCache(4, type);
+            cache.get(1);
+            cache.get(2);
+            for(long key = 3; key < 20; key ++) {
+                cache.get(key);
+                cache.release(key);
+            }
+            assertFalse(cache.released.contains(1L));
+            assertFalse(cache.released.contains(2L));
+            assertTrue(cache.released.size() >= 15);
+            assertTrue(cache.contains(1) && cache.contains(2));
+
+            cache.get(100);
+            cache.get(101);
+            try {
+                cache.get(102);
+                fail();
+            } catch (Exception e) {
+                assertSame(Error.CacheFullException, e);
+            }
+            cache.release(100);
+            assertEquals(Long.valueOf(102), cache.get(102));
+            assertTrue(cache.released.contains(100L));
+        }
+    }
+
+    private static void touch(CountingCache cache, long from, long to) throws Exception {
+        for(long key = from; key < to; key ++) {
+            cache.get(key);
+            cache.release(key);
+        }
+    }
+
+    /**
+     * LRU-K中访问过多次的热点资源不会被一次顺序扫描挤出缓存
+     */
+    @Test
+    public void testLruKScanResistance() throws Exception {
+        CountingCache cache = new CountingCache(64, EvictionPolicy.Type.LRU_K);
+        touch(cache, 0, 16);
+        touch(cache, 0, 16);
+        touch(cache, 1000, 1200);
+        for(long key = 0; key < 16; key ++) {
+            assertFalse(cache.released.contains(key));
+        }
+    }
+
+    /**
+     * LRU-K先淘汰访问不足K次的资源（按最近一次访问LRU），再按倒数第K次访问的时间淘汰，跳过不能驱逐的资源
+     */
+    @Test
+    public void testLruKVictimOrder() {
+        LRUKPolicy policy = new LRUKPolicy(16, 2);
+        for(long key = 1; key <= 4; key ++) {
+            policy.onInsert(key);
+        }
+        policy.onAccess(1);
+        policy.onAccess(3);
+        policy.onAccess(2);
+        //4只访问过一次
+        assertEquals(Long.valueOf(4), policy.victim(key -> true));
+        policy.onRemove(4);
+        //倒数第2次访问：1最早，其次是2、3
+        assertEquals(Long.valueOf(1), policy.victim(key -> true));
+        assertEquals(Long.valueOf(2), policy.victim(key -> key != 1));
+        policy.onAccess(1);
+        policy.onAccess(1);
+        assertEquals(Long.valueOf(2), policy.victim(key -> true));
+        //被驱逐资源的访问历史在再次载入时恢复
+        policy.onInsert(4);
+        assertEquals(Long.valueOf(2), policy.victim(key -> true));
+        assertNull(policy.victim(key -> false));
+    }
+
+    /**
+     * 2Q中从A1out再次载入的热点资源进入Am，不会被一次顺序扫描挤出缓存
+     */
+    @Test
+    public void testTwoQueueScanResistance() throws Exception {
+        CountingCache cache = new CountingCache(64, EvictionPolicy.Type.TWO_Q);
+        touch(cache, 0, 16);
+        //A1in是FIFO，最早载入的0~15先被淘汰，记入A1out
+        touch(cache, 1000, 1064);
+        for(long key = 0; key < 16; key ++) {
+            assertTrue(cache.released.remove(key));
+        }
+        touch(cache, 0, 16);
+        touch(cache, 2000, 3000);
+        for(long key = 0; key < 16; key ++) {
+            assertFalse(cache.released.contains(key));
+        }
+    }
+
+    /**
+     * 没有容量上限的缓存在引用个数变为0时直接回写删除
+     */
+    @Test
+    public void testUnboundedReleaseWritesBack() throws Exception {
+        CountingCache cache = new CountingCache(0, EvictionPolicy.Type.CLOCK);
+        cache.get(5);
+        cache.get(5);
+        cache.release(5);
+        assertFalse(cache.released.contains(5L));
+        cache.release(5);
+        assertTrue(cache.released.contains(5L));
+        assertFalse(cache.contains(5));
+    }
+
+    /**
+     * 多个线程同时获取、释放、驱逐，结束后缓存中的每个资源都还在驱逐策略中：
+     * 全部释放后，同时引用maxResource个新资源时能把旧的全部驱逐
+     */
+    @Test
+    public void testConcurrentEvictKeepsPolicyConsistent() throws Exception {
+        for(EvictionPolicy.Type type : EvictionPolicy.Type.values()) {
+            CountingCache cache = new CountingCache(8, type);
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread[] ts = new Thread[4];
+            for(int t = 0; t < ts.length; t ++) {
+                long seed = t;
+                ts[t] = new Thread(() -> {
+                    Random random = new Random(seed);
+                    try {
+                        for(int i = 0; i < 20000; i ++) {
+                            long key = random.nextInt(16);
+                            if(random.nextInt(4) == 0) {
+                                cache.evict(key);
+                            } else {
+                                cache.get(key);
+                                cache.release(key);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                });
+                ts[t].start();
+            }
+            for(Thread t : ts) {
+                t.join();
+            }
+            assertNull(error.get());
+            for(long key = 100; key < 108; key ++) {
+                assertEquals(Long.valueOf(key), cache.get(key));
+            }
+            for(long key = 0; key < 16; key ++) {
+                assertFalse(cache.contains(key));
+            }
+        }
+    }
+
+    /**
+     * 关闭缓存时还在获取中的资源被去掉，等待它的线程收到CacheClosedException
+     */
+    @Test
+    public void testCloseWakesWaiters() throws Exception {
+        CountingCache cache = new CountingCache(16, EvictionPolicy.Type.CLOCK);
+        cache.gate = new CountDownLatch(1);
+        AtomicReference<Object> loader = new AtomicReference<>();
+        AtomicReference<Object> waiter = new AtomicReference<>();
+        Thread t1 = new Thread(() -> {
+            try {
+                loader.set(cache.get(7));
+            } catch (Exception e) {
+                loader.set(e);
+            }
+        });
+        t1.start();
+        while(cache.loads.get() == 0) {
+            Thread.sleep(1);
+        }
+        Thread t2 = new Thread(() -> {
+            try {
+                waiter.set(cache.get(7));
+            } catch (Exception e) {
+                waiter.set(e);
+            }
+        });
+        t2.start();
+        Thread.sleep(50);
+        cache.close();
+        t2.join(5000);
+        assertFalse(t2.isAlive());
+        assertSame(Error.CacheClosedException, waiter.get());
+        //获取资源的线程不受影响
+        cache.gate.countDown();
+        t1.join();
+        assertEquals(7L, loader.get());
+        assertFalse(cache.contains(7));
+    }
+
+    /**
+     * 回写在桶锁外进行：回写期间同一个桶里的其他key照常获取，
+     * 请求正在回写的key的线程等回写完成后重新获取
+     */
+    @Test
+    public void testWriteBackOutsideBinLock() throws Exception {
+        CountingCache cache = new CountingCache(16, EvictionPolicy.Type.CLOCK);
+        //容量为16的表中1、17、33在同一个桶里
+        cache.get(1);
+        cache.release(1);
+        cache.get(17);
+        cache.release(17);
+        cache.releaseGate = new CountDownLatch(1);
+        try {
+            Thread evictor = new Thread(() -> cache.evict(1));
+            evictor.start();
+            while(cache.releasing.get() == 0) {
+                Thread.sleep(1);
+            }
+            Thread other = new Thread(() -> {
+                try {
+                    cache.get(17);
+                    cache.release(17);
+                    cache.get(33);
+                    cache.release(33);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            other.start();
+            other.join(5000);
+            assertFalse(other.isAlive());
+
+            AtomicReference<Object> got = new AtomicReference<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    got.set(cache.get(1));
+                } catch (Exception e) {
+                    got.set(e);
+                }
+            });
+            reader.start();
+            Thread.sleep(50);
+            assertTrue(reader.isAlive());
+            int loads = cache.loads.get();
+            cache.releaseGate.countDown();
+            evictor.join();
+            reader.join();
+            assertEquals(1L, got.get());
+            assertTrue(cache.released.contains(1L));
+            assertEquals(loads + 1, cache.loads.get());
+        } finally {
+            cache.releaseGate.countDown();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package GUOFengming.backend.common;
+
+import java.util.Random;
+
+/**
+ * 对比CLOCK、LRU-K、2Q三种驱逐策略的命中率
+ * skewed：按Zipf分布（s=1）访问，少数key占大部分访问
+ * skewed+scan：同样的热点访问中，每隔一段时间插入一次对冷数据的顺序扫描，扫描的key只访问一次
+ * 每个key的资源就是它自己，不做I/O，只统计命中率和每次访问的平均耗时。
+ *
+ * 运行：java GUOFengming.backend.common.CacheHitRateBenchmark [访问次数] [缓存大小] [key的个数]
+ */
+public class CacheHitRateBenchmark {
+
+    private static class CountingCache extends AbstractCache<Long> {
+        long misses;
+
+        CountingCache(int maxResource, EvictionPolicy.Type type) {
+            super(maxResource, type);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            misses ++;
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int accesses = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int keys = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        System.out.printf("accesses=%d capacity=%d keys=%d%n", accesses, capacity, keys);
+        long[] skewed = skewed(accesses, keys, 0, 0);
+        long[] scan = skewed(accesses, keys, 50000, capacity * 2);
+        for(EvictionPolicy.Type type : EvictionPolicy.Type.values()) {
+            run(type, "skewed", skewed, capacity);
+            run(type, "skewed+scan", scan, capacity);
+        }
+    }
+
+    /**
+     * 生成访问序列：Zipf分布的热点访问，scanEvery不为0时每隔scanEvery次访问插入scanLength次顺序扫描
+     * 扫描的key从keys开始递增，不和热点访问重复
+     */
+    private static long[] skewed(int accesses, int keys, int scanEvery, int scanLength) {
+        double[] cdf = new double[keys];
+        double sum = 0;
+        for(int i = 0; i < keys; i ++) {
+            sum += 1.0 / (i + 1);
+            cdf[i] = sum;
+        }
+        Random random = new Random(42);
+        long[] trace = new long[accesses];
+        long scanKey = keys;
+        for(int i = 0; i < accesses; ) {
+            if(scanEvery > 0 && i > 0 && i % scanEvery == 0) {
+                for(int j = 0; j < scanLength && i < accesses; j ++) {
+                    trace[i ++] = scanKey ++;
+                }
+                if(i >= accesses) {
+                    break;
+                }
+            }
+            double u = random.nextDouble() * sum;
+            int lo = 0, hi = keys - 1;
+            while(lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if(cdf[mid] < u) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            //把热点打散到整个key空间，避免和key的大小相关
+            trace[i ++] = (lo * 0x9E3779B1L) % keys;
+        }
+        return trace;
+    }
+
+    private static void run(EvictionPolicy.Type type, String name, long[] trace, int capacity) throws Exception {
+        CountingCache cache = new CountingCache(capacity, type);
+        long start = System.nanoTime();
+        for(long key : trace) {
+            cache.get(key);
+            cache.release(key);
+        }
+        long elapsed = System.nanoTime() - start;
+        double hitRate = 1 - (double)cache.misses / trace.length;
+        System.out.printf("%-6s %-12s hit=%.2f%% %.0f ns/access%n", type, name, hitRate * 100, (double)elapsed / trace.length);
+        cache.close();
+    }
+}
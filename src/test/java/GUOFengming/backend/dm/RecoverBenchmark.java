@@ -0,0 +1,66 @@
+package GUOFengming.backend.dm;
+
+import GUOFengming.backend.dm.logger.Logger;
+import GUOFengming.backend.dm.logger.LoggerOptions;
+import GUOFengming.backend.dm.pageCache.PageCache;
+import GUOFengming.backend.tm.TransactionManagers;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * 用不同的重做线程数恢复同一份崩溃后留下的文件，比较恢复耗时
+ * 重做按页号把日志分给各个线程，线程数增加时重做阶段的耗时应该下降，直到受限于读日志的线程或者CPU核数；
+ * 分析和撤销阶段是串行的，不受线程数影响。
+ *
+ * 运行：java GUOFengming.backend.dm.RecoverBenchmark [事务数] [每个事务的操作数]
+ */
+public class RecoverBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int txns = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int ops = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        System.out.printf("txns=%d ops=%d cpus=%d%n", txns, ops, Runtime.getRuntime().availableProcessors());
+
+        File dir = Files.createTempDirectory("recoverbench").toFile();
+        try {
+            LoggerOptions logOptions = new LoggerOptions();
+            RecoverTest.Db db = new RecoverTest.Db(new File(dir, "live"), logOptions);
+            db.run(new Random(1), txns, ops, 10);
+            File crash = new File(dir, "crash");
+            db.crashCopy(crash);
+            db.close();
+
+            //先恢复一次预热JIT
+            recover(crash, new File(dir, "warmup"), logOptions, 1);
+            for(int threads = 1; threads <= 8; threads *= 2) {
+                long elapsed = recover(crash, new File(dir, "redo" + threads), logOptions, threads);
+                System.out.printf("redoThreads=%d recover=%dms%n", threads, elapsed / 1000000);
+            }
+        } finally {
+            RecoverTest.deleteDir(dir);
+        }
+    }
+
+    /**
+     * 把崩溃文件复制到copy（恢复会修改文件，每次都从同一份开始），返回打开并恢复的耗时（纳秒）
+     */
+    private static long recover(File crash, File copy, LoggerOptions logOptions, int threads) throws Exception {
+        copy.mkdirs();
+        for(File f : crash.listFiles()) {
+            Files.copy(f.toPath(), new File(copy, f.getName()).toPath());
+        }
+        String path = new File(copy, "db").getPath();
+        long start = System.nanoTime();
+        TransactionManagers tm = TransactionManagers.open(path);
+        Logger lg = Logger.open(path, logOptions);
+        PageCache pc = PageCache.open(path, 16L * PageCache.PAGE_SIZE, RecoverTest.pageOptions());
+        Recover.recover(tm, lg, pc, threads);
+        long elapsed = System.nanoTime() - start;
+        pc.close();
+        lg.close();
+        tm.close();
+        return elapsed;
+    }
+}
@@ -0,0 +1,512 @@
+package GUOFengming.backend.dm;
+
+import GUOFengming.backend.dm.logger.Logger;
+import GUOFengming.backend.dm.logger.LoggerOptions;
+import GUOFengming.backend.dm.page.Page;
+import GUOFengming.backend.dm.page.PageImpl;
+import GUOFengming.backend.dm.page.PageOne;
+import GUOFengming.backend.dm.page.PageSlotted;
+import GUOFengming.backend.dm.page.PageX;
+import GUOFengming.backend.dm.pageCache.PageCache;
+import GUOFengming.backend.dm.pageCache.PageCacheImpl;
+import GUOFengming.backend.dm.pageCache.PageCacheOptions;
+import GUOFengming.backend.dm.pageIndex.PageIndex;
+import GUOFengming.backend.dm.pageIndex.PageInfo;
+import GUOFengming.backend.tm.TransactionManagers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class RecoverTest {
+
+    static final int PAGES = 40;
+    static final int ITEM_SIZE = 12;            //[Valid][DataSize][Data]，Data是8字节
+
+    private File dir;
+
+    @Before
+    public void before() throws Exception {
+        dir = Files.createTempDirectory("recover").toFile();
+    }
+
+    @After
+    public void after() {
+        deleteDir(dir);
+    }
+
+    static void deleteDir(File dir) {
+        for(File f : dir.listFiles()) {
+            if(f.isDirectory()) {
+                deleteDir(f);
+            } else {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    //一个数据项的位置和写入它的事务
+    static class Item {
+        final long xid;
+        final int pgno;
+        final short offset;
+
+        Item(long xid, int pgno, short offset) {
+            this.xid = xid;
+            this.pgno = pgno;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * 一个正在运行的数据库：事务、日志、页面缓存
+     * 页面缓存很小，修改过程中不断有脏页被驱逐写回，崩溃时文件中的页面新旧混杂
+     */
+    static class Db {
+        final String path;
+        final TransactionManagers tm;
+        final Logger lg;
+        final PageCache pc;
+        final List<Item> inserted = new ArrayList<>();
+        final Map<Long, Long> activeTxns = new ConcurrentHashMap<>();    //活跃事务 -> 它开始时日志的末尾
+
+        Db(File dir, LoggerOptions logOptions) {
+            dir.mkdirs();
+            path = new File(dir, "db").getPath();
+            tm = TransactionManagers.create(path);
+            lg = Logger.create(path, logOptions);
+            pc = PageCache.create(path, 16L * PageCache.PAGE_SIZE, pageOptions());
+            pc.setRecLSNSource(lg::getEndLSN);
+            pc.setLogFlusher(lg::waitForDurable);
+            pc.newPage(PageOne.InitRaw());
+            for(int i = 0; i < PAGES; i ++) {
+                pc.newPage(PageX.initRaw());
+            }
+        }
+
+        //按规定的顺序插入：加锁、标记为脏页、写日志、修改、setLSN
+        void insert(long xid, int pgno, long value) throws Exception {
+            byte[] raw = new byte[ITEM_SIZE];
+            raw[2] = 8;
+            putLong(raw, 4, value);
+            Page pg = pc.getPage(pgno);
+            try {
+                pg.lock();
+                try {
+                    if(PageX.getFreeSpace(pg) < raw.length) {
+                        return;
+                    }
+                    pg.setDirty(true);
+                    long lsn = lg.log(Recover.insertLog(xid, pg, raw));
+                    short offset = PageX.insert(pg, raw);
+                    pg.setLSN(lsn);
+                    inserted.add(new Item(xid, pgno, offset));
+                } finally {
+                    pg.unlock();
+                }
+            } finally {
+                pg.release();
+            }
+        }
+
+        //把item的Data改成value
+        void update(long xid, Item item, long value) throws Exception {
+            Page pg = pc.getPage(item.pgno);
+            try {
+                pg.lock();
+                try {
+                    byte[] oldRaw = PageX.read(pg, item.offset, ITEM_SIZE);
+                    byte[] newRaw = oldRaw.clone();
+                    putLong(newRaw, 4, value);
+                    long uid = ((long)item.pgno << 32) | Short.toUnsignedLong(item.offset);
+                    pg.setDirty(true);
+                    long lsn = lg.log(Recover.updateLog(xid, uid, oldRaw, newRaw));
+                    PageX.recoverUpdate(pg, newRaw, item.offset);
+                    pg.setLSN(lsn);
+                } finally {
+                    pg.unlock();
+                }
+            } finally {
+                pg.release();
+            }
+        }
+
+        /**
+         * 执行txns个随机事务，每个事务插入或者更新ops次；最后active个事务不提交，崩溃时还是活跃的
+         */
+        void run(Random random, int txns, int ops, int active) throws Exception {
+            for(int t = 0; t < txns; t ++) {
+                long xid = tm.begin();
+                activeTxns.put(xid, lg.getEndLSN());
+                for(int i = 0; i < ops; i ++) {
+                    if(inserted.isEmpty() || random.nextInt(3) > 0) {
+                        insert(xid, 2 + random.nextInt(PAGES), random.nextLong());
+                    } else {
+                        update(xid, inserted.get(random.nextInt(inserted.size())), random.nextLong());
+                    }
+                }
+                if(t < txns - active) {
+                    tm.commit(xid);
+                    activeTxns.remove(xid);
+                }
+            }
+        }
+
+        //检查点使用：最早的活跃事务的第一条日志不早于它开始时日志的末尾
+        long oldestActiveLSN() {
+            long oldest = Long.MAX_VALUE;
+            for(long lsn : activeTxns.values()) {
+                oldest = Math.min(oldest, lsn);
+            }
+            return oldest;
+        }
+
+        /**
+         * 把现在文件中的内容复制到to，相当于这一刻崩溃后留下的文件
+         */
+        void crashCopy(File to) throws Exception {
+            to.mkdirs();
+            for(File f : new File(path).getParentFile().listFiles()) {
+                if(f.isFile()) {
+                    Files.copy(f.toPath(), new File(to, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+
+        void close() {
+            pc.close();
+            lg.close();
+            tm.close();
+        }
+    }
+
+    //刷脏线程不会自己醒来，复制文件时没有后台写
+    static PageCacheOptions pageOptions() {
+        PageCacheOptions options = new PageCacheOptions();
+        options.cleanerIntervalMillis = 1000000;
+        options.cleanerHighWatermark = 2;
+        options.dirtyLimit = 2;
+        return options;
+    }
+
+    static void putLong(byte[] buf, int off, long v) {
+        for(int i = 7; i >= 0; i --) {
+            buf[off + i] = (byte)v;
+            v >>>= 8;
+        }
+    }
+
+    /**
+     * 打开崩溃后留下的文件并恢复，返回所有页面的内容
+     */
+    static byte[][] recover(File dir, LoggerOptions logOptions, int redoThreads) throws Exception {
+        String path = new File(dir, "db").getPath();
+        TransactionManagers tm = TransactionManagers.open(path);
+        Logger lg = Logger.open(path, logOptions);
+        PageCache pc = PageCache.open(path, 16L * PageCache.PAGE_SIZE, pageOptions());
+        Recover.recover(tm, lg, pc, redoThreads);
+        byte[][] pages = new byte[pc.getPageNumber() + 1][];
+        for(int pgno = 2; pgno <= pc.getPageNumber(); pgno ++) {
+            Page pg = pc.getPage(pgno);
+            pages[pgno] = new byte[pc.getPageDataSize()];
+            pg.getData().get(0, pages[pgno]);
+            pg.release();
+        }
+        pc.close();
+        lg.close();
+        tm.close();
+        return pages;
+    }
+
+    /**
+     * 已提交事务插入的数据项都有效，崩溃时活跃的事务插入的数据项都被撤销（标记为无效）
+     */
+    static void checkItems(Db db, byte[][] pages) {
+        for(Item item : db.inserted) {
+            byte valid = pages[item.pgno][Short.toUnsignedInt(item.offset)];
+            assertEquals(db.tm.isCommitted(item.xid) ? 0 : 1, valid);
+        }
+    }
+
+    /**
+     * 并行重做和串行重做的结果完全相同
+     */
+    @Test
+    public void testParallelRedoMatchesSerial() throws Exception {
+        parallelRedoMatchesSerial(new LoggerOptions());
+    }
+
+    @Test
+    public void testParallelRedoMatchesSerialFramed() throws Exception {
+        LoggerOptions logOptions = new LoggerOptions();
+        logOptions.framed = true;
+        logOptions.compress = true;
+        parallelRedoMatchesSerial(logOptions);
+    }
+
+    private void parallelRedoMatchesSerial(LoggerOptions logOptions) throws Exception {
+        Db db = new Db(new File(dir, "live"), logOptions);
+        db.run(new Random(1), 200, 6, 3);
+        File serial = new File(dir, "serial");
+        File parallel = new File(dir, "parallel");
+        db.crashCopy(serial);
+        db.crashCopy(parallel);
+
+        byte[][] expected = recover(serial, logOptions, 1);
+        byte[][] actual = recover(parallel, logOptions, 4);
+        for(int pgno = 2; pgno <= PAGES + 1; pgno ++) {
+            assertArrayEquals(expected[pgno], actual[pgno]);
+        }
+        checkItems(db, expected);
+        db.close();
+    }
+
+    /**
+     * 运行中不断做检查点并回收日志段，崩溃后从检查点恢复，已提交的数据都在，活跃事务都被撤销
+     */
+    @Test
+    public void testCheckpointRecycleRecover() throws Exception {
+        LoggerOptions logOptions = new LoggerOptions();
+        logOptions.segmentSize = 4096;
+        Db db = new Db(new File(dir, "live"), logOptions);
+        //换段时日志超过8KB由后台线程做检查点，另外每100个事务手动做一次
+        Checkpointer ck = new Checkpointer(db.pc, db.lg, db::oldestActiveLSN, 0, 8192).start();
+        Random random = new Random(2);
+        for(int i = 0; i < 5; i ++) {
+            db.run(random, 100, 6, 0);
+            ck.checkpoint();
+        }
+        db.run(random, 100, 6, 3);
+        ck.close();
+
+        assertTrue(db.lg.getStartLSN() > 0);
+        //检查点之后只剩下最近的几个段
+        File[] segments = new File(db.path).getParentFile().listFiles((d, name) -> name.endsWith(".log"));
+        assertTrue(segments.length < db.lg.getEndLSN() / 4096 / 2);
+
+        File crash = new File(dir, "crash");
+        db.crashCopy(crash);
+        checkItems(db, recover(crash, logOptions, 2));
+        db.close();
+    }
+
+    /**
+     * 新页面的初始内容没有写入文件、日志中也没有它的修改时，崩溃后文件中间留下一个全0的页面，
+     * 恢复后它是一个空页面：索引认为它完全空闲，插入从OF_DATA开始，不会覆盖FSO
+     */
+    @Test
+    public void testUninitialisedPageHole() throws Exception {
+        int hole = 10;
+        Db db = new Db(new File(dir, "live"), new LoggerOptions());
+        for(int pgno = 2; pgno <= PAGES + 1; pgno ++) {
+            long xid = db.tm.begin();
+            if(pgno != hole) {
+                db.insert(xid, pgno, pgno);
+            }
+            db.tm.commit(xid);
+        }
+        db.pc.flushDirtyPages();
+        File crash = new File(dir, "crash");
+        db.crashCopy(crash);
+        db.close();
+        //这一页的初始内容还在缓存中没有写回
+        try(RandomAccessFile f = new RandomAccessFile(new File(crash, "db" + PageCacheImpl.DB_SUFFIX), "rw")) {
+            f.seek((long)(hole - 1) * PageCache.PAGE_SIZE);
+            f.write(new byte[PageCache.PAGE_SIZE]);
+        }
+
+        String path = new File(crash, "db").getPath();
+        TransactionManagers tm = TransactionManagers.open(path);
+        Logger lg = Logger.open(path);
+        PageCache pc = PageCache.open(path, 16L * PageCache.PAGE_SIZE, pageOptions());
+        Recover.recover(tm, lg, pc, 1);
+        assertEquals(PAGES + 1, pc.getPageNumber());
+        PageIndex pIndex = new PageIndex();
+        pIndex.fill(pc);
+        boolean indexed = false;
+        for(PageInfo pi = pIndex.select(1); pi != null; pi = pIndex.select(1)) {
+            indexed |= pi.pgno == hole;
+        }
+        assertTrue(indexed);
+
+        Page pg = pc.getPage(hole);
+        try {
+            assertEquals(PageX.MAX_FREE_SPACE, PageX.getFreeSpace(pg));
+            byte[] raw = {1, 2, 3, 4};
+            short offset = PageX.insert(pg, raw);
+            assertEquals(2, offset);
+            assertEquals(2 + raw.length, PageX.getFSO(pg));
+            assertArrayEquals(raw, PageX.read(pg, offset, raw.length));
+        } finally {
+            pg.release();
+        }
+        pc.close();
+        lg.close();
+        tm.close();
+    }
+
+    /**
+     * 带槽目录的页面：插入、更新、删除都写日志，崩溃后重做已经结束的事务、撤销活跃的事务，
+     * 每个槽的内容和已提交事务留下的一样，并行重做的结果和串行相同
+     */
+    @Test
+    public void testSlottedRedoUndo() throws Exception {
+        Db db = new Db(new File(dir, "live"), new LoggerOptions());
+        int first = db.pc.getPageNumber() + 1;
+        int slottedPages = 8;
+        for(int i = 0; i < slottedPages; i ++) {
+            db.pc.newPage(PageSlotted.initRaw());
+        }
+        Random random = new Random(3);
+        Map<Long, byte[]> committed = new HashMap<>();      //(页号, 槽号) -> 已提交的内容
+        //崩溃时活跃的事务修改过的页面，之后的事务不再修改，它释放的槽和空间不会被别的事务使用
+        Set<Integer> activePages = new HashSet<>();
+        for(int t = 0; t < 300; t ++) {
+            boolean active = t >= 297;
+            long xid = db.tm.begin();
+            Map<Long, byte[]> changes = new HashMap<>();
+            Set<Integer> touched = new HashSet<>();
+            for(int i = 0; i < (active ? 2 : 6); i ++) {
+                int pgno = first + random.nextInt(slottedPages);
+                if(activePages.contains(pgno)) {
+                    continue;
+                }
+                touched.add(pgno);
+                List<Long> keys = new ArrayList<>();
+                for(long key : committed.keySet()) {
+                    if(key >>> 32 == pgno && !changes.containsKey(key)) {
+                        keys.add(key);
+                    }
+                }
+                Collections.sort(keys);
+                byte[] raw = new byte[10 + random.nextInt(400)];
+                random.nextBytes(raw);
+                int op = keys.isEmpty() ? 0 : random.nextInt(3);
+                if(op == 0) {
+                    Long key = slotInsert(db, xid, pgno, raw);
+                    if(key != null) {
+                        changes.put(key, raw);
+                    }
+                } else if(op == 1) {
+                    long key = keys.get(random.nextInt(keys.size()));
+                    if(slotUpdate(db, xid, key, raw)) {
+                        changes.put(key, raw);
+                    }
+                } else if(op == 2) {
+                    long key = keys.get(random.nextInt(keys.size()));
+                    slotDelete(db, xid, key);
+                    changes.put(key, null);
+                }
+            }
+            if(active) {
+                activePages.addAll(touched);
+            } else {
+                db.tm.commit(xid);
+                for(Map.Entry<Long, byte[]> e : changes.entrySet()) {
+                    if(e.getValue() == null) {
+                        committed.remove(e.getKey());
+                    } else {
+                        committed.put(e.getKey(), e.getValue());
+                    }
+                }
+            }
+        }
+        File serial = new File(dir, "serial");
+        File parallel = new File(dir, "parallel");
+        db.crashCopy(serial);
+        db.crashCopy(parallel);
+        db.close();
+
+        byte[][] expected = recover(serial, new LoggerOptions(), 1);
+        byte[][] actual = recover(parallel, new LoggerOptions(), 4);
+        for(int pgno = first; pgno < first + slottedPages; pgno ++) {
+            assertArrayEquals(expected[pgno], actual[pgno]);
+            Page pg = new PageImpl(pgno, ByteBuffer.wrap(expected[pgno]), null);
+            for(int slot = 0; slot < 200; slot ++) {
+                long key = ((long)pgno << 32) | slot;
+                assertArrayEquals(committed.get(key), PageSlotted.read(pg, (short)slot));
+            }
+        }
+    }
+
+    //按规定的顺序插入，放不下时返回null
+    private static Long slotInsert(Db db, long xid, int pgno, byte[] raw) throws Exception {
+        Page pg = db.pc.getPage(pgno);
+        try {
+            pg.lock();
+            try {
+                if(PageSlotted.getFreeSpace(pg) < raw.length) {
+                    return null;
+                }
+                pg.setDirty(true);
+                long lsn = db.lg.log(Recover.slotInsertLog(xid, pg, raw));
+                short slot = PageSlotted.insert(pg, raw);
+                PageSlotted.setLSN(pg, lsn);
+                return ((long)pgno << 32) | slot;
+            } finally {
+                pg.unlock();
+            }
+        } finally {
+            pg.release();
+        }
+    }
+
+    private static boolean slotUpdate(Db db, long xid, long key, byte[] raw) throws Exception {
+        Page pg = db.pc.getPage((int)(key >>> 32));
+        try {
+            pg.lock();
+            try {
+                short slot = (short)key;
+                byte[] oldRaw = PageSlotted.read(pg, slot);
+                //原来的记录释放后可以使用
+                if(raw.length > oldRaw.length && PageSlotted.getFreeSpace(pg) + 4 + oldRaw.length < raw.length) {
+                    return false;
+                }
+                pg.setDirty(true);
+                long lsn = db.lg.log(Recover.slotUpdateLog(xid, pg.getPageNumber(), slot, oldRaw, raw));
+                PageSlotted.update(pg, slot, raw);
+                PageSlotted.setLSN(pg, lsn);
+                return true;
+            } finally {
+                pg.unlock();
+            }
+        } finally {
+            pg.release();
+        }
+    }
+
+    private static void slotDelete(Db db, long xid, long key) throws Exception {
+        Page pg = db.pc.getPage((int)(key >>> 32));
+        try {
+            pg.lock();
+            try {
+                short slot = (short)key;
+                pg.setDirty(true);
+                long lsn = db.lg.log(Recover.slotDeleteLog(xid, pg.getPageNumber(), slot, PageSlotted.read(pg, slot)));
+                PageSlotted.delete(pg, slot);
+                PageSlotted.setLSN(pg, lsn);
+            } finally {
+                pg.unlock();
+            }
+        } finally {
+            pg.release();
+        }
+    }
+}
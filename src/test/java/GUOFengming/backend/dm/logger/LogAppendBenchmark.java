@@ -0,0 +1,74 @@
+package GUOFengming.backend.dm.logger;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 多个线程同时调用append（不等待保存到硬盘）时每次append的延迟
+ * 日志缓冲区用原子操作分配位置，写日志的线程之间不加锁，线程数增加时平均延迟和p99应该基本不变；
+ * 缓冲区满时写日志的线程要帮忙把日志写到文件，这部分时间也计入延迟。
+ * 日志按LSN顺序发布，在占用位置和发布之间被换出的线程会让后面的线程等待，
+ * 所以线程数超过CPU核数时延迟会随线程数增长，测试时线程数不要超过核数。
+ *
+ * 运行：java GUOFengming.backend.dm.logger.LogAppendBenchmark [日志长度] [每个线程的日志数]
+ */
+public class LogAppendBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        System.out.printf("record=%dB perThread=%d cpus=%d%n", size, perThread, Runtime.getRuntime().availableProcessors());
+        for(int threads = 1; threads <= 8; threads *= 2) {
+            File dir = Files.createTempDirectory("logappend").toFile();
+            try {
+                Logger lg = Logger.create(new File(dir, "db").getPath());
+                long[] latencies = run(lg, threads, perThread, size);
+                lg.close();
+                Arrays.sort(latencies);
+                double avg = Arrays.stream(latencies).average().orElse(0);
+                System.out.printf("threads=%d avg=%.0fns p50=%dns p99=%dns p999=%dns%n", threads, avg,
+                        latencies[latencies.length / 2], latencies[(int)(latencies.length * 0.99)],
+                        latencies[(int)(latencies.length * 0.999)]);
+            } finally {
+                for(File f : dir.listFiles()) {
+                    f.delete();
+                }
+                dir.delete();
+            }
+        }
+    }
+
+    //每个线程append perThread条日志，返回所有append的延迟
+    private static long[] run(Logger lg, int threads, int perThread, int size) throws Exception {
+        long[] latencies = new long[threads * perThread];
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> ts = new ArrayList<>();
+        for(int t = 0; t < threads; t ++) {
+            int base = t * perThread;
+            Thread th = new Thread(() -> {
+                byte[] data = new byte[size];
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(int i = 0; i < perThread; i ++) {
+                    long begin = System.nanoTime();
+                    lg.append(data);
+                    latencies[base + i] = System.nanoTime() - begin;
+                }
+            });
+            th.start();
+            ts.add(th);
+        }
+        start.countDown();
+        for(Thread th : ts) {
+            th.join();
+        }
+        return latencies;
+    }
+}
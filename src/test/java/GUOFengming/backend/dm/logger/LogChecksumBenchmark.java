@@ -0,0 +1,53 @@
+package GUOFengming.backend.dm.logger;
+
+import java.util.Random;
+
+/**
+ * 对比SEED和CRC32C两种日志格式计算校验和的开销
+ * 每条日志要算一次Data的校验和，再把它累加到XChecksum上，写日志、读日志和打开日志时都要做。
+ * SEED逐字节计算，两步都要遍历全部字节；CRC32C由JVM用硬件指令计算，累加XChecksum只需要8字节的头。
+ *
+ * 运行：java GUOFengming.backend.dm.logger.LogChecksumBenchmark [每种长度处理的MB数]
+ */
+public class LogChecksumBenchmark {
+
+    private static final int[] SIZES = {64, 512, 4096, 65536};
+
+    public static void main(String[] args) {
+        long totalBytes = (args.length > 0 ? Long.parseLong(args[0]) : 256) << 20;
+        LogFormat[] formats = {LogFormat.SEED, LogFormat.CRC32C};
+        //先跑一遍预热JIT
+        for(LogFormat format : formats) {
+            for(int size : SIZES) {
+                run(format, size, totalBytes / 16);
+            }
+        }
+        for(int size : SIZES) {
+            for(LogFormat format : formats) {
+                double seconds = run(format, size, totalBytes);
+                System.out.printf("%-6s record=%-6d %.0f MB/s %.0f ns/record%n", format, size,
+                        totalBytes / seconds / (1 << 20), seconds * 1e9 / (totalBytes / size));
+            }
+        }
+    }
+
+    private static int sink;
+
+    //对长度为size的日志反复计算校验和并累加XChecksum，返回耗时（秒）
+    private static double run(LogFormat format, int size, long totalBytes) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        byte[] log = LogFormatTest.wrap(format, data);
+        long records = totalBytes / size;
+        int xCheck = 0;
+        long start = System.nanoTime();
+        for(long i = 0; i < records; i ++) {
+            log[LoggerImpl.OF_DATA] = (byte)i;
+            int checksum = format.checksum(log, LoggerImpl.OF_DATA, size);
+            log[LoggerImpl.OF_CHECKSUM] = (byte)checksum;
+            xCheck = format.foldXChecksum(xCheck, log, 0, log.length);
+        }
+        sink += xCheck;
+        return (System.nanoTime() - start) / 1e9;
+    }
+}
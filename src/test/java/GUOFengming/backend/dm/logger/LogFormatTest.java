@@ -0,0 +1,387 @@
+package GUOFengming.backend.dm.logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LogFormatTest {
+
+    private File dir;
+    private String path;
+
+    @Before
+    public void before() throws Exception {
+        dir = Files.createTempDirectory("logformat").toFile();
+        path = new File(dir, "db").getPath();
+    }
+
+    @After
+    public void after() {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static LoggerOptions options(LogFormat format) {
+        LoggerOptions options = new LoggerOptions();
+        options.crc32c = format != LogFormat.SEED;
+        options.framed = format == LogFormat.FRAMED;
+        return options;
+    }
+
+    private static List<byte[]> records(int n, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> logs = new ArrayList<>();
+        for(int i = 0; i < n; i ++) {
+            byte[] data = new byte[1 + random.nextInt(300)];
+            random.nextBytes(data);
+            logs.add(data);
+        }
+        return logs;
+    }
+
+    private static List<byte[]> readAll(Logger lg) {
+        List<byte[]> logs = new ArrayList<>();
+        lg.rewind();
+        byte[] data;
+        while((data = lg.next()) != null) {
+            logs.add(data);
+        }
+        return logs;
+    }
+
+    private static void assertLogs(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i ++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    //一条完整的日志：[Size][Checksum][Data]
+    static byte[] wrap(LogFormat format, byte[] data) {
+        byte[] log = new byte[LoggerImpl.OF_DATA + data.length];
+        ByteBuffer bb = ByteBuffer.wrap(log);
+        bb.putInt(0, data.length);
+        bb.putInt(LoggerImpl.OF_CHECKSUM, format.checksum(data, 0, data.length));
+        System.arraycopy(data, 0, log, LoggerImpl.OF_DATA, data.length);
+        return log;
+    }
+
+    //在当前段（最后一个段）的末尾追加字节，模拟崩溃时写了一半的日志
+    void appendToLastSegment(byte[] tail) throws Exception {
+        List<File> files = LoggerImpl.listSegments(path);
+        try(RandomAccessFile raf = new RandomAccessFile(files.get(files.size() - 1), "rw")) {
+            raf.seek(raf.length());
+            raf.write(tail);
+        }
+    }
+
+    long lastSegmentLength() {
+        List<File> files = LoggerImpl.listSegments(path);
+        return files.get(files.size() - 1).length();
+    }
+
+    private static LoggerOptions framed(boolean compress) {
+        LoggerOptions options = options(LogFormat.FRAMED);
+        options.compress = compress;
+        return options;
+    }
+
+    private void roundTrip(LogFormat format) {
+        roundTrip(options(format), records(500, format.version));
+    }
+
+    private void roundTrip(LoggerOptions options, List<byte[]> logs) {
+        Logger lg = Logger.create(path, options);
+        for(byte[] data : logs) {
+            lg.log(data);
+        }
+        assertLogs(logs, readAll(lg));
+        lg.close();
+
+        lg = Logger.open(path, options);
+        assertLogs(logs, readAll(lg));
+        lg.close();
+    }
+
+    @Test
+    public void testSeedRoundTrip() {
+        roundTrip(LogFormat.SEED);
+    }
+
+    @Test
+    public void testCrc32cRoundTrip() {
+        roundTrip(LogFormat.CRC32C);
+    }
+
+    /**
+     * 崩溃时写到文件但XChecksum没有更新的日志，以及只写了一半的日志，打开时都被截掉，之后可以继续写
+     */
+    private void tornTail(LogFormat format) throws Exception {
+        List<byte[]> logs = records(100, 7);
+        Logger lg = Logger.create(path, options(format));
+        for(byte[] data : logs) {
+            lg.log(data);
+        }
+        lg.close();
+        long length = lastSegmentLength();
+
+        byte[] complete = wrap(format, new byte[]{1, 2, 3, 4});
+        byte[] torn = wrap(format, new byte[200]);
+        appendToLastSegment(complete);
+        appendToLastSegment(Arrays.copyOf(torn, 50));
+
+        lg = Logger.open(path, options(format));
+        assertEquals(length, lastSegmentLength());
+        assertLogs(logs, readAll(lg));
+        byte[] more = {9, 9, 9};
+        lg.log(more);
+        lg.close();
+
+        logs.add(more);
+        lg = Logger.open(path, options(format));
+        assertLogs(logs, readAll(lg));
+        lg.close();
+    }
+
+    @Test
+    public void testSeedTornTail() throws Exception {
+        tornTail(LogFormat.SEED);
+    }
+
+    @Test
+    public void testCrc32cTornTail() throws Exception {
+        tornTail(LogFormat.CRC32C);
+    }
+
+    /**
+     * 日志中间的一个字节损坏：从损坏的日志开始都读不到，XChecksum对不上，打开时被截掉
+     */
+    @Test
+    public void testCorruptRecordIsNotReturned() throws Exception {
+        Logger lg = Logger.create(path, options(LogFormat.CRC32C));
+        List<byte[]> logs = records(10, 3);
+        for(byte[] data : logs) {
+            lg.log(data);
+        }
+        lg.close();
+        long length = lastSegmentLength();
+        byte[] tail = wrap(LogFormat.CRC32C, new byte[]{5, 6, 7, 8});
+        tail[tail.length - 1] ^= 1;
+        appendToLastSegment(tail);
+
+        lg = Logger.open(path, options(LogFormat.CRC32C));
+        assertEquals(length, lastSegmentLength());
+        assertLogs(logs, readAll(lg));
+        lg.close();
+    }
+
+    /**
+     * 用旧格式（SEED）写的日志在默认的CRC32C格式下打开仍然可读，新日志写到CRC32C格式的新段
+     */
+    @Test
+    public void testOldFormatStaysReadable() {
+        List<byte[]> logs = records(50, 11);
+        Logger lg = Logger.create(path, options(LogFormat.SEED));
+        for(byte[] data : logs) {
+            lg.log(data);
+        }
+        lg.close();
+
+        lg = Logger.open(path, options(LogFormat.CRC32C));
+        byte[] more = {1};
+        lg.log(more);
+        logs.add(more);
+        assertLogs(logs, readAll(lg));
+        lg.close();
+
+        List<File> files = LoggerImpl.listSegments(path);
+        assertEquals(2, files.size());
+        LogSegment first = LogSegment.open(files.get(0));
+        LogSegment second = LogSegment.open(files.get(1));
+        assertEquals(LogFormat.SEED, first.format);
+        assertEquals(LogFormat.CRC32C, second.format);
+        first.close();
+        second.close();
+    }
+
+    //压缩效果好的日志：更新前后的数据大部分相同
+    private static List<byte[]> repetitive(int n) {
+        Random random = new Random(5);
+        List<byte[]> logs = new ArrayList<>();
+        for(int i = 0; i < n; i ++) {
+            byte[] data = new byte[64 + random.nextInt(200)];
+            for(int j = 0; j < data.length; j ++) {
+                data[j] = (byte)(j % 16);
+            }
+            data[random.nextInt(data.length)] = (byte)i;
+            logs.add(data);
+        }
+        return logs;
+    }
+
+    @Test
+    public void testFramedRoundTrip() {
+        roundTrip(framed(false), records(500, 3));
+    }
+
+    @Test
+    public void testFramedCompressedRoundTrip() {
+        roundTrip(framed(true), records(500, 4));
+    }
+
+    /**
+     * 压缩的块比不压缩时写的字节少，读回的内容相同
+     */
+    @Test
+    public void testCompressionShrinksLog() {
+        List<byte[]> logs = repetitive(2000);
+        roundTrip(framed(false), logs);
+        long plain = lastSegmentLength();
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        roundTrip(framed(true), logs);
+        long compressed = lastSegmentLength();
+        assertTrue(compressed + " vs " + plain, compressed * 2 < plain);
+    }
+
+    /**
+     * 多个线程并发写时一批日志打包成一个块，读回的日志完整
+     */
+    @Test
+    public void testFramedConcurrentBatches() throws Exception {
+        Logger lg = Logger.create(path, framed(true));
+        int threads = 4;
+        int perThread = 500;
+        List<Thread> ts = new ArrayList<>();
+        for(int t = 0; t < threads; t ++) {
+            int thread = t;
+            Thread th = new Thread(() -> {
+                for(int i = 0; i < perThread; i ++) {
+                    byte[] data = new byte[32];
+                    ByteBuffer.wrap(data).putInt(0, thread).putInt(4, i);
+                    lg.log(data);
+                }
+            });
+            th.start();
+            ts.add(th);
+        }
+        for(Thread th : ts) {
+            th.join();
+        }
+        lg.close();
+
+        Logger reopened = Logger.open(path, framed(true));
+        int[] next = new int[threads];
+        for(byte[] data : readAll(reopened)) {
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            int thread = bb.getInt(0);
+            assertEquals(next[thread] ++, bb.getInt(4));
+        }
+        for(int n : next) {
+            assertEquals(perThread, n);
+        }
+        reopened.close();
+    }
+
+    /**
+     * 分帧的段中，XChecksum没有覆盖的完整的块和写了一半的块，打开时都被截掉
+     */
+    private void framedTornTail(boolean compress) throws Exception {
+        List<byte[]> logs = repetitive(100);
+        Logger lg = Logger.create(path, framed(compress));
+        for(byte[] data : logs) {
+            lg.log(data);
+        }
+        lg.close();
+        long length = lastSegmentLength();
+
+        LogFrame frame = new LogFrame(compress);
+        frame.encode(repetitive(10));
+        appendToLastSegment(frameBytes(frame));
+        frame.encode(repetitive(20));
+        byte[] torn = frameBytes(frame);
+        appendToLastSegment(Arrays.copyOf(torn, torn.length / 2));
+
+        lg = Logger.open(path, framed(compress));
+        assertEquals(length, lastSegmentLength());
+        assertLogs(logs, readAll(lg));
+        byte[] more = {7, 7, 7};
+        lg.log(more);
+        lg.close();
+
+        logs.add(more);
+        lg = Logger.open(path, framed(compress));
+        assertLogs(logs, readAll(lg));
+        lg.close();
+    }
+
+    private static byte[] frameBytes(LogFrame frame) {
+        ByteBuffer[] bufs = frame.buffers();
+        byte[] bytes = new byte[bufs[0].remaining() + bufs[1].remaining()];
+        int n = bufs[0].remaining();
+        bufs[0].get(bytes, 0, n);
+        bufs[1].get(bytes, n, bufs[1].remaining());
+        return bytes;
+    }
+
+    @Test
+    public void testFramedTornTail() throws Exception {
+        framedTornTail(false);
+    }
+
+    @Test
+    public void testFramedCompressedTornTail() throws Exception {
+        framedTornTail(true);
+    }
+
+    @Test
+    public void testLzCodecRoundTrip() {
+        Random random = new Random(9);
+        for(int round = 0; round < 200; round ++) {
+            int length = random.nextInt(5000);
+            byte[] src = new byte[length];
+            //随机数据和重复数据混合
+            for(int i = 0; i < length; i ++) {
+                src[i] = random.nextInt(4) == 0 ? (byte)random.nextInt() : (byte)(i % 7);
+            }
+            byte[] packed = new byte[length + length / 255 + 16];
+            int n = LzCodec.compress(src, 0, length, packed, packed.length);
+            assertTrue(n >= 0);
+            byte[] out = new byte[length];
+            assertTrue(LzCodec.decompress(packed, 0, n, out, length));
+            assertArrayEquals(src, out);
+            //长度不对、数据被截断时解压失败，不会越界（块的校验和会先发现损坏，这里只检查不会出错）
+            if(length > 0) {
+                assertFalse(LzCodec.decompress(packed, 0, n, new byte[length + 1], length + 1));
+                assertFalse(LzCodec.decompress(packed, 0, n / 2, new byte[length], length));
+            }
+            byte[] garbage = new byte[random.nextInt(200)];
+            random.nextBytes(garbage);
+            LzCodec.decompress(garbage, 0, garbage.length, out, length);
+        }
+    }
+
+    /**
+     * 压缩后不比原数据小时放弃压缩
+     */
+    @Test
+    public void testLzCodecGivesUpOnRandomData() {
+        byte[] src = new byte[4096];
+        new Random(1).nextBytes(src);
+        assertEquals(-1, LzCodec.compress(src, 0, src.length, new byte[src.length], src.length - 1));
+    }
+}
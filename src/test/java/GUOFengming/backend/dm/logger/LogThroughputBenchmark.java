@@ -0,0 +1,72 @@
+package GUOFengming.backend.dm.logger;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多个线程同时调用log（返回时日志已经保存到硬盘）的吞吐量
+ * 组提交时一个线程写文件并fsync一次，同一批等待的线程都返回，所以线程越多每次fsync覆盖的日志越多，
+ * 每秒写入的日志数随线程数增长。
+ *
+ * 运行：java GUOFengming.backend.dm.logger.LogThroughputBenchmark [日志长度] [每轮毫秒数]
+ */
+public class LogThroughputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+        System.out.printf("record=%dB%n", size);
+        for(int threads = 1; threads <= 32; threads *= 2) {
+            File dir = Files.createTempDirectory("logtput").toFile();
+            try {
+                Logger lg = Logger.create(new File(dir, "db").getPath());
+                double rate = run(threads, millis, () -> lg.log(new byte[size]));
+                lg.close();
+                System.out.printf("threads=%-2d %.0f records/s%n", threads, rate);
+            } finally {
+                for(File f : dir.listFiles()) {
+                    f.delete();
+                }
+                dir.delete();
+            }
+        }
+    }
+
+    /**
+     * threads个线程在millis毫秒内反复执行op，返回每秒执行的次数
+     */
+    static double run(int threads, long millis, Runnable op) throws Exception {
+        AtomicLong total = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        List<Thread> ts = new ArrayList<>();
+        for(int t = 0; t < threads; t ++) {
+            Thread th = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long n = 0;
+                while(System.nanoTime() < deadline[0]) {
+                    op.run();
+                    n ++;
+                }
+                total.addAndGet(n);
+            });
+            th.start();
+            ts.add(th);
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + millis * 1000000;
+        start.countDown();
+        for(Thread th : ts) {
+            th.join();
+        }
+        return total.get() * 1e9 / (System.nanoTime() - begin);
+    }
+}
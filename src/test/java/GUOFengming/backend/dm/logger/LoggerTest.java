@@ -0,0 +1,380 @@
+package GUOFengming.backend.dm.logger;
+
+import GUOFengming.backend.common.SubArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class LoggerTest {
+
+    private File dir;
+    private String path;
+
+    @Before
+    public void before() throws Exception {
+        dir = Files.createTempDirectory("logger").toFile();
+        path = new File(dir, "db").getPath();
+    }
+
+    @After
+    public void after() {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    //[Thread][Seq][Padding]，长度由seq决定，读回时可以检查内容
+    private static byte[] record(int thread, int seq, int length) {
+        byte[] data = new byte[length];
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        bb.putInt(0, thread);
+        bb.putInt(4, seq);
+        for(int i = 8; i < length; i ++) {
+            data[i] = (byte)(thread * 31 + seq + i);
+        }
+        return data;
+    }
+
+    private static void checkRecord(byte[] data) {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        assertArrayEquals(record(bb.getInt(0), bb.getInt(4), data.length), data);
+    }
+
+    private static List<byte[]> readAll(Logger lg) {
+        List<byte[]> logs = new ArrayList<>();
+        lg.rewind();
+        byte[] data;
+        while((data = lg.next()) != null) {
+            logs.add(data);
+        }
+        return logs;
+    }
+
+    /**
+     * 多个线程同时写日志，每个线程的日志按写入顺序出现，内容完整
+     */
+    private void concurrentAppend(LoggerOptions options, int threads, int perThread, int maxLength) throws Exception {
+        Logger writer = Logger.create(path, options);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> ts = new ArrayList<>();
+        for(int t = 0; t < threads; t ++) {
+            int thread = t;
+            Thread th = new Thread(() -> {
+                Random random = new Random(thread);
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(int i = 0; i < perThread; i ++) {
+                    byte[] data = record(thread, i, 8 + random.nextInt(maxLength - 8));
+                    if(i % 16 == 0) {
+                        writer.log(data);
+                    } else {
+                        writer.append(data);
+                    }
+                }
+            });
+            th.start();
+            ts.add(th);
+        }
+        start.countDown();
+        for(Thread th : ts) {
+            th.join();
+        }
+        writer.close();
+
+        Logger lg = Logger.open(path, options);
+        List<byte[]> logs = readAll(lg);
+        lg.close();
+        assertEquals(threads * perThread, logs.size());
+        int[] next = new int[threads];
+        for(byte[] data : logs) {
+            checkRecord(data);
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            int thread = bb.getInt(0);
+            assertEquals(next[thread], bb.getInt(4));
+            next[thread] ++;
+        }
+    }
+
+    @Test
+    public void testConcurrentAppend() throws Exception {
+        LoggerOptions options = new LoggerOptions();
+        options.bufferSize = 64 * 1024;
+        options.segmentSize = 256 * 1024;
+        concurrentAppend(options, 4, 2000, 200);
+    }
+
+    @Test
+    public void testConcurrentAppendFramed() throws Exception {
+        LoggerOptions options = new LoggerOptions();
+        options.bufferSize = 64 * 1024;
+        options.segmentSize = 256 * 1024;
+        options.framed = true;
+        options.compress = true;
+        concurrentAppend(options, 4, 2000, 200);
+    }
+
+    /**
+     * 比缓冲区大的日志直接写到段文件，和经过缓冲区的日志交错，读回来的顺序和内容都正确
+     */
+    private void oversizedRecords(LoggerOptions options) throws Exception {
+        options.bufferSize = 4096;
+        options.segmentSize = 64 * 1024;
+        Logger lg = Logger.create(path, options);
+        List<byte[]> expected = new ArrayList<>();
+        Random random = new Random(1);
+        for(int i = 0; i < 200; i ++) {
+            int length = i % 7 == 0 ? 4096 + random.nextInt(20000) : 8 + random.nextInt(500);
+            byte[] data = record(0, i, length);
+            expected.add(data);
+            long lsn = i % 3 == 0 ? lg.log(data) : lg.append(data);
+            assertTrue(lsn >= 0);
+        }
+        lg.close();
+
+        lg = Logger.open(path, options);
+        List<byte[]> logs = readAll(lg);
+        assertEquals(expected.size(), logs.size());
+        for(int i = 0; i < logs.size(); i ++) {
+            assertArrayEquals(expected.get(i), logs.get(i));
+        }
+        //重新打开后继续写
+        byte[] data = record(0, 200, 10000);
+        lg.log(data);
+        lg.close();
+        lg = Logger.open(path, options);
+        logs = readAll(lg);
+        lg.close();
+        assertEquals(201, logs.size());
+        assertArrayEquals(data, logs.get(200));
+    }
+
+    @Test
+    public void testOversizedRecordsSeed() throws Exception {
+        LoggerOptions options = new LoggerOptions();
+        options.crc32c = false;
+        oversizedRecords(options);
+    }
+
+    @Test
+    public void testOversizedRecordsCrc32c() throws Exception {
+        oversizedRecords(new LoggerOptions());
+    }
+
+    @Test
+    public void testOversizedRecordsFramed() throws Exception {
+        LoggerOptions options = new LoggerOptions();
+        options.framed = true;
+        options.compress = true;
+        oversizedRecords(options);
+    }
+
+    @Test
+    public void testConcurrentOversizedRecords() throws Exception {
+        LoggerOptions options = new LoggerOptions();
+        options.bufferSize = 4096;
+        options.segmentSize = 128 * 1024;
+        concurrentAppend(options, 4, 300, 8000);
+    }
+
+    @Test
+    public void testLsnOrder() throws Exception {
+        Logger lg = Logger.create(path);
+        Set<Long> lsns = new HashSet<>();
+        long last = -1;
+        for(int i = 0; i < 100; i ++) {
+            long lsn = lg.append(record(0, i, 16));
+            assertTrue(lsn > last);
+            assertTrue(lsns.add(lsn));
+            last = lsn;
+        }
+        lg.waitForDurable(last);
+        assertTrue(lg.getEndLSN() > last);
+        LogIterator it = lg.iterator(0);
+        int n = 0;
+        while(it.next() != null) {
+            assertTrue(lsns.contains(it.getLSN()));
+            n ++;
+        }
+        assertEquals(100, n);
+        it.close();
+        lg.close();
+        assertFalse(Arrays.asList(dir.list()).isEmpty());
+    }
+
+    //日志目录中的段文件个数
+    private int segmentFiles() {
+        int n = 0;
+        for(String name : dir.list()) {
+            if(name.startsWith("db.") && name.endsWith(".log")) {
+                n ++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 迭代器正在读的段被回收时，文件等迭代器读完才删除，迭代器能读完所有日志
+     */
+    @Test
+    public void testRecycleWhileIterating() throws Exception {
+        LoggerOptions options = new LoggerOptions();
+        options.segmentSize = 4096;
+        Logger lg = Logger.create(path, options);
+        long last = 0;
+        for(int i = 0; i < 200; i ++) {
+            last = lg.log(record(0, i, 100));
+        }
+        int before = segmentFiles();
+        assertTrue(before > 3);
+
+        LogIterator it = lg.iterator(0);
+        for(int i = 0; i < 10; i ++) {
+            checkRecord(copy(it));
+        }
+        lg.recycle(last);
+        assertTrue(lg.getStartLSN() > 0);
+        assertEquals(before, segmentFiles());
+
+        int n = 10;
+        int seq = 10;
+        while(true) {
+            byte[] data = copy(it);
+            if(data == null) break;
+            checkRecord(data);
+            assertEquals(seq ++, ByteBuffer.wrap(data).getInt(4));
+            n ++;
+            //读完的段在迭代器离开它时删除
+            assertTrue(segmentFiles() <= before);
+        }
+        assertEquals(200, n);
+        assertEquals(1, segmentFiles());
+        it.close();
+
+        //新的迭代器从剩下的段开始读
+        try(LogIterator it2 = lg.iterator(0)) {
+            assertTrue(it2.next() != null);
+            assertTrue(it2.getLSN() >= lg.getStartLSN());
+        }
+        lg.close();
+    }
+
+    /**
+     * 关闭日志时，还被迭代器引用的已回收的段也会删除
+     */
+    @Test
+    public void testCloseDeletesPinnedRetired() throws Exception {
+        LoggerOptions options = new LoggerOptions();
+        options.segmentSize = 4096;
+        Logger lg = Logger.create(path, options);
+        long last = 0;
+        for(int i = 0; i < 100; i ++) {
+            last = lg.log(record(0, i, 100));
+        }
+        LogIterator it = lg.iterator(0);
+        assertTrue(it.next() != null);
+        lg.recycle(last);
+        assertTrue(segmentFiles() > 1);
+        lg.close();
+        assertEquals(1, segmentFiles());
+
+        Logger reopened = Logger.open(path, options);
+        assertEquals(lg.getStartLSN(), reopened.getStartLSN());
+        reopened.close();
+    }
+
+    private static byte[] copy(LogIterator it) {
+        SubArray data = it.next();
+        return data == null ? null : Arrays.copyOfRange(data.raw, data.start, data.end);
+    }
+
+    /**
+     * 按旧版本的格式写单个日志文件：[XChecksum][Size][Checksum][Data]...，最后可以加一段BadTail
+     */
+    private void writeLegacy(List<byte[]> logs, byte[] badTail) throws Exception {
+        int xCheck = 0;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(byte[] data : logs) {
+            byte[] log = new byte[LoggerImpl.OF_DATA + data.length];
+            ByteBuffer bb = ByteBuffer.wrap(log);
+            bb.putInt(0, data.length);
+            bb.putInt(LoggerImpl.OF_CHECKSUM, LogFormat.SEED.checksum(data, 0, data.length));
+            System.arraycopy(data, 0, log, LoggerImpl.OF_DATA, data.length);
+            xCheck = LogFormat.SEED.foldXChecksum(xCheck, log, 0, log.length);
+            out.write(log);
+        }
+        out.write(badTail);
+        byte[] head = ByteBuffer.allocate(4).putInt(xCheck).array();
+        byte[] body = out.toByteArray();
+        byte[] file = new byte[4 + body.length];
+        System.arraycopy(head, 0, file, 0, 4);
+        System.arraycopy(body, 0, file, 4, body.length);
+        Files.write(LoggerImpl.legacyFile(path).toPath(), file);
+    }
+
+    /**
+     * 旧版本的单个日志文件在打开时转换成第0个段，日志都还能读到，BadTail被丢掉，之后可以继续写
+     */
+    @Test
+    public void testOpenLegacyLog() throws Exception {
+        List<byte[]> logs = new ArrayList<>();
+        for(int i = 0; i < 50; i ++) {
+            logs.add(record(0, i, 20 + i));
+        }
+        writeLegacy(logs, new byte[]{0, 0, 0, 100, 1, 2, 3});
+
+        Logger lg = Logger.open(path);
+        assertFalse(LoggerImpl.legacyFile(path).exists());
+        //转换出的第0个段是SEED格式，默认的CRC32C格式的日志写到新建的第1个段
+        assertTrue(LoggerImpl.segmentFile(path, 0).exists());
+        assertEquals(2, segmentFiles());
+        List<byte[]> read = readAll(lg);
+        assertEquals(logs.size(), read.size());
+        for(int i = 0; i < logs.size(); i ++) {
+            assertArrayEquals(logs.get(i), read.get(i));
+        }
+        lg.log(record(1, 0, 30));
+        lg.close();
+
+        lg = Logger.open(path);
+        read = readAll(lg);
+        assertEquals(logs.size() + 1, read.size());
+        assertArrayEquals(record(1, 0, 30), read.get(logs.size()));
+        lg.close();
+    }
+
+    /**
+     * 转换完成、旧文件还没删除时崩溃：已经有段时旧文件直接删除，不再转换
+     */
+    @Test
+    public void testStaleLegacyLogDeleted() throws Exception {
+        Logger lg = Logger.create(path);
+        lg.log(record(0, 0, 20));
+        lg.close();
+        writeLegacy(Arrays.asList(record(1, 0, 20), record(1, 1, 20)), new byte[0]);
+
+        lg = Logger.open(path);
+        assertFalse(LoggerImpl.legacyFile(path).exists());
+        List<byte[]> read = readAll(lg);
+        assertEquals(1, read.size());
+        assertArrayEquals(record(0, 0, 20), read.get(0));
+        lg.close();
+    }
+}
@@ -0,0 +1,112 @@
+package GUOFengming.backend.dm.page;
+
+import GUOFengming.backend.dm.pageIndex.PageIndex;
+import GUOFengming.backend.dm.pageIndex.PageInfo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 对比PageX和PageSlotted的填充率
+ * 同一串随机的插入、删除、更新（长度变化）操作分别在两种格式的页面上执行，插入时用PageIndex选页，
+ * 结束时统计有效数据占所有页面的比例（填充率）和使用的页数。
+ * PageX中删除和变长更新留下的空间无法再使用，变长更新只能把记录追加到新位置；
+ * PageSlotted在页内整理回收这些空间。
+ *
+ * 运行：java GUOFengming.backend.dm.page.PageFillFactorBenchmark [操作数] [页面大小]
+ */
+public class PageFillFactorBenchmark {
+
+    private static final int MIN_RECORD = 16;
+    private static final int MAX_RECORD = 400;
+
+    //一条有效记录的位置
+    private static class Record {
+        int page;
+        short pos;       //PageX中是偏移，PageSlotted中是槽号
+        int length;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int ops = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 8192;
+        System.out.printf("ops=%d pageSize=%d%n", ops, pageSize);
+        run("PageX", false, ops, pageSize);
+        run("PageSlotted", true, ops, pageSize);
+    }
+
+    private static void run(String name, boolean slotted, int ops, int pageSize) throws Exception {
+        Random random = new Random(42);
+        List<Page> pages = new ArrayList<>();
+        PageIndex pIndex = new PageIndex(pageSize);
+        List<Record> live = new ArrayList<>();
+        long liveBytes = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < ops; i ++) {
+            int op = random.nextInt(4);
+            if(live.isEmpty() || op < 2) {
+                //插入
+                Record r = new Record();
+                r.length = MIN_RECORD + random.nextInt(MAX_RECORD - MIN_RECORD);
+                place(pages, pIndex, r, new byte[r.length], slotted, pageSize);
+                live.add(r);
+                liveBytes += r.length;
+            } else if(op == 2) {
+                //删除
+                Record r = live.remove(random.nextInt(live.size()));
+                if(slotted) {
+                    Page pg = pages.get(r.page);
+                    PageSlotted.delete(pg, r.pos);
+                    pIndex.add(pg.getPageNumber(), PageSlotted.getFreeSpace(pg));
+                }
+                liveBytes -= r.length;
+            } else {
+                //更新为另一个长度
+                Record r = live.get(random.nextInt(live.size()));
+                int length = MIN_RECORD + random.nextInt(MAX_RECORD - MIN_RECORD);
+                byte[] raw = new byte[length];
+                liveBytes += length - r.length;
+                if(slotted) {
+                    Page pg = pages.get(r.page);
+                    try {
+                        PageSlotted.update(pg, r.pos, raw);
+                        r.length = length;
+                        pIndex.add(pg.getPageNumber(), PageSlotted.getFreeSpace(pg));
+                        continue;
+                    } catch (Exception e) {
+                        //页内放不下，搬到别的页
+                        PageSlotted.delete(pg, r.pos);
+                        pIndex.add(pg.getPageNumber(), PageSlotted.getFreeSpace(pg));
+                    }
+                } else if(length <= r.length) {
+                    PageX.recoverUpdate(pages.get(r.page), raw, r.pos);
+                    r.length = length;
+                    continue;
+                }
+                r.length = length;
+                place(pages, pIndex, r, raw, slotted, pageSize);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        double fill = (double)liveBytes / ((long)pages.size() * pageSize);
+        System.out.printf("%-12s pages=%6d live=%9d bytes fill=%5.1f%% time=%d ms%n",
+                name, pages.size(), liveBytes, fill * 100, nanos / 1000000);
+    }
+
+    //用PageIndex选一个放得下的页面，没有时新建页面，页号从2开始
+    private static void place(List<Page> pages, PageIndex pIndex, Record r, byte[] raw, boolean slotted, int pageSize) throws Exception {
+        PageInfo pi = pIndex.select(raw.length);
+        Page pg;
+        if(pi != null) {
+            pg = pages.get(pi.pgno - 2);
+        } else {
+            byte[] init = slotted ? PageSlotted.initRaw(pageSize) : PageX.initRaw(pageSize);
+            pg = new PageImpl(pages.size() + 2, ByteBuffer.wrap(init), null);
+            pages.add(pg);
+        }
+        r.page = pg.getPageNumber() - 2;
+        r.pos = slotted ? PageSlotted.insert(pg, raw, pIndex) : PageX.insert(pg, raw, pIndex);
+    }
+}
@@ -0,0 +1,272 @@
+package GUOFengming.backend.dm.page;
+
+import GUOFengming.common.Error;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PageSlottedTest {
+
+    private static final int PAGE_SIZE = 4096;
+
+    private Page pg;
+
+    @Before
+    public void before() {
+        pg = new PageImpl(2, ByteBuffer.wrap(PageSlotted.initRaw(PAGE_SIZE)), null);
+    }
+
+    private static byte[] record(int length, int seed) {
+        byte[] raw = new byte[length];
+        Arrays.fill(raw, (byte)seed);
+        return raw;
+    }
+
+    private byte[] read(int slot) {
+        return PageSlotted.read(pg, (short)slot);
+    }
+
+    @Test
+    public void testInsertAndRead() throws Exception {
+        assertTrue(PageSlotted.isSlotted(pg));
+        int free = PageSlotted.getFreeSpace(pg);
+        short s0 = PageSlotted.insert(pg, record(100, 1));
+        short s1 = PageSlotted.insert(pg, record(200, 2));
+        assertEquals(0, s0);
+        assertEquals(1, s1);
+        assertArrayEquals(record(100, 1), read(s0));
+        assertArrayEquals(record(200, 2), read(s1));
+        assertNull(read(2));
+        assertTrue(pg.isDirty());
+        //每条记录还占用一个4字节的槽
+        assertEquals(free - 300 - 2 * 4, PageSlotted.getFreeSpace(pg));
+    }
+
+    @Test
+    public void testDeleteReusesSlot() throws Exception {
+        PageSlotted.insert(pg, record(100, 1));
+        PageSlotted.insert(pg, record(100, 2));
+        PageSlotted.insert(pg, record(100, 3));
+        PageSlotted.delete(pg, (short)1);
+        assertNull(read(1));
+        assertEquals(1, PageSlotted.insert(pg, record(50, 4)));
+        assertArrayEquals(record(50, 4), read(1));
+        assertArrayEquals(record(100, 1), read(0));
+        assertArrayEquals(record(100, 3), read(2));
+    }
+
+    @Test
+    public void testUpdateKeepsSlot() throws Exception {
+        PageSlotted.insert(pg, record(100, 1));
+        PageSlotted.insert(pg, record(100, 2));
+        //变短：原地覆盖
+        PageSlotted.update(pg, (short)0, record(40, 5));
+        assertArrayEquals(record(40, 5), read(0));
+        //变长：页内重新分配
+        PageSlotted.update(pg, (short)0, record(300, 6));
+        assertArrayEquals(record(300, 6), read(0));
+        assertArrayEquals(record(100, 2), read(1));
+    }
+
+    @Test
+    public void testCompactReclaimsFragments() throws Exception {
+        int count = 0;
+        while(PageSlotted.getFreeSpace(pg) >= 100) {
+            PageSlotted.insert(pg, record(100, count));
+            count ++;
+        }
+        for(int i = 0; i < count; i += 2) {
+            PageSlotted.delete(pg, (short)i);
+        }
+        //碎片不连续，插入更长的记录需要先整理
+        int free = PageSlotted.getFreeSpace(pg);
+        assertTrue(free >= 300);
+        short slot = PageSlotted.insert(pg, record(300, 77));
+        assertArrayEquals(record(300, 77), read(slot));
+        for(int i = 1; i < count; i += 2) {
+            assertArrayEquals(record(100, i), read(i));
+        }
+
+        PageSlotted.compact(pg);
+        for(int i = 1; i < count; i += 2) {
+            assertArrayEquals(record(100, i), read(i));
+        }
+        assertArrayEquals(record(300, 77), read(slot));
+    }
+
+    @Test
+    public void testInsertIntoFullPage() throws Exception {
+        int count = 0;
+        while(PageSlotted.getFreeSpace(pg) >= 100) {
+            PageSlotted.insert(pg, record(100, count));
+            count ++;
+        }
+        byte[] before = pg.getData().array().clone();
+        try {
+            PageSlotted.insert(pg, record(PageSlotted.getFreeSpace(pg) + 1, 9));
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.PageFullException, e);
+        }
+        //空间不够时页面不做任何修改
+        assertArrayEquals(before, pg.getData().array());
+        for(int i = 0; i < count; i ++) {
+            assertArrayEquals(record(100, i), read(i));
+        }
+        //正好放得下
+        short slot = PageSlotted.insert(pg, record(PageSlotted.getFreeSpace(pg), 9));
+        assertEquals(count, slot);
+        assertEquals(0, PageSlotted.getFreeSpace(pg));
+    }
+
+    @Test
+    public void testUpdateTooLarge() throws Exception {
+        PageSlotted.insert(pg, record(100, 1));
+        PageSlotted.insert(pg, record(100, 2));
+        int free = PageSlotted.getFreeSpace(pg);
+        byte[] before = pg.getData().array().clone();
+        try {
+            PageSlotted.update(pg, (short)0, record(100 + free + 4 + 1, 3));
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.PageFullException, e);
+        }
+        assertArrayEquals(before, pg.getData().array());
+        //原来的记录释放后正好放得下（已有的槽不需要再占空间）
+        PageSlotted.update(pg, (short)0, record(100 + free + 4, 3));
+        assertArrayEquals(record(100 + free + 4, 3), read(0));
+        assertArrayEquals(record(100, 2), read(1));
+    }
+
+    @Test
+    public void testRecoverInsertIsIdempotent() throws Exception {
+        PageSlotted.recoverInsert(pg, record(10, 1), (short)3);
+        PageSlotted.recoverInsert(pg, record(10, 1), (short)3);
+        assertArrayEquals(record(10, 1), read(3));
+        assertNull(read(0));
+        assertEquals(0, PageSlotted.insert(pg, record(10, 2)));
+        PageSlotted.recoverDelete(pg, (short)3);
+        PageSlotted.recoverDelete(pg, (short)3);
+        assertNull(read(3));
+    }
+
+    /**
+     * 一个线程不断更新记录并整理页面，其他线程同时读：修改都持有排它锁，读到的是记录的一份完整的复制
+     */
+    @Test
+    public void testCompactWhileReading() throws Exception {
+        int slots = 8;
+        for(int i = 0; i < slots; i ++) {
+            PageSlotted.insert(pg, record(50, i + 1));
+        }
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            Random random = new Random(1);
+            try {
+                for(int n = 0; n < 20000; n ++) {
+                    int slot = random.nextInt(slots);
+                    PageSlotted.update(pg, (short)slot, record(20 + random.nextInt(200), slot + 1));
+                    if(n % 16 == 0) {
+                        PageSlotted.compact(pg);
+                    }
+                }
+            } catch (Throwable e) {
+                error.set(e);
+            } finally {
+                stop.set(true);
+            }
+        });
+        Thread[] readers = new Thread[2];
+        for(int t = 0; t < readers.length; t ++) {
+            readers[t] = new Thread(() -> {
+                try {
+                    while(!stop.get()) {
+                        for(int slot = 0; slot < slots; slot ++) {
+                            byte[] raw = read(slot);
+                            assertNotNull(raw);
+                            assertTrue(raw.length >= 20);
+                            for(byte b : raw) {
+                                assertEquals(slot + 1, b);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            readers[t].start();
+        }
+        writer.start();
+        writer.join();
+        for(Thread t : readers) {
+            t.join();
+        }
+        assertNull(error.get());
+    }
+
+    @Test
+    public void testReadReturnsCopy() throws Exception {
+        PageSlotted.insert(pg, record(100, 1));
+        short slot = PageSlotted.insert(pg, record(100, 2));
+        byte[] raw = read(slot);
+        PageSlotted.delete(pg, (short)0);
+        PageSlotted.update(pg, slot, record(100, 3));
+        PageSlotted.compact(pg);
+        assertArrayEquals(record(100, 2), raw);
+    }
+
+    @Test
+    public void testInvalidSlot() throws Exception {
+        PageSlotted.insert(pg, record(100, 1));
+        PageSlotted.insert(pg, record(100, 2));
+        byte[] before = pg.getData().array().clone();
+        //超出槽目录
+        try {
+            PageSlotted.delete(pg, (short)2);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.InvalidSlotException, e);
+        }
+        try {
+            PageSlotted.update(pg, (short)5, record(10, 3));
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.InvalidSlotException, e);
+        }
+        assertArrayEquals(before, pg.getData().array());
+    }
+
+    @Test
+    public void testDeletedSlot() throws Exception {
+        PageSlotted.insert(pg, record(100, 1));
+        PageSlotted.insert(pg, record(100, 2));
+        PageSlotted.delete(pg, (short)0);
+        int free = PageSlotted.getFreeSpace(pg);
+        byte[] before = pg.getData().array().clone();
+        //已经删除的槽不能再删除，也不能通过更新恢复
+        try {
+            PageSlotted.delete(pg, (short)0);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.InvalidSlotException, e);
+        }
+        try {
+            PageSlotted.update(pg, (short)0, record(10, 3));
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.InvalidSlotException, e);
+        }
+        assertArrayEquals(before, pg.getData().array());
+        assertEquals(free, PageSlotted.getFreeSpace(pg));
+        assertNull(read(0));
+        assertArrayEquals(record(100, 2), read(1));
+    }
+}
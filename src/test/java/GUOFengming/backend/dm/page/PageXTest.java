@@ -0,0 +1,92 @@
+package GUOFengming.backend.dm.page;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class PageXTest {
+
+    private static final int PAGE_SIZE = 1 << 16;
+
+    private Page pg;
+
+    @Before
+    public void before() {
+        pg = new PageImpl(2, ByteBuffer.wrap(PageX.initRaw(PAGE_SIZE)), null);
+    }
+
+    @Test
+    public void testConcurrentInsert() throws Exception {
+        int threads = 4;
+        int perThread = 500;
+        ConcurrentHashMap<Short,Byte> offsets = new ConcurrentHashMap<>();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] ts = new Thread[threads];
+        for(int t = 0; t < threads; t ++) {
+            byte b = (byte)(t + 1);
+            ts[t] = new Thread(() -> {
+                byte[] raw = new byte[16];
+                Arrays.fill(raw, b);
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(int i = 0; i < perThread; i ++) {
+                    offsets.put(PageX.insert(pg, raw), b);
+                }
+            });
+            ts[t].start();
+        }
+        start.countDown();
+        for(Thread t : ts) {
+            t.join();
+        }
+        //每次插入都持有排它锁，记录互不重叠
+        assertEquals(threads * perThread, offsets.size());
+        assertEquals(2 + threads * perThread * 16, Short.toUnsignedInt(PageX.getFSO(pg)));
+        for(short offset : offsets.keySet()) {
+            byte[] raw = PageX.read(pg, offset, 16);
+            for(byte x : raw) {
+                assertEquals((byte)offsets.get(offset), x);
+            }
+        }
+    }
+
+    @Test
+    public void testInsertWhileHoldingLock() {
+        pg.lock();
+        try {
+            short offset = PageX.insert(pg, new byte[]{1, 2, 3});
+            PageX.recoverUpdate(pg, new byte[]{4}, offset);
+            assertArrayEquals(new byte[]{4, 2, 3}, PageX.read(pg, offset, 3));
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    @Test
+    public void testRecoverInsertOutOfOrder() {
+        PageX.recoverInsert(pg, new byte[]{5, 6}, (short)10);
+        PageX.recoverInsert(pg, new byte[]{7, 8}, (short)2);
+        //恢复中间的记录不会让FSO变小
+        assertEquals(12, PageX.getFSO(pg));
+        assertArrayEquals(new byte[]{7, 8}, PageX.read(pg, (short)2, 2));
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void testUnlockWithoutLock() {
+        pg.unlock();
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void testUnlockSharedWithoutLock() {
+        pg.unlockShared();
+    }
+}
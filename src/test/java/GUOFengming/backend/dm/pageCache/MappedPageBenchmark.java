@@ -0,0 +1,38 @@
+package GUOFengming.backend.dm.pageCache;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * 对比FileChannel读写（PageCacheImpl）和内存映射（MappedPageCacheImpl）的随机读吞吐量
+ * 同一个数据库分别用两种方式打开，缓存页数相同；数据库比缓存大，FileChannel模式缺页时要调用read复制一页，
+ * 内存映射模式的页面直接是映射的视图，只要数据在操作系统的页缓存中就没有系统调用和复制。
+ *
+ * 运行：java GUOFengming.backend.dm.pageCache.MappedPageBenchmark [页数] [缓存页数] [每轮毫秒数]
+ */
+public class MappedPageBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 8192;
+        int cachePages = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+        System.out.printf("pages=%d cachePages=%d%n", pages, cachePages);
+
+        File dir = Files.createTempDirectory("mmap").toFile();
+        try {
+            String path = PageReadBenchmark.createDb(dir, pages, PageReadBenchmark.options());
+            for(boolean mmap : new boolean[]{false, true}) {
+                PageCacheOptions options = PageReadBenchmark.options();
+                options.mmap = mmap;
+                PageCache pc = PageCache.open(path, (long)cachePages * options.pageSize, options);
+                for(int threads = 1; threads <= 4; threads *= 2) {
+                    double rate = PageReadBenchmark.randomReads(pc, pages, threads, millis);
+                    System.out.printf("%-11s threads=%d %.0f pages/s%n", mmap ? "mmap" : "FileChannel", threads, rate);
+                }
+                pc.close();
+            }
+        } finally {
+            PageReadBenchmark.deleteDir(dir);
+        }
+    }
+}
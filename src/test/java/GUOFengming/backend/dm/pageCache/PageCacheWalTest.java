@@ -0,0 +1,128 @@
+package GUOFengming.backend.dm.pageCache;
+
+import GUOFengming.backend.dm.logger.Logger;
+import GUOFengming.backend.dm.page.Page;
+import GUOFengming.backend.dm.page.PageOne;
+import GUOFengming.backend.dm.page.PageX;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class PageCacheWalTest {
+
+    private static final int PAGES = 64;
+
+    private File dir;
+    private Logger lg;
+    private PageCache pc;
+    private final List<Long> flushed = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void before() throws Exception {
+        dir = Files.createTempDirectory("wal").toFile();
+        String path = new File(dir, "db").getPath();
+        lg = Logger.create(path);
+        PageCacheOptions options = new PageCacheOptions();
+        options.cleanerIntervalMillis = 1000000;
+        //缓存只能放下16页
+        pc = PageCache.create(path, 16 * PageCache.PAGE_SIZE, options);
+        pc.setRecLSNSource(lg::getEndLSN);
+        pc.setLogFlusher(lsn -> {
+            flushed.add(lsn);
+            lg.waitForDurable(lsn);
+        });
+        pc.newPage(PageOne.InitRaw());
+        for(int i = 0; i < PAGES; i ++) {
+            pc.newPage(PageX.initRaw());
+        }
+        pc.flushDirtyPages();
+        flushed.clear();
+    }
+
+    @After
+    public void after() {
+        pc.close();
+        lg.close();
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    //按规定的顺序修改页面：标记为脏页、写日志（不等待保存到硬盘）、修改、setLSN
+    private long modify(int pgno) throws Exception {
+        Page pg = pc.getPage(pgno);
+        try {
+            pg.lock();
+            try {
+                pg.setDirty(true);
+                long lsn = lg.append(new byte[]{(byte)pgno});
+                PageX.insert(pg, new byte[]{1, 2, 3});
+                pg.setLSN(lsn);
+                return lsn;
+            } finally {
+                pg.unlock();
+            }
+        } finally {
+            pg.release();
+        }
+    }
+
+    @Test
+    public void testFlushPageWaitsForLog() throws Exception {
+        long lsn = modify(2);
+        Page pg = pc.getPage(2);
+        try {
+            assertEquals(lsn, pg.getLSN());
+            pc.flushPage(pg);
+        } finally {
+            pg.release();
+        }
+        assertTrue(flushed.contains(lsn));
+    }
+
+    @Test
+    public void testEvictionWaitsForLog() throws Exception {
+        long lsn = modify(2);
+        //读其他页面把第2页挤出缓存，驱逐时写回
+        for(int pgno = 3; pgno <= PAGES + 1; pgno ++) {
+            pc.getPage(pgno).release();
+        }
+        assertTrue(flushed.contains(lsn));
+    }
+
+    @Test
+    public void testCleanerWaitsForLog() throws Exception {
+        long max = 0;
+        for(int pgno = 2; pgno < 10; pgno ++) {
+            max = Math.max(max, modify(pgno));
+        }
+        pc.flushDirtyPages();
+        assertFalse(flushed.isEmpty());
+        long flushedMax = 0;
+        for(long lsn : flushed) {
+            flushedMax = Math.max(flushedMax, lsn);
+        }
+        assertEquals(max, flushedMax);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLogBeforeDirty() throws Exception {
+        Page pg = pc.getPage(2);
+        try {
+            //日志已经保存到硬盘，之后才变脏的页面的recLSN晚于这条日志
+            long lsn = lg.log(new byte[]{2});
+            pg.setDirty(true);
+            pg.setLSN(lsn);
+        } finally {
+            pg.release();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package GUOFengming.backend.dm.pageCache;
+
+import GUOFengming.backend.dm.page.Page;
+import GUOFengming.backend.dm.page.PageOne;
+import GUOFengming.common.Error;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class PageChecksumTest {
+
+    private static final long MEMORY = 64 * PageCache.PAGE_SIZE;
+
+    private File dir;
+    private String path;
+
+    @Before
+    public void before() throws Exception {
+        dir = Files.createTempDirectory("checksum").toFile();
+        path = new File(dir, "db").getPath();
+    }
+
+    @After
+    public void after() {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static PageCacheOptions options(int scrubPagesPerSecond) {
+        PageCacheOptions options = new PageCacheOptions();
+        options.checksum = true;
+        options.readAheadPages = 0;
+        options.scrubPagesPerSecond = scrubPagesPerSecond;
+        return options;
+    }
+
+    private static byte[] content(int pgno, int length) {
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i ++) {
+            data[i] = (byte)(pgno * 7 + i);
+        }
+        return data;
+    }
+
+    //新建有pages个普通页的数据库，每页的内容由页号决定
+    private void createDb(int pages) {
+        PageCache pc = PageCache.create(path, MEMORY, options(0));
+        pc.newPage(PageOne.InitRaw());
+        for(int pgno = 2; pgno <= pages + 1; pgno ++) {
+            pc.newPage(content(pgno, pc.getPageDataSize()));
+        }
+        pc.close();
+    }
+
+    //修改文件中第pgno页的一个字节
+    private void corrupt(int pgno, int offset) throws Exception {
+        try(RandomAccessFile raf = new RandomAccessFile(path + PageCacheImpl.DB_SUFFIX, "rw")) {
+            long pos = (long)(pgno - 1) * PageCache.PAGE_SIZE + offset;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x10);
+        }
+    }
+
+    @Test
+    public void testSealAndVerify() {
+        ByteBuffer frame = ByteBuffer.allocateDirect(PageCache.PAGE_SIZE);
+        //从来没有写过的页面全为0，认为是正确的
+        assertTrue(PageChecksum.verify(frame));
+        for(int i = PageChecksum.LENGTH; i < frame.capacity(); i ++) {
+            frame.put(i, (byte)i);
+        }
+        assertFalse(PageChecksum.verify(frame));
+        PageChecksum.seal(frame);
+        assertTrue(PageChecksum.verify(frame));
+        frame.put(1000, (byte)(frame.get(1000) ^ 1));
+        assertFalse(PageChecksum.verify(frame));
+        frame.put(1000, (byte)(frame.get(1000) ^ 1));
+        frame.putInt(0, frame.getInt(0) + 1);
+        assertFalse(PageChecksum.verify(frame));
+    }
+
+    /**
+     * 写回时计算的校验和在重新打开后校验通过，页面内容不变，数据部分不包含校验和
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        createDb(8);
+        PageCache pc = PageCache.open(path, MEMORY, options(0));
+        assertEquals(PageCache.PAGE_SIZE - PageChecksum.LENGTH, pc.getPageDataSize());
+        for(int pgno = 2; pgno <= 9; pgno ++) {
+            Page pg = pc.getPage(pgno);
+            try {
+                byte[] data = new byte[pc.getPageDataSize()];
+                pg.getData().get(0, data);
+                assertArrayEquals(content(pgno, pc.getPageDataSize()), data);
+            } finally {
+                pg.release();
+            }
+        }
+        pc.close();
+    }
+
+    /**
+     * 读入损坏的页面时抛出BadPageChecksumException，其他页面不受影响
+     */
+    @Test
+    public void testMismatchDetected() throws Exception {
+        createDb(8);
+        corrupt(3, 100);
+        PageCache pc = PageCache.open(path, MEMORY, options(0));
+        try {
+            pc.getPage(3);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.BadPageChecksumException, e);
+        }
+        Page pg = pc.getPage(4);
+        pg.release();
+        pc.close();
+    }
+
+    /**
+     * 后台校验线程发现不在缓存中的损坏页面
+     */
+    @Test
+    public void testScrubberFindsCorruptPage() throws Exception {
+        createDb(8);
+        corrupt(6, PageCache.PAGE_SIZE - 1);
+        PageCacheImpl pc = (PageCacheImpl)PageCache.open(path, MEMORY, options(1000));
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!pc.getCorruptPages().contains(6) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(pc.getCorruptPages().contains(6));
+        assertEquals(1, pc.getCorruptPages().size());
+        pc.close();
+    }
+}
@@ -0,0 +1,112 @@
+package GUOFengming.backend.dm.pageCache;
+
+import GUOFengming.backend.dm.page.Page;
+import GUOFengming.backend.dm.page.PageOne;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 随机读页面的吞吐量随读线程数的变化
+ * 数据库比缓存大得多，大部分读都不命中缓存，要从文件读入（通常由操作系统的页缓存提供），
+ * 读页面使用不加锁的按位置读写（FileChannel.read(buf, offset)），线程之间的缺页互不阻塞。
+ * 其他页面缓存的测试（mmap、页面大小、扫描）也使用这里的建库和随机读方法。
+ *
+ * 运行：java GUOFengming.backend.dm.pageCache.PageReadBenchmark [页数] [缓存页数] [每轮毫秒数]
+ */
+public class PageReadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 8192;
+        int cachePages = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+        System.out.printf("pages=%d cachePages=%d cpus=%d%n", pages, cachePages, Runtime.getRuntime().availableProcessors());
+
+        File dir = Files.createTempDirectory("pageread").toFile();
+        try {
+            PageCacheOptions options = options();
+            String path = createDb(dir, pages, options);
+            PageCache pc = PageCache.open(path, (long)cachePages * options.pageSize, options);
+            for(int threads = 1; threads <= 16; threads *= 2) {
+                double rate = randomReads(pc, pages, threads, millis);
+                System.out.printf("threads=%-2d %.0f pages/s%n", threads, rate);
+            }
+            pc.close();
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    //关闭预读和后台校验，只测随机读本身
+    static PageCacheOptions options() {
+        PageCacheOptions options = new PageCacheOptions();
+        options.readAheadPages = 0;
+        options.scrubPagesPerSecond = 0;
+        return options;
+    }
+
+    /**
+     * 在dir中新建有pages个普通页的数据库并关闭，返回数据库的路径
+     */
+    static String createDb(File dir, int pages, PageCacheOptions options) {
+        String path = new File(dir, "db").getPath();
+        PageCache pc = PageCache.create(path, 64L * options.pageSize, options);
+        pc.newPage(PageOne.InitRaw());
+        byte[] data = new byte[pc.getPageDataSize()];
+        for(int pgno = 2; pgno <= pages + 1; pgno ++) {
+            data[0] = (byte)pgno;
+            pc.newPage(data);
+        }
+        pc.close();
+        return path;
+    }
+
+    /**
+     * threads个线程在millis毫秒内随机读第2~pages+1页，返回每秒读的页数
+     */
+    static double randomReads(PageCache pc, int pages, int threads, long millis) throws Exception {
+        AtomicLong total = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> ts = new ArrayList<>();
+        long[] deadline = new long[1];
+        for(int t = 0; t < threads; t ++) {
+            Thread th = new Thread(() -> {
+                try {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long n = 0;
+                    while((n & 63) != 0 || System.nanoTime() < deadline[0]) {
+                        Page pg = pc.getPage(2 + random.nextInt(pages));
+                        pg.release();
+                        n ++;
+                    }
+                    total.addAndGet(n);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            th.start();
+            ts.add(th);
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + millis * 1000000;
+        start.countDown();
+        for(Thread th : ts) {
+            th.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        return total.get() * 1e9 / elapsed;
+    }
+
+    static void deleteDir(File dir) {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,56 @@
+package GUOFengming.backend.dm.pageCache;
+
+import GUOFengming.backend.dm.page.Page;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * 不同页面大小（4kb~64kb）下的吞吐量
+ * 每种页面大小的数据库总大小和缓存大小都相同，分别测：
+ *   随机读页面（点查询），按页数和按字节计算的吞吐量；
+ *   按页号顺序读整个数据库（全表扫描）的吞吐量。
+ * 小页面的点查询每次读的字节少，大页面的扫描系统调用少。
+ *
+ * 运行：java GUOFengming.backend.dm.pageCache.PageSizeBenchmark [数据库MB] [缓存MB] [每轮毫秒数]
+ */
+public class PageSizeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long dbBytes = (args.length > 0 ? Long.parseLong(args[0]) : 64) << 20;
+        long cacheBytes = (args.length > 1 ? Long.parseLong(args[1]) : 4) << 20;
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+        System.out.printf("db=%dMB cache=%dMB%n", dbBytes >> 20, cacheBytes >> 20);
+
+        for(int pageSize = PageCache.MIN_PAGE_SIZE; pageSize <= PageCache.MAX_PAGE_SIZE; pageSize <<= 1) {
+            File dir = Files.createTempDirectory("pagesize").toFile();
+            try {
+                PageCacheOptions options = PageReadBenchmark.options();
+                options.pageSize = pageSize;
+                int pages = (int)(dbBytes / pageSize);
+                String path = PageReadBenchmark.createDb(dir, pages, options);
+
+                PageCache pc = PageCache.open(path, cacheBytes, options);
+                double random = PageReadBenchmark.randomReads(pc, pages, 1, millis);
+                pc.close();
+
+                //扫描使用默认的顺序预读
+                options.readAheadPages = new PageCacheOptions().readAheadPages;
+                pc = PageCache.open(path, cacheBytes, options);
+                AccessStrategy scan = AccessStrategy.create(AccessStrategy.Type.BULK_READ);
+                long start = System.nanoTime();
+                for(int pgno = 2; pgno <= pages + 1; pgno ++) {
+                    Page pg = pc.getPage(pgno, scan);
+                    pg.release();
+                }
+                double scanSeconds = (System.nanoTime() - start) / 1e9;
+                pc.close();
+
+                System.out.printf("pageSize=%-3dkb random: %.0f pages/s %.1f MB/s  scan: %.1f MB/s%n",
+                        pageSize >> 10, random, random * pageSize / (1 << 20), dbBytes / scanSeconds / (1 << 20));
+            } finally {
+                PageReadBenchmark.deleteDir(dir);
+            }
+        }
+    }
+}
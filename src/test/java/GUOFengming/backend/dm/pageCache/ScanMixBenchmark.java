@@ -0,0 +1,98 @@
+package GUOFengming.backend.dm.pageCache;
+
+import GUOFengming.backend.dm.page.Page;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 点查询和全表扫描混合时，扫描是否把热点页面挤出缓存
+ * 点查询线程随机读一个热点集合（缓存的一半），扫描线程同时反复按顺序读整个数据库，
+ * 扫描分别用普通的getPage和BULK_READ访问策略。统计点查询的缓存命中率、吞吐量和p99延迟，以及扫描的吞吐量。
+ *
+ * 运行：java GUOFengming.backend.dm.pageCache.ScanMixBenchmark [页数] [缓存页数] [每轮毫秒数] [扫描线程数]
+ */
+public class ScanMixBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 8192;
+        int cachePages = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 3000;
+        int scanners = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        System.out.printf("pages=%d cachePages=%d scanners=%d%n", pages, cachePages, scanners);
+
+        File dir = Files.createTempDirectory("scanmix").toFile();
+        try {
+            String path = PageReadBenchmark.createDb(dir, pages, PageReadBenchmark.options());
+            for(boolean ring : new boolean[]{false, true}) {
+                PageCacheOptions options = PageReadBenchmark.options();
+                PageCacheImpl pc = (PageCacheImpl)PageCache.open(path, (long)cachePages * options.pageSize, options);
+                run(pc, ring, pages, cachePages / 2, scanners, millis);
+                pc.close();
+            }
+        } finally {
+            PageReadBenchmark.deleteDir(dir);
+        }
+    }
+
+    private static void run(PageCacheImpl pc, boolean ring, int pages, int hotPages, int scanners, long millis) throws Exception {
+        //先把热点页面读进缓存
+        for(int pgno = 2; pgno < 2 + hotPages; pgno ++) {
+            pc.getPage(pgno).release();
+        }
+
+        long deadline = System.nanoTime() + millis * 1000000;
+        AtomicLong scanned = new AtomicLong();
+        List<Thread> ts = new ArrayList<>();
+        for(int s = 0; s < scanners; s ++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while(System.nanoTime() < deadline) {
+                        AccessStrategy strategy = ring ? AccessStrategy.create(AccessStrategy.Type.BULK_READ) : null;
+                        for(int pgno = 2; pgno <= pages + 1 && System.nanoTime() < deadline; pgno ++) {
+                            Page pg = strategy == null ? pc.getPage(pgno) : pc.getPage(pgno, strategy);
+                            pg.release();
+                            scanned.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            t.start();
+            ts.add(t);
+        }
+
+        //点查询在当前线程中执行
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] latencies = new long[1 << 20];
+        int n = 0;
+        long misses = 0;
+        long begin = System.nanoTime();
+        while(System.nanoTime() < deadline) {
+            int pgno = 2 + random.nextInt(hotPages);
+            if(!pc.isCached(pgno)) {
+                misses ++;
+            }
+            long start = System.nanoTime();
+            pc.getPage(pgno).release();
+            if(n < latencies.length) {
+                latencies[n] = System.nanoTime() - start;
+            }
+            n ++;
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        for(Thread t : ts) {
+            t.join();
+        }
+        long[] sorted = Arrays.copyOf(latencies, Math.min(n, latencies.length));
+        Arrays.sort(sorted);
+        System.out.printf("%-9s lookups: hit=%.2f%% %.0f/s p99=%dus  scan: %.0f pages/s%n", ring ? "BULK_READ" : "getPage",
+                100.0 * (n - misses) / n, n / seconds, sorted[(int)(sorted.length * 0.99)] / 1000, scanned.get() / seconds);
+    }
+}